@@ -14,221 +14,1255 @@
 package net.informaticalibera.videoediting;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
-import android.os.AsyncTask;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.view.View;
 
 import com.arthenica.mobileffmpeg.Config;
+import com.arthenica.mobileffmpeg.ExecuteCallback;
 import com.arthenica.mobileffmpeg.FFmpeg;
+import com.arthenica.mobileffmpeg.LogCallback;
+import com.arthenica.mobileffmpeg.LogMessage;
 import com.arthenica.mobileffmpeg.Statistics;
 import com.arthenica.mobileffmpeg.StatisticsCallback;
+import com.codename1.impl.android.AndroidNativeUtil;
 
 import java.io.File;
 
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.arthenica.mobileffmpeg.FFmpeg.RETURN_CODE_CANCEL;
 import static com.arthenica.mobileffmpeg.FFmpeg.RETURN_CODE_SUCCESS;
 
 public class VideoEditingNativeInterfaceImpl {
 
-    Timer timer;
-    TimerTask timerTask;
+    // levels of com.codename1.io.Log (android.util.Log is imported): the messages are built only if they are loggable
+    private static final int LOG_DEBUG = com.codename1.io.Log.DEBUG;
+    private static final int LOG_WARNING = com.codename1.io.Log.WARNING;
+    private static final int LOG_ERROR = com.codename1.io.Log.ERROR;
+
+    // max characters of the FFmpeg output kept by every execution, for the failure logs
+    private static final int MAX_OUTPUT = 4096;
+    private static final Map<Long, Execution> executions = new HashMap<Long, Execution>();
+    // content URIs opened by openContentUri, keyed by the path that reads them
+    private static final Map<String, ParcelFileDescriptor> openUris = new HashMap<String, ParcelFileDescriptor>();
+    private static boolean statisticsCallbackEnabled = false;
+    private static boolean logCallbackEnabled = false;
 
     public void getImageFromVideo(String param, String param1) {
         net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"getImageFromVideo\"");
-        final String videoFile = param;
-        final String jpegFile = param1;
-        com.codename1.impl.android.AndroidImplementation.runOnUiThreadAndBlock(new Runnable() {
-            public void run() {
-                try {
-                    MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                    mediaMetadataRetriever.setDataSource(videoFile);
-                    Bitmap capturedBitmap = mediaMetadataRetriever.getFrameAtTime(0);
-                    OutputStream fOutputStream = new FileOutputStream(jpegFile);
-                    capturedBitmap.compress(Bitmap.CompressFormat.JPEG, 90, fOutputStream);
-                    fOutputStream.flush();
-                    fOutputStream.close();
-                    mediaMetadataRetriever.release();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        // MediaMetadataRetriever doesn't need the UI thread: it runs on the calling thread
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        try {
+            mediaMetadataRetriever.setDataSource(param);
+            Bitmap capturedBitmap = mediaMetadataRetriever.getFrameAtTime(0);
+            writeImage(capturedBitmap, Bitmap.CompressFormat.JPEG, 90, param1);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+    }
+
+    public String getVideoThumbnails(String param, String param1, String param2) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"getVideoThumbnails\"");
+        Map<String, String> options = parseProfile(param2);
+        String[] outputFiles = param1.split("\n");
+        String times = options.get("times");
+        String[] timeList = times != null && times.length() > 0 ? times.split(",") : new String[0];
+        int maxSize = getInt(options, "maxsize");
+        int columns = getInt(options, "columns");
+        int quality = getInt(options, "quality");
+        Bitmap.CompressFormat format = "png".equals(options.get("format")) ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        // a keyframe is decoded alone, an exact frame requires all the frames since the previous keyframe
+        int option = getInt(options, "keyframes") == 1 ? MediaMetadataRetriever.OPTION_CLOSEST_SYNC : MediaMetadataRetriever.OPTION_CLOSEST;
+        if (timeList.length == 0 || maxSize <= 0 || (columns == 0 && outputFiles.length != timeList.length)) {
+            if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_WARNING)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_WARNING, "getVideoThumbnails: invalid options " + param2);
+            }
+            return null;
+        }
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        Bitmap sheet = null;
+        try {
+            mediaMetadataRetriever.setDataSource(param);
+            int videoWidth = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            int videoHeight = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+            // the frames are never scaled up
+            boolean scaled = Math.max(videoWidth, videoHeight) > maxSize;
+            Canvas canvas = null;
+            Paint paint = new Paint(Paint.FILTER_FLAG);
+            int width = 0;
+            int height = 0;
+            for (int i = 0; i < timeList.length; i++) {
+                long timeUs = Long.parseLong(timeList[i]) * 1000;
+                Bitmap frame;
+                if (scaled && Build.VERSION.SDK_INT >= 27) {
+                    // the frame is scaled by the retriever, without keeping it at full resolution
+                    frame = mediaMetadataRetriever.getScaledFrameAtTime(timeUs, option, maxSize, maxSize);
+                } else {
+                    frame = scaleFrame(mediaMetadataRetriever.getFrameAtTime(timeUs, option), maxSize);
+                }
+                if (frame == null) {
+                    if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_WARNING)) {
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_WARNING, "getVideoThumbnails: no frame at " + timeList[i] + " ms of " + param);
+                    }
+                    return null;
+                }
+                if (i == 0) {
+                    // every thumbnail has the size of the first one
+                    width = frame.getWidth();
+                    height = frame.getHeight();
+                    if (columns > 0) {
+                        int rows = (timeList.length + columns - 1) / columns;
+                        sheet = Bitmap.createBitmap(width * columns, height * rows, Bitmap.Config.ARGB_8888);
+                        canvas = new Canvas(sheet);
+                    }
+                }
+                if (canvas != null) {
+                    int x = (i % columns) * width;
+                    int y = (i / columns) * height;
+                    canvas.drawBitmap(frame, null, new Rect(x, y, x + width, y + height), paint);
+                } else {
+                    Bitmap tile = frame;
+                    if (frame.getWidth() != width || frame.getHeight() != height) {
+                        tile = Bitmap.createScaledBitmap(frame, width, height, true);
+                    }
+                    writeImage(tile, format, quality, outputFiles[i]);
+                    if (tile != frame) {
+                        tile.recycle();
+                    }
                 }
+                frame.recycle();
             }
-        });
+            if (sheet != null) {
+                writeImage(sheet, format, quality, outputFiles[0]);
+            }
+            return width + "x" + height;
+        } catch (Exception ex) {
+            if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "getVideoThumbnails failed: " + ex.getMessage());
+            }
+            return null;
+        } finally {
+            if (sheet != null) {
+                sheet.recycle();
+            }
+            mediaMetadataRetriever.release();
+        }
     }
 
     public long getVideoDuration(String param) {
         net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"getVideoDuration\"");
-        final String videoFile = param;
-        final long[] result = {-1};
-        com.codename1.impl.android.AndroidImplementation.runOnUiThreadAndBlock(new Runnable() {
-            public void run() {
-                try {
-                    MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                    mediaMetadataRetriever.setDataSource(videoFile);
-                    String duration = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-                    mediaMetadataRetriever.release();
-
-                    if (duration != null) {
-                        result[0] = Long.parseLong(duration) / 1000;
-                    }
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        try {
+            mediaMetadataRetriever.setDataSource(param);
+            String duration = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if (duration != null) {
+                return Long.parseLong(duration) / 1000;
             }
-        });
-        return result[0];
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+        return -1;
     }
 
     public int getVideoBitrate(String param) {
         net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"getVideoBitrate\"");
-        final String videoFile = param;
-        final int[] result = {-1};
-        com.codename1.impl.android.AndroidImplementation.runOnUiThreadAndBlock(new Runnable() {
-            public void run() {
-                try {
-                    MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                    mediaMetadataRetriever.setDataSource(videoFile);
-                    String bitrate = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
-                    mediaMetadataRetriever.release();
-
-                    if (bitrate != null) {
-                        result[0] = Integer.parseInt(bitrate);
-                    }
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        try {
+            mediaMetadataRetriever.setDataSource(param);
+            String bitrate = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
+            if (bitrate != null) {
+                return Integer.parseInt(bitrate);
             }
-        });
-        return result[0];
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+        return -1;
     }
 
     public String getVideoSize(String param) {
         net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"getVideoSize\"");
-        final String videoFile = param;
-        final String[] result = {null};
-        com.codename1.impl.android.AndroidImplementation.runOnUiThreadAndBlock(new Runnable() {
-            public void run() {
-                try {
-                    MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                    mediaMetadataRetriever.setDataSource(videoFile);
-                    String width = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-                    String height = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
-                    mediaMetadataRetriever.release();
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        try {
+            mediaMetadataRetriever.setDataSource(param);
+            String width = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
+            String height = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
+            if (width != null && height != null) {
+                return width + "x" + height;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+        return null;
+    }
 
-                    if (width != null && height != null) {
-                        result[0] = width + "x" + height;
+    public String getVideoInfo(String param) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"getVideoInfo\"");
+        String videoFile = param;
+        String result = null;
+        // a single MediaExtractor gives the info of all the tracks, including the codec
+        MediaExtractor mediaExtractor = new MediaExtractor();
+        try {
+            mediaExtractor.setDataSource(videoFile);
+            long durationUs = 0;
+            String codec = null;
+            int width = 0;
+            int height = 0;
+            int rotation = 0;
+            float frameRate = -1;
+            boolean hasAudio = false;
+            for (int i = 0; i < mediaExtractor.getTrackCount(); i++) {
+                MediaFormat format = mediaExtractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+                }
+                if (mime == null) {
+                    continue;
+                }
+                if (mime.startsWith("video/") && codec == null) {
+                    codec = mime;
+                    width = format.getInteger(MediaFormat.KEY_WIDTH);
+                    height = format.getInteger(MediaFormat.KEY_HEIGHT);
+                    if (format.containsKey(MediaFormat.KEY_ROTATION)) {
+                        rotation = format.getInteger(MediaFormat.KEY_ROTATION);
                     }
-
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                        // the frame rate can be stored either as Integer or as Float
+                        try {
+                            frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                        } catch (ClassCastException ex) {
+                            frameRate = format.getFloat(MediaFormat.KEY_FRAME_RATE);
+                        }
+                    }
+                } else if (mime.startsWith("audio/")) {
+                    hasAudio = true;
                 }
             }
-        });
-        return result[0];
+            long bitrate = -1;
+            if (durationUs > 0) {
+                bitrate = new File(videoFile).length() * 8 * 1000000 / durationUs;
+            }
+            result = "duration=" + (durationUs / 1000) + ";width=" + width + ";height=" + height
+                    + ";rotation=" + rotation + ";bitrate=" + bitrate + ";codec=" + (codec != null ? codec : "")
+                    + ";framerate=" + frameRate + ";audio=" + (hasAudio ? 1 : 0);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            mediaExtractor.release();
+        }
+        return result;
+    }
+
+    public int getMaxConcurrentEncoders() {
+        // each FFmpeg execution is already multi-threaded, so we use half of the cores
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
     }
 
     public boolean isSupported() {
         return true;
     }
 
-    public void optimizeVideoForUpload(String param, String param1) {
+    public void optimizeVideoForUpload(String param, String param1, String param2, String param3) {
         net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"optimizeVideoForUpload\"");
-        final String inputVideoFile = param;
-        final String outputVideoFile = param1;
+        final String jobId = param;
+        final String inputVideoFile = param1;
+        final String outputVideoFile = param2;
+        Map<String, String> profile = parseProfile(param3);
+
+        long[] metadata = readMetadata(inputVideoFile);
+        if (metadata == null) {
+            if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "optimizeVideoForUpload: cannot read the video metadata of " + inputVideoFile);
+            }
+            net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(jobId);
+            return;
+        }
+        int width = (int) metadata[0];
+        int height = (int) metadata[1];
+        long duration = metadata[2];
+
+        File myFile = new File(outputVideoFile);
+        if (myFile.exists()) {
+            myFile.delete();
+        }
+
+        // we use custom version of MobileFFMpeg: https://github.com/tanersener/mobile-ffmpeg
+        // note: FFmpeg.executeAsync returns immediately, the callback is invoked when the execution completes
+        enableStatisticsCallback();
+        enableLogCallback();
+        net.informaticalibera.videoediting.VideoEditingCallbacks.setProgress(jobId, 0);
+        if (profile.containsKey("segments") && getInt(profile, "videocopy") != 1 && getInt(profile, "fragmentduration") == 0) {
+            ParallelJob parallelJob = ParallelJob.create(jobId, inputVideoFile, outputVideoFile, width, height, profile, duration);
+            if (parallelJob != null) {
+                parallelJob.start();
+                return;
+            }
+        }
+        execute(jobId, buildCommand(inputVideoFile, outputVideoFile, width, height, profile), getKeptDuration(profile, duration));
+    }
 
+    public void optimizeVideoRenditions(String param, String param1, String param2, String param3) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"optimizeVideoRenditions\"");
+        final String jobId = param;
+        final String inputVideoFile = param1;
+        String[] outputVideoFiles = param2.split("\n");
+        String[] profileLines = param3.split("\n");
+        List<Map<String, String>> profiles = new ArrayList<Map<String, String>>();
+        for (String profileLine : profileLines) {
+            profiles.add(parseProfile(profileLine));
+        }
+
+        long[] metadata = readMetadata(inputVideoFile);
+        if (metadata == null) {
+            if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "optimizeVideoRenditions: cannot read the video metadata of " + inputVideoFile);
+            }
+            net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(jobId);
+            return;
+        }
+        for (String outputVideoFile : outputVideoFiles) {
+            File myFile = new File(outputVideoFile);
+            if (myFile.exists()) {
+                myFile.delete();
+            }
+        }
+
+        enableStatisticsCallback();
+        enableLogCallback();
+        net.informaticalibera.videoediting.VideoEditingCallbacks.setProgress(jobId, 0);
+        String[] command = buildRenditionsCommand(inputVideoFile, outputVideoFiles, (int) metadata[0], (int) metadata[1], profiles);
+        execute(jobId, command, getKeptDuration(profiles.get(0), metadata[2]));
+    }
+
+    /**
+     * Scales down the given frame so that its longer side is not longer than
+     * maxSize, keeping the aspect ratio; the original frame is recycled.
+     *
+     * @param frame it can be null
+     * @param maxSize
+     * @return the scaled frame, or the given one if it's small enough
+     */
+    private static Bitmap scaleFrame(Bitmap frame, int maxSize) {
+        if (frame == null || Math.max(frame.getWidth(), frame.getHeight()) <= maxSize) {
+            return frame;
+        }
+        double scale = (double) maxSize / Math.max(frame.getWidth(), frame.getHeight());
+        int width = Math.max(1, (int) Math.round(frame.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(frame.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(frame, width, height, true);
+        frame.recycle();
+        return scaled;
+    }
+
+    private static void writeImage(Bitmap image, Bitmap.CompressFormat format, int quality, String file) throws IOException {
+        OutputStream fOutputStream = new FileOutputStream(file);
+        try {
+            image.compress(format, quality, fOutputStream);
+            fOutputStream.flush();
+        } finally {
+            fOutputStream.close();
+        }
+    }
+
+    /**
+     * Reads the displayed size and the duration of the given video.
+     *
+     * @param videoFile
+     * @return width, height and duration in ms (0 if unknown), or null if the
+     * file cannot be read or it has no video track
+     */
+    private static long[] readMetadata(String videoFile) {
         MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-        mediaMetadataRetriever.setDataSource(inputVideoFile);
-        int width = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        int height = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-        mediaMetadataRetriever.release();
-        final int scaleFactor;
-        int scale = Math.round(Math.min(width, height) / 360);
-        if (scale >= 1) {
-            scaleFactor = scale;
+        try {
+            mediaMetadataRetriever.setDataSource(videoFile);
+            String widthValue = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
+            String heightValue = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
+            String rotation = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            String duration = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if (widthValue == null || heightValue == null) {
+                return null;
+            }
+            int width = Integer.parseInt(widthValue);
+            int height = Integer.parseInt(heightValue);
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+            if ("90".equals(rotation) || "270".equals(rotation)) {
+                // FFmpeg rotates the frames before applying the filters
+                int tmp = width;
+                width = height;
+                height = tmp;
+            }
+            return new long[]{width, height, duration != null ? Long.parseLong(duration) : 0};
+        } catch (RuntimeException ex) {
+            // IllegalArgumentException if the file cannot be opened, NumberFormatException if the metadata are corrupted
+            return null;
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+    }
+
+    /**
+     * Duration of the section of the video that is kept, the progress is
+     * relative to it.
+     *
+     * @param profile
+     * @param durationMs duration of the whole video
+     * @return ms
+     */
+    private static long getKeptDuration(Map<String, String> profile, long durationMs) {
+        long startTime = getLong(profile, "starttime");
+        long endTime = getLong(profile, "endtime");
+        if (endTime > startTime && endTime < durationMs) {
+            durationMs = endTime;
+        }
+        return Math.max(0, durationMs - startTime);
+    }
+
+    /**
+     * Starts the given FFmpeg command, that reports its outcome to the
+     * callbacks of the given job.
+     *
+     * @param jobId
+     * @param command
+     * @param durationMs duration of the processed video, for the progress
+     */
+    private static void execute(final String jobId, String[] command, long durationMs) {
+        final Execution execution = new Execution(jobId, durationMs);
+        // the lock guarantees that the execution is registered before its callback can remove it
+        synchronized (executions) {
+            long executionId = FFmpeg.executeAsync(command, new ExecuteCallback() {
+                public void apply(long executionId, int rc) {
+                    synchronized (executions) {
+                        executions.remove(executionId);
+                    }
+
+                    if (rc == RETURN_CODE_SUCCESS) {
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video completed successfully");
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoOptimizedCallback(jobId);
+                    } else if (rc == RETURN_CODE_CANCEL) {
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video cancelled");
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoCancelledCallback(jobId);
+                    } else {
+                        if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                            net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "Exporting of the new video failed with error, code: " + rc + ", output: " + execution.getOutput());
+                        }
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(jobId);
+                    }
+                }
+            });
+            executions.put(executionId, execution);
+        }
+    }
+
+    public void cancelOptimization(String param) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"cancelOptimization\"");
+        synchronized (executions) {
+            // a job encoded in segments has more executions at the same time
+            for (Map.Entry<Long, Execution> entry : executions.entrySet()) {
+                if (entry.getValue().jobId.equals(param)) {
+                    // the execution callback will be invoked with RETURN_CODE_CANCEL
+                    FFmpeg.cancel(entry.getKey());
+                }
+            }
+        }
+    }
+
+    public boolean appendFileRange(String param, long param1, long param2, String param3) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"appendFileRange\"");
+        FileInputStream input = null;
+        FileOutputStream output = null;
+        try {
+            input = new FileInputStream(param);
+            output = new FileOutputStream(param3, true);
+            FileChannel source = input.getChannel();
+            FileChannel destination = output.getChannel();
+            // transferTo lets the kernel copy the bytes, that never pass through the Java heap
+            long position = param1;
+            long end = param1 + param2;
+            while (position < end) {
+                long transferred = source.transferTo(position, end - position, destination);
+                if (transferred <= 0) {
+                    if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "appendFileRange: unexpected end of " + param);
+                    }
+                    return false;
+                }
+                position += transferred;
+            }
+            return true;
+        } catch (IOException ex) {
+            if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "appendFileRange failed: " + ex.getMessage());
+            }
+            return false;
+        } finally {
+            try {
+                if (input != null) {
+                    input.close();
+                }
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    public String openContentUri(String param) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called Android native method \"openContentUri\"");
+        Uri uri = Uri.parse(param);
+        if ("file".equals(uri.getScheme())) {
+            return uri.getPath();
+        }
+        try {
+            ParcelFileDescriptor descriptor = AndroidNativeUtil.getContext().getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                return null;
+            }
+            // while the descriptor is open, its /proc path gives MediaMetadataRetriever and FFmpeg
+            // a seekable file that they open by themselves, so the content is never copied
+            String path = "/proc/self/fd/" + descriptor.getFd();
+            synchronized (openUris) {
+                openUris.put(path, descriptor);
+            }
+            return path;
+        } catch (IOException | SecurityException ex) {
+            if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "openContentUri failed: " + ex.getMessage());
+            }
+            return null;
+        }
+    }
+
+    public void closeContentUri(String param) {
+        ParcelFileDescriptor descriptor;
+        synchronized (openUris) {
+            descriptor = openUris.remove(param);
+        }
+        if (descriptor != null) {
+            try {
+                descriptor.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Parses the encoding profile passed by the Java layer.
+     *
+     * @param profile semicolon separated list of key=value pairs
+     * @return the values by key
+     */
+    private static Map<String, String> parseProfile(String profile) {
+        Map<String, String> values = new HashMap<String, String>();
+        if (profile != null) {
+            for (String pair : profile.split(";")) {
+                int index = pair.indexOf('=');
+                if (index > 0) {
+                    values.put(pair.substring(0, index), pair.substring(index + 1));
+                }
+            }
+        }
+        return values;
+    }
+
+    private static long getLong(Map<String, String> profile, String key) {
+        String value = profile.get(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static int getInt(Map<String, String> profile, String key) {
+        String value = profile.get(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Maps the encoding profile to the FFmpeg arguments. When the source
+     * already meets the profile, the streams are copied as is, that takes
+     * only the time to read and write the file.
+     *
+     * @param inputVideoFile
+     * @param outputVideoFile
+     * @param width displayed width of the input video
+     * @param height displayed height of the input video
+     * @param profile
+     * @return the arguments
+     */
+    private static String[] buildCommand(String inputVideoFile, String outputVideoFile, int width, int height, Map<String, String> profile) {
+        List<String> command = new ArrayList<String>();
+        addInputArguments(command, inputVideoFile, profile);
+        if (getInt(profile, "videocopy") == 1) {
+            command.add("-c:v");
+            command.add("copy");
+            if (getLong(profile, "starttime") > 0) {
+                // the copied streams start at the keyframe chosen by the Java layer
+                command.add("-avoid_negative_ts");
+                command.add("make_zero");
+            }
+        } else {
+            addVideoArguments(command, width, height, profile);
+        }
+        addAudioArguments(command, profile);
+        int fragmentDuration = getInt(profile, "fragmentduration");
+        if (fragmentDuration > 0) {
+            // fragmented mp4: every fragment starts with a keyframe and it's written as soon as it's complete
+            command.add("-movflags");
+            command.add("+frag_keyframe+empty_moov+default_base_moof");
+            command.add("-frag_duration");
+            command.add(String.valueOf(fragmentDuration * 1000000L));
+        } else if (getInt(profile, "faststart") == 1) {
+            // the moov box is written before the media payload, so the video can be played while it's downloaded
+            command.add("-movflags");
+            command.add("+faststart");
+        }
+        command.add(outputVideoFile);
+        return command.toArray(new String[command.size()]);
+    }
+
+    /**
+     * Maps the encoding profiles of the renditions to a single FFmpeg
+     * command: the source is decoded once, the split filter sends every frame
+     * to a scaled branch for each rendition and every branch has its own
+     * encoder and output file. The time range of the first profile applies to
+     * all the renditions.
+     *
+     * @param inputVideoFile
+     * @param outputVideoFiles one for each profile
+     * @param width displayed width of the input video
+     * @param height displayed height of the input video
+     * @param profiles
+     * @return the arguments
+     */
+    private static String[] buildRenditionsCommand(String inputVideoFile, String[] outputVideoFiles, int width, int height, List<Map<String, String>> profiles) {
+        List<String> command = new ArrayList<String>();
+        addInputArguments(command, inputVideoFile, profiles.get(0));
+        StringBuilder filter = new StringBuilder("[0:v]split=").append(profiles.size());
+        for (int i = 0; i < profiles.size(); i++) {
+            filter.append("[s").append(i).append(']');
+        }
+        for (int i = 0; i < profiles.size(); i++) {
+            String scale = getScaleFilter(width, height, profiles.get(i));
+            filter.append(";[s").append(i).append(']').append(scale != null ? scale : "null").append("[v").append(i).append(']');
+        }
+        command.add("-filter_complex");
+        command.add(filter.toString());
+        // the options before an output file apply only to it
+        for (int i = 0; i < profiles.size(); i++) {
+            Map<String, String> profile = profiles.get(i);
+            command.add("-map");
+            command.add("[v" + i + "]");
+            command.add("-map");
+            command.add("0:a?");
+            addEncoderArguments(command, profile);
+            addAudioArguments(command, profile);
+            if (getInt(profile, "faststart") == 1) {
+                command.add("-movflags");
+                command.add("+faststart");
+            }
+            command.add(outputVideoFiles[i]);
+        }
+        return command.toArray(new String[command.size()]);
+    }
+
+    /**
+     * Adds the input file, with the seek and the duration of the section to
+     * keep, if any.
+     */
+    private static void addInputArguments(List<String> command, String inputVideoFile, Map<String, String> profile) {
+        long startTime = getLong(profile, "starttime");
+        long endTime = getLong(profile, "endtime");
+        if (startTime > 0) {
+            // -ss before -i seeks to the keyframe that precedes the start, nothing before it is decoded
+            command.add("-ss");
+            command.add(formatSeconds(startTime));
+        }
+        if (endTime > startTime) {
+            // -t before -i limits the input, so the decoding stops at the end
+            // of the section for all the outputs (after -i it would limit
+            // only the next output)
+            command.add("-t");
+            command.add(formatSeconds(endTime - startTime));
+        }
+        command.add("-i");
+        command.add(inputVideoFile);
+    }
+
+    /**
+     * Adds the arguments to encode the audio, or to copy it as is.
+     */
+    private static void addAudioArguments(List<String> command, Map<String, String> profile) {
+        int audioBitrate = getInt(profile, "audiobitrate");
+        if (audioBitrate > 0 && getInt(profile, "audiocopy") != 1) {
+            command.add("-c:a");
+            command.add("aac");
+            command.add("-b:a");
+            command.add(String.valueOf(audioBitrate));
         } else {
-            scaleFactor = 1;
+            command.add("-c:a");
+            command.add("copy");
+        }
+    }
+
+    /**
+     * Returns the filter that scales the shorter side to the max resolution
+     * of the profile.
+     *
+     * @param width displayed width of the input video
+     * @param height displayed height of the input video
+     * @param profile
+     * @return the filter, or null if the video doesn't need to be scaled
+     */
+    private static String getScaleFilter(int width, int height, Map<String, String> profile) {
+        int maxResolution = getInt(profile, "maxresolution");
+        if (maxResolution > 0 && Math.min(width, height) > maxResolution) {
+            // -2 keeps the aspect ratio with an even size
+            return width <= height ? "scale=" + maxResolution + ":-2" : "scale=-2:" + maxResolution;
         }
+        return null;
+    }
+
+    /**
+     * Adds the arguments to encode the video, scaled according to the
+     * profile.
+     *
+     * @param command
+     * @param width displayed width of the input video
+     * @param height displayed height of the input video
+     * @param profile
+     */
+    private static void addVideoArguments(List<String> command, int width, int height, Map<String, String> profile) {
+        addEncoderArguments(command, profile);
+        String scale = getScaleFilter(width, height, profile);
+        if (scale != null) {
+            command.add("-vf");
+            command.add(scale);
+        }
+    }
 
-        AsyncTask.execute(new Runnable() {
-            public void run() {
-                File myFile = new File(outputVideoFile);
-                if (myFile.exists()) {
-                    myFile.delete();
+    /**
+     * Adds the arguments of the video encoder. H.264 requires CISCO OpenH264
+     * (http://www.openh264.org/faq.html), that is not included in the default
+     * custom MobileFFmpeg: without it, MPEG-4 Part 2 is used. HEVC is never
+     * available and it's replaced by H.264.
+     *
+     * @param command
+     * @param profile
+     */
+    private static void addEncoderArguments(List<String> command, Map<String, String> profile) {
+        String codec = profile.get("codec");
+        int videoBitrate = getInt(profile, "videobitrate");
+        int maxFrameRate = getInt(profile, "maxframerate");
+        int keyframeInterval = getInt(profile, "keyframeinterval");
+        int speed = getInt(profile, "speed");
+
+        boolean h264 = "h264".equals(codec) || "hevc".equals(codec);
+        if (h264) {
+            List<String> libraries = Config.getExternalLibraries();
+            if (libraries == null || !libraries.contains("openh264")) {
+                if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_WARNING)) {
+                    net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_WARNING, "The codec " + codec + " is not available in this build of MobileFFmpeg, MPEG-4 will be used");
                 }
+                h264 = false;
+            } else if ("hevc".equals(codec)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_WARNING, "HEVC is not available on Android, H.264 will be used");
+            }
+        }
 
-                // we use custom version of MobileFFMpeg: https://github.com/tanersener/mobile-ffmpeg
-                // note: FFmpeg.execute is blocking, it doesn't return until it completes
-                startTimer(inputVideoFile);
-                // these commands are optimized to get the faster execution with an acceptable quality
-                // CISCO OpenH264 http://www.openh264.org/faq.html
-                // FFmpeg.execute("-i " + inputVideoFile + " -vcodec libopenh264 -b 750000 -vf scale=iw/" + scaleFactor + ":ih/" + scaleFactor + " -c:a copy " + outputVideoFile);
-                FFmpeg.execute("-i " + inputVideoFile + " -vcodec mpeg4 -b 750000 -vf scale=iw/" + scaleFactor + ":ih/" + scaleFactor + " -c:a copy " + outputVideoFile);
-                stopTimer();
+        if (h264) {
+            command.add("-c:v");
+            command.add("libopenh264");
+            if (speed >= 2) {
+                // CABAC compresses better, but it's slower
+                command.add("-profile:v");
+                command.add("main");
+                command.add("-coder");
+                command.add("cabac");
+            }
+        } else {
+            // these options are optimized to get the faster execution with an acceptable quality,
+            // the slower speeds enable the more expensive motion estimation
+            command.add("-c:v");
+            command.add("mpeg4");
+            if (speed >= 1) {
+                command.add("-mbd");
+                command.add("rd");
+            }
+            if (speed >= 2) {
+                command.add("-flags");
+                command.add("+mv4+aic");
+            }
+            if (speed >= 3) {
+                command.add("-trellis");
+                command.add("2");
+                command.add("-cmp");
+                command.add("2");
+                command.add("-subcmp");
+                command.add("2");
+            }
+        }
+        command.add("-b:v");
+        command.add(String.valueOf(videoBitrate > 0 ? videoBitrate : 750000));
+        if (maxFrameRate > 0) {
+            command.add("-fpsmax");
+            command.add(String.valueOf(maxFrameRate));
+        }
+        if (keyframeInterval > 0) {
+            command.add("-force_key_frames");
+            command.add("expr:gte(t,n_forced*" + keyframeInterval + ")");
+        }
+    }
 
-                int rc = FFmpeg.getLastReturnCode();
-                String output = FFmpeg.getLastCommandOutput();
+    /**
+     * Registers, only once, the statistics callback shared by all the FFmpeg
+     * executions: every sample is pushed to the job that produced it.
+     */
+    private static synchronized void enableStatisticsCallback() {
+        if (statisticsCallbackEnabled) {
+            return;
+        }
+        statisticsCallbackEnabled = true;
+        Config.enableStatisticsCallback(new StatisticsCallback() {
+            public void apply(Statistics newStatistics) {
+                Execution execution;
+                synchronized (executions) {
+                    execution = executions.get(newStatistics.getExecutionId());
+                }
+                if (execution == null || execution.durationMs <= 0) {
+                    return;
+                }
+                if (execution.parallelJob != null) {
+                    execution.parallelJob.progress(execution.segment, newStatistics);
+                    return;
+                }
+                // getTime() returns the ms of video already processed
+                long time = newStatistics.getTime();
+                if (time < execution.durationMs) {
+                    net.informaticalibera.videoediting.VideoEditingCallbacks.setProgressStats(execution.jobId, formatStatistics(time, execution.durationMs,
+                            newStatistics.getVideoFrameNumber(), newStatistics.getSize(), newStatistics.getSpeed()));
+                }
+            }
+        });
+    }
 
-                if (rc == RETURN_CODE_SUCCESS) {
-                    net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video completed successfully");
-                    net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoOptimizedCallback(inputVideoFile);
-                } else if (rc == RETURN_CODE_CANCEL) {
-                    net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video cancelled");
-                    net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(inputVideoFile);
-                } else {
-                    net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video failed with error, code: " + rc + ", output: " + output);
-                    net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(inputVideoFile);
+    /**
+     * Registers, only once, the log callback shared by all the FFmpeg
+     * executions: every line is kept by the execution that wrote it, so that
+     * a failure reports its own output also when more executions are
+     * running.
+     */
+    private static synchronized void enableLogCallback() {
+        if (logCallbackEnabled) {
+            return;
+        }
+        logCallbackEnabled = true;
+        Config.enableLogCallback(new LogCallback() {
+            public void apply(LogMessage message) {
+                Execution execution;
+                synchronized (executions) {
+                    execution = executions.get(message.getExecutionId());
+                }
+                if (execution != null) {
+                    execution.appendOutput(message.getText());
                 }
             }
         });
     }
 
-    private void startTimer(String inputVideoFile) {
-        net.informaticalibera.videoediting.VideoEditingCallbacks.setProgress(0);
+    /**
+     * Formats the given ms as seconds for the FFmpeg arguments, without the
+     * exponential notation of the floating point numbers.
+     */
+    private static String formatSeconds(long ms) {
+        return (ms / 1000) + "." + String.valueOf(1000 + ms % 1000).substring(1);
+    }
 
-        // set a new Timer
-        timer = new Timer();
+    /**
+     * Formats a progress sample for
+     * {@link net.informaticalibera.videoediting.VideoEditingCallbacks#setProgressStats(java.lang.String, java.lang.String)}.
+     *
+     * @param timeMs media time already processed
+     * @param durationMs media time to process
+     * @param frames encoded frames
+     * @param size bytes written
+     * @param speed times realtime, 0 if unknown
+     * @return the sample
+     */
+    private static String formatStatistics(long timeMs, long durationMs, long frames, long size, double speed) {
+        return "time=" + timeMs + ";duration=" + durationMs + ";frames=" + frames + ";size=" + size + ";speed=" + speed;
+    }
 
-        // initialize the TimerTask's job
-        initializeTimerTask(inputVideoFile);
+    /**
+     * A running FFmpeg execution.
+     */
+    private static class Execution {
 
-        // schedule the timer, after the first 1000ms the TimerTask will run every 1000ms
-        timer.schedule(timerTask, 2000, 2000);
-    }
+        final String jobId;
+        final long durationMs;
+        final ParallelJob parallelJob;
+        final int segment;
+        private final StringBuilder output = new StringBuilder();
 
-    private void stopTimer() {
-        // stop the timer, if it's not already null
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+        Execution(String jobId, long durationMs) {
+            this(jobId, durationMs, null, -1);
+        }
+
+        /**
+         * @param parallelJob job encoded in segments, or null
+         * @param segment index of the encoded segment, -1 to stitch the
+         * segments together
+         */
+        Execution(String jobId, long durationMs, ParallelJob parallelJob, int segment) {
+            this.jobId = jobId;
+            this.durationMs = durationMs;
+            this.parallelJob = parallelJob;
+            this.segment = segment;
+        }
+
+        /**
+         * Keeps the last {@link #MAX_OUTPUT} characters written by FFmpeg.
+         */
+        synchronized void appendOutput(String text) {
+            if (text == null) {
+                return;
+            }
+            output.append(text);
+            if (output.length() > MAX_OUTPUT) {
+                output.delete(0, output.length() - MAX_OUTPUT);
+            }
+        }
+
+        synchronized String getOutput() {
+            return output.toString();
         }
     }
 
-    private void initializeTimerTask(String inputVideoFile) {
+    /**
+     * A job encoded in segments that start at keyframes of the source (found
+     * by the Java layer): up to one segment for each core (shared with the
+     * other running jobs) is encoded at the same time, each one by a single
+     * threaded FFmpeg execution, then the segments are stitched together by
+     * the concat demuxer, copying the audio of the source so that it stays in
+     * sync. Every field is guarded by the lock of executions.
+     */
+    private static class ParallelJob {
 
-        final long totalTime = getVideoDuration(inputVideoFile);
+        final String jobId;
+        final String inputVideoFile;
+        final String outputVideoFile;
+        final int width;
+        final int height;
+        final Map<String, String> profile;
+        final long durationMs;
+        final long[] starts;
+        final long[] processedMs;
+        final long[] frames;
+        final long[] sizes;
+        final double[] speeds;
+        int next = 0;
+        int running = 0;
+        int completed = 0;
+        int failure = RETURN_CODE_SUCCESS;
 
-        timerTask = new TimerTask() {
-            public void run() {
-                Config.enableStatisticsCallback(new StatisticsCallback() {
-                    public void apply(Statistics newStatistics) {
-                        // getTime() returns ms, while totalTime are seconds, so: ms / (seconds * 1000) * 100 = ms / seconds / 10
-                        long percentage = (newStatistics.getTime() / totalTime / 10);
-                        if (percentage < 100) {
-                            net.informaticalibera.videoediting.VideoEditingCallbacks.setProgress((int) percentage);
-                        }
+        private ParallelJob(String jobId, String inputVideoFile, String outputVideoFile, int width, int height, Map<String, String> profile, long durationMs, long[] starts) {
+            this.jobId = jobId;
+            this.inputVideoFile = inputVideoFile;
+            this.outputVideoFile = outputVideoFile;
+            this.width = width;
+            this.height = height;
+            this.profile = profile;
+            this.durationMs = durationMs;
+            this.starts = starts;
+            this.processedMs = new long[starts.length];
+            this.frames = new long[starts.length];
+            this.sizes = new long[starts.length];
+            this.speeds = new double[starts.length];
+        }
+
+        /**
+         * @param durationMs duration of the input video
+         * @return the job, or null if the segments of the profile are not
+         * valid for the input video
+         */
+        static ParallelJob create(String jobId, String inputVideoFile, String outputVideoFile, int width, int height, Map<String, String> profile, long durationMs) {
+            String[] segments = profile.get("segments").split(",");
+            long[] starts = new long[segments.length + 1];
+            try {
+                for (int i = 0; i < segments.length; i++) {
+                    starts[i + 1] = Long.parseLong(segments[i]);
+                    if (starts[i + 1] <= starts[i] || starts[i + 1] >= durationMs) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_DEBUG)) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_DEBUG, "The video will be encoded in " + starts.length + " segments");
+            }
+            return new ParallelJob(jobId, inputVideoFile, outputVideoFile, width, height, profile, durationMs, starts);
+        }
+
+        void start() {
+            synchronized (executions) {
+                startSegments();
+            }
+        }
+
+        private long getSegmentDuration(int index) {
+            return (index + 1 < starts.length ? starts[index + 1] : durationMs) - starts[index];
+        }
+
+        private String getSegmentFile(int index) {
+            return outputVideoFile + ".segment" + index + ".mp4";
+        }
+
+        private String getListFile() {
+            return outputVideoFile + ".segments.txt";
+        }
+
+        /**
+         * Max number of segments encoded at the same time: the cores are
+         * shared with the other jobs being encoded, so that the concurrent
+         * jobs allowed by getMaxConcurrentEncoders don't oversubscribe the
+         * cpu. It's checked every time a segment ends, so a job gets more
+         * cores when the others end.
+         */
+        private int getMaxRunning() {
+            Set<String> jobIds = new HashSet<String>();
+            jobIds.add(jobId);
+            for (Execution execution : executions.values()) {
+                jobIds.add(execution.jobId);
+            }
+            return Math.max(1, Runtime.getRuntime().availableProcessors() / jobIds.size());
+        }
+
+        private void startSegments() {
+            int maxRunning = getMaxRunning();
+            while (running < maxRunning && next < starts.length) {
+                final int index = next++;
+                String segmentFile = getSegmentFile(index);
+                new File(segmentFile).delete();
+                List<String> command = new ArrayList<String>();
+                // -ss before -i seeks to the keyframe, that is the exact start of the segment
+                command.add("-ss");
+                command.add(formatSeconds(starts[index]));
+                command.add("-i");
+                command.add(inputVideoFile);
+                if (index + 1 < starts.length) {
+                    command.add("-t");
+                    command.add(formatSeconds(getSegmentDuration(index)));
+                }
+                command.add("-an");
+                command.add("-threads");
+                command.add("1");
+                addVideoArguments(command, width, height, profile);
+                command.add(segmentFile);
+                running++;
+                long executionId = FFmpeg.executeAsync(command.toArray(new String[command.size()]), new ExecuteCallback() {
+                    public void apply(long executionId, int rc) {
+                        segmentFinished(executionId, index, rc);
                     }
                 });
+                executions.put(executionId, new Execution(jobId, getSegmentDuration(index), this, index));
+            }
+        }
+
+        private void segmentFinished(long executionId, int index, int rc) {
+            boolean stopped;
+            synchronized (executions) {
+                Execution execution = executions.remove(executionId);
+                running--;
+                if (failure == RETURN_CODE_SUCCESS && rc == RETURN_CODE_SUCCESS) {
+                    completed++;
+                    processedMs[index] = getSegmentDuration(index);
+                    speeds[index] = 0;
+                    if (completed < starts.length) {
+                        startSegments();
+                    } else if (stitch()) {
+                        return;
+                    }
+                } else if (failure == RETURN_CODE_SUCCESS) {
+                    failure = rc;
+                    if (rc != RETURN_CODE_CANCEL) {
+                        if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                            net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "Encoding of the segment " + index + " failed with error, code: " + rc + ", output: " + (execution != null ? execution.getOutput() : ""));
+                        }
+                    }
+                    // the other segments are useless
+                    next = starts.length;
+                    for (Map.Entry<Long, Execution> entry : executions.entrySet()) {
+                        if (entry.getValue().parallelJob == this) {
+                            FFmpeg.cancel(entry.getKey());
+                        }
+                    }
+                }
+                stopped = failure != RETURN_CODE_SUCCESS && running == 0;
+            }
+            if (stopped) {
+                deleteTemporaryFiles();
+                if (failure == RETURN_CODE_CANCEL) {
+                    net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video cancelled");
+                    net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoCancelledCallback(jobId);
+                } else {
+                    net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(jobId);
+                }
+            }
+        }
+
+        /**
+         * Starts the execution that stitches the segments together.
+         *
+         * @return false if the execution cannot be started
+         */
+        private boolean stitch() {
+            FileOutputStream list = null;
+            try {
+                list = new FileOutputStream(getListFile());
+                StringBuilder content = new StringBuilder();
+                for (int i = 0; i < starts.length; i++) {
+                    content.append("file '").append(getSegmentFile(i).replace("'", "'\\''")).append("'\n");
+                }
+                list.write(content.toString().getBytes("UTF-8"));
+            } catch (IOException ex) {
+                if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                    net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "Cannot write the list of the segments: " + ex.getMessage());
+                }
+                failure = -1;
+                return false;
+            } finally {
+                try {
+                    if (list != null) {
+                        list.close();
+                    }
+                } catch (IOException ex) {
+                }
             }
-        };
+            List<String> command = new ArrayList<String>();
+            command.add("-f");
+            command.add("concat");
+            command.add("-safe");
+            command.add("0");
+            command.add("-i");
+            command.add(getListFile());
+            command.add("-i");
+            command.add(inputVideoFile);
+            command.add("-map");
+            command.add("0:v");
+            command.add("-map");
+            command.add("1:a?");
+            command.add("-c:v");
+            command.add("copy");
+            addAudioArguments(command, profile);
+            if (getInt(profile, "faststart") == 1) {
+                command.add("-movflags");
+                command.add("+faststart");
+            }
+            command.add(outputVideoFile);
+            long executionId = FFmpeg.executeAsync(command.toArray(new String[command.size()]), new ExecuteCallback() {
+                public void apply(long executionId, int rc) {
+                    Execution execution;
+                    synchronized (executions) {
+                        execution = executions.remove(executionId);
+                    }
+                    deleteTemporaryFiles();
+                    if (rc == RETURN_CODE_SUCCESS) {
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video completed successfully");
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoOptimizedCallback(jobId);
+                    } else if (rc == RETURN_CODE_CANCEL) {
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Exporting of the new video cancelled");
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoCancelledCallback(jobId);
+                    } else {
+                        if (net.informaticalibera.videoediting.VideoEditingCallbacks.isLoggable(LOG_ERROR)) {
+                            net.informaticalibera.videoediting.VideoEditingCallbacks.logFromNative(LOG_ERROR, "Stitching of the segments failed with error, code: " + rc + ", output: " + (execution != null ? execution.getOutput() : ""));
+                        }
+                        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(jobId);
+                    }
+                }
+            });
+            executions.put(executionId, new Execution(jobId, durationMs, this, -1));
+            return true;
+        }
+
+        /**
+         * Pushes the progress of the whole job, given the statistics of a
+         * segment: the segments run at the same time, so the speed of the job
+         * is the sum of the speeds of the running segments.
+         */
+        void progress(int segment, Statistics statistics) {
+            if (segment < 0) {
+                // stitching copies the streams, it takes a few moments
+                return;
+            }
+            long processed = 0;
+            long totalFrames = 0;
+            long totalSize = 0;
+            double speed = 0;
+            synchronized (executions) {
+                processedMs[segment] = Math.min(statistics.getTime(), getSegmentDuration(segment));
+                frames[segment] = statistics.getVideoFrameNumber();
+                sizes[segment] = statistics.getSize();
+                speeds[segment] = statistics.getSpeed();
+                for (int i = 0; i < starts.length; i++) {
+                    processed += processedMs[i];
+                    totalFrames += frames[i];
+                    totalSize += sizes[i];
+                    speed += speeds[i];
+                }
+            }
+            if (processed < durationMs) {
+                net.informaticalibera.videoediting.VideoEditingCallbacks.setProgressStats(jobId, formatStatistics(processed, durationMs, totalFrames, totalSize, speed));
+            }
+        }
+
+        private void deleteTemporaryFiles() {
+            for (int i = 0; i < starts.length; i++) {
+                new File(getSegmentFile(i)).delete();
+            }
+            new File(getListFile()).delete();
+        }
     }
 
 }
@@ -19,7 +19,15 @@
 -(int)getVideoBitrate:(NSString*)param;
 -(long long)getVideoDuration:(NSString*)param;
 -(NSString*)getVideoSize:(NSString*)param;
--(void)optimizeVideoForUpload:(NSString*)param param1:(NSString*)param1;
+-(NSString*)getVideoInfo:(NSString*)param;
+-(void)optimizeVideoForUpload:(NSString*)param param1:(NSString*)param1 param2:(NSString*)param2 param3:(NSString*)param3;
+-(void)optimizeVideoRenditions:(NSString*)param param1:(NSString*)param1 param2:(NSString*)param2 param3:(NSString*)param3;
+-(void)cancelOptimization:(NSString*)param;
+-(BOOL)appendFileRange:(NSString*)param param1:(long long)param1 param2:(long long)param2 param3:(NSString*)param3;
+-(NSString*)openContentUri:(NSString*)param;
+-(void)closeContentUri:(NSString*)param;
 -(void)getImageFromVideo:(NSString*)param param1:(NSString*)param1;
+-(NSString*)getVideoThumbnails:(NSString*)param param1:(NSString*)param1 param2:(NSString*)param2;
+-(int)getMaxConcurrentEncoders;
 -(BOOL)isSupported;
 @end
@@ -21,26 +21,39 @@
 #import <AVFoundation/AVAssetTrackSegment.h>
 #import <AVFoundation/AVMediaFormat.h>
 #import <AVFoundation/AVMetadataFormat.h>
+#import <AVFoundation/AVVideoComposition.h>
 #import <CoreMedia/CMTimeRange.h>
 #import <CoreMedia/CoreMedia.h>
 #import "net_informaticalibera_videoediting_VideoEditingCallbacks.h"
 #import "CodenameOne_GLViewController.h"
 #import "cn1_globals.h"
 
-@implementation net_informaticalibera_videoediting_VideoEditingNativeInterfaceImpl
+// levels of com.codename1.io.Log
+#define LOG_DEBUG 1
+#define LOG_WARNING 3
+#define LOG_ERROR 4
+
+// tells if a message of the given level would be written by the Java layer, so that it's built only if needed
+static BOOL isLoggable(int level) {
+    return net_informaticalibera_videoediting_VideoEditingCallbacks_isLoggable___int_R_boolean(CN1_THREAD_GET_STATE_PASS_ARG level);
+}
 
-AVAssetExportSession *encoder;
-NSTimer *exportProgressBarTimer;
+// appends a message to the buffer of the native log of the Java layer, without waiting for the EDT
+static void logMessage(int level, NSString *message) {
+    net_informaticalibera_videoediting_VideoEditingCallbacks_logFromNative___int_java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG level, fromNSString(CN1_THREAD_GET_STATE_PASS_ARG message));
+}
+
+@implementation net_informaticalibera_videoediting_VideoEditingNativeInterfaceImpl
 
 -(void)getImageFromVideo:(NSString*)param param1:(NSString*)param1{
-    dispatch_sync(dispatch_get_main_queue(), ^{
+    // the metadata methods run on the calling thread (a Java thread), never on the main queue, so they don't stall the UI
+    @autoreleasepool {
         net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"getImageFromVideo\""));
         NSString* videoFile = param;
         NSString* jpegFile = param1;
-        net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Video input file:"));
-        net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"videoFile"));
-        net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Jpeg output file:"));
-        net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"jpegFile"));
+        if (isLoggable(LOG_DEBUG)) {
+            logMessage(LOG_DEBUG, [NSString stringWithFormat:@"Video input file: %@, jpeg output file: %@", videoFile, jpegFile]);
+        }
         NSLog(@"The video file is: %@\nThe jpeg file is: %@", videoFile, jpegFile);
 
         NSURL* contentURL = [NSURL fileURLWithPath:videoFile];
@@ -60,7 +73,7 @@ NSTimer *exportProgressBarTimer;
         CGImageRelease(imgRef);
         [asset release];
         [generator release];
-    });
+    }
 }
 
 -(long long)getVideoDuration:(NSString*)param{
@@ -68,7 +81,7 @@ NSTimer *exportProgressBarTimer;
     float avDurationInSeconds = -1;
     float* pointer = &avDurationInSeconds;
     
-    dispatch_sync(dispatch_get_main_queue(), ^{
+    @autoreleasepool {
         net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"getVideoDuration\""));
         NSString* videoFile = param;
         
@@ -77,7 +90,7 @@ NSTimer *exportProgressBarTimer;
         CMTime avDuration = [asset duration];
         *pointer = CMTimeGetSeconds(avDuration);
         [asset release];
-    });
+    }
     
     return avDurationInSeconds;
 }
@@ -87,7 +100,7 @@ NSTimer *exportProgressBarTimer;
     int bitrate = -1;
     int* pointer = &bitrate;
     
-    dispatch_sync(dispatch_get_main_queue(), ^{
+    @autoreleasepool {
         net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"getVideoBitrate\""));
         NSString* videoFile = param;
         
@@ -109,7 +122,7 @@ NSTimer *exportProgressBarTimer;
         *pointer = [videoTrack estimatedDataRate];
         
         [asset release];
-    });
+    }
     
     return bitrate;
 }
@@ -120,7 +133,7 @@ NSTimer *exportProgressBarTimer;
     int* widthP = &width;
     int* heightP = &height;
     
-    dispatch_sync(dispatch_get_main_queue(), ^{
+    @autoreleasepool {
         net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"getVideoSize\""));
         NSString* videoFile = param;
         
@@ -148,68 +161,475 @@ NSTimer *exportProgressBarTimer;
         *heightP = trackDimensions.height;
         
         [asset release];
-    });
+    }
     
     return [NSString stringWithFormat:@"%dx%d", width, height];;
 }
 
--(void)optimizeVideoForUpload:(NSString*)param param1:(NSString*)param1{
+-(NSString*)getVideoInfo:(NSString*)param{
+    NSString* result = nil;
+
+    @autoreleasepool {
+        net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"getVideoInfo\""));
+        NSString* videoFile = param;
+
+        // a single AVURLAsset gives the info of all the tracks
+        NSURL* contentURL = [NSURL fileURLWithPath:videoFile];
+        AVURLAsset *asset = [[AVURLAsset alloc] initWithURL:contentURL options:nil];
+
+        long long durationMs = (long long) (CMTimeGetSeconds([asset duration]) * 1000);
+        int width = 0;
+        int height = 0;
+        int rotation = 0;
+        float frameRate = -1;
+        float bitrate = 0;
+        NSString *codec = @"";
+
+        NSArray *videoTracks = [asset tracksWithMediaType:AVMediaTypeVideo];
+        if ([videoTracks count] > 0) {
+            AVAssetTrack *videoTrack = [videoTracks objectAtIndex:0];
+            CGSize trackDimensions = [videoTrack naturalSize];
+            width = trackDimensions.width;
+            height = trackDimensions.height;
+            CGAffineTransform transform = [videoTrack preferredTransform];
+            rotation = (int) round(atan2(transform.b, transform.a) * 180 / M_PI);
+            if (rotation < 0) {
+                rotation += 360;
+            }
+            frameRate = [videoTrack nominalFrameRate];
+            NSArray *formatDescriptions = [videoTrack formatDescriptions];
+            if ([formatDescriptions count] > 0) {
+                CMFormatDescriptionRef formatDescription = (CMFormatDescriptionRef)[formatDescriptions objectAtIndex:0];
+                FourCharCode subType = CMFormatDescriptionGetMediaSubType(formatDescription);
+                char fourcc[5] = {(subType >> 24) & 0xff, (subType >> 16) & 0xff, (subType >> 8) & 0xff, subType & 0xff, 0};
+                codec = [NSString stringWithUTF8String:fourcc];
+            }
+        }
+        for (AVAssetTrack *track in [asset tracks]) {
+            bitrate += [track estimatedDataRate];
+        }
+        BOOL hasAudio = [[asset tracksWithMediaType:AVMediaTypeAudio] count] > 0;
+
+        result = [[NSString stringWithFormat:@"duration=%lld;width=%d;height=%d;rotation=%d;bitrate=%d;codec=%@;framerate=%f;audio=%d",
+                   durationMs, width, height, rotation, (int) bitrate, codec, frameRate, hasAudio ? 1 : 0] retain];
+
+        [asset release];
+    }
+
+    return [result autorelease];
+}
+
+// running export sessions, keyed by job id; accessed only on the main queue
+static NSMutableDictionary *exportSessions = nil;
+
+// parses the encoding profile passed by the Java layer, a semicolon separated list of key=value pairs
+static NSDictionary* parseProfile(NSString *profile) {
+    NSMutableDictionary *values = [NSMutableDictionary dictionary];
+    for (NSString *pair in [profile componentsSeparatedByString:@";"]) {
+        NSRange range = [pair rangeOfString:@"="];
+        if (range.location != NSNotFound && range.location > 0) {
+            [values setObject:[pair substringFromIndex:range.location + 1] forKey:[pair substringToIndex:range.location]];
+        }
+    }
+    return values;
+}
+
+// AVAssetExportSession doesn't allow to set the bitrates, the keyframe interval and the speed:
+// the closest preset is chosen according to the codec and to the max length of the shorter side
+static NSString* presetForProfile(NSDictionary *profile) {
+    if ([[profile objectForKey:@"videocopy"] intValue] == 1) {
+        // the source already meets the profile: the streams are copied into a new container
+        // (the audio bitrate can't be set, so also the audio is copied)
+        return AVAssetExportPresetPassthrough;
+    }
+    BOOL hevc = [@"hevc" isEqualToString:[profile objectForKey:@"codec"]];
+    int maxResolution = [[profile objectForKey:@"maxresolution"] intValue];
+    if (maxResolution <= 0) {
+        return hevc ? AVAssetExportPresetHEVCHighestQuality : AVAssetExportPresetHighestQuality;
+    } else if (maxResolution <= 360) {
+        return AVAssetExportPresetMediumQuality;
+    } else if (maxResolution <= 480) {
+        return AVAssetExportPreset640x480;
+    } else if (maxResolution <= 540) {
+        return AVAssetExportPreset960x540;
+    } else if (maxResolution <= 720) {
+        return AVAssetExportPreset1280x720;
+    } else if (maxResolution <= 1080) {
+        return hevc ? AVAssetExportPresetHEVC1920x1080 : AVAssetExportPreset1920x1080;
+    } else {
+        return hevc ? AVAssetExportPresetHEVC3840x2160 : AVAssetExportPreset3840x2160;
+    }
+}
+
+// creates an export session configured according to the profile; the caller releases it
+static AVAssetExportSession* createExportSession(AVURLAsset *asset, NSDictionary *profile, NSString *outputPath) {
+    NSFileManager *fileManager = [NSFileManager defaultManager];
+    if ([fileManager fileExistsAtPath:outputPath]){
+            [fileManager removeItemAtPath:outputPath error:nil];
+    }
+    AVAssetExportSession *session = [[AVAssetExportSession alloc] initWithAsset:asset presetName:presetForProfile(profile)];
+    int maxFrameRate = [[profile objectForKey:@"maxframerate"] intValue];
+    if (maxFrameRate > 0 && [[profile objectForKey:@"videocopy"] intValue] != 1) {
+        AVAssetTrack *videoTrack = [[asset tracksWithMediaType:AVMediaTypeVideo] firstObject];
+        if (videoTrack != nil && videoTrack.nominalFrameRate > maxFrameRate) {
+            // the video composition keeps the orientation of the source and drops the exceeding frames
+            AVMutableVideoComposition *videoComposition = [AVMutableVideoComposition videoCompositionWithPropertiesOfAsset:asset];
+            videoComposition.frameDuration = CMTimeMake(1, maxFrameRate);
+            session.videoComposition = videoComposition;
+        }
+    }
+    long long startTime = [[profile objectForKey:@"starttime"] longLongValue];
+    long long endTime = [[profile objectForKey:@"endtime"] longLongValue];
+    if (startTime > 0 || endTime > 0) {
+        // only the section is read and encoded; the passthrough preset starts from the keyframe chosen by the Java layer
+        CMTime duration = endTime > startTime ? CMTimeMake(endTime - startTime, 1000) : kCMTimePositiveInfinity;
+        session.timeRange = CMTimeRangeMake(CMTimeMake(startTime, 1000), duration);
+    }
+    session.outputFileType = AVFileTypeMPEG4;
+    // the moov box is written before the media payload, so the video can be played while it's downloaded
+    session.shouldOptimizeForNetworkUse = [[profile objectForKey:@"faststart"] intValue] == 1;
+    session.outputURL = [NSURL fileURLWithPath:outputPath];
+    return session;
+}
+
+// logs the error of a failed export session
+static void logExportError(AVAssetExportSession *session) {
+    if (isLoggable(LOG_ERROR)) {
+        logMessage(LOG_ERROR, [NSString stringWithFormat:@"Video export failed with error: %@ (%ld)", session.error.localizedDescription, session.error.code]);
+    }
+}
+
+// pushes a detailed progress sample of the given export session; AVAssetExportSession reports only the fraction
+// of the work done, so the processed time is derived from the exported range, the frames from the frame rate and
+// the bytes from the size of the output files; outputPaths is nil for a single export, otherwise the session
+// exports the rendition at the given index
+static void pushProgress(NSString *jobId, AVAssetExportSession *session, NSArray *outputPaths, NSUInteger index) {
+    NSUInteger count = outputPaths != nil ? [outputPaths count] : 1;
+    CMTime duration = CMTIME_IS_NUMERIC(session.timeRange.duration) ? session.timeRange.duration : session.asset.duration;
+    long long durationMs = (long long) (CMTimeGetSeconds(duration) * 1000);
+    if (durationMs <= 0) {
+        net_informaticalibera_videoediting_VideoEditingCallbacks_setProgress___java_lang_String_int(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId), (int) ((index + session.progress) * 100 / count));
+        return;
+    }
+    long long timeMs = (long long) ((index + session.progress) * durationMs);
+    float frameRate = 0;
+    NSArray *videoTracks = [session.asset tracksWithMediaType:AVMediaTypeVideo];
+    if ([videoTracks count] > 0) {
+        frameRate = [[videoTracks objectAtIndex:0] nominalFrameRate];
+    }
+    if (session.videoComposition != nil && CMTIME_IS_NUMERIC(session.videoComposition.frameDuration) && CMTimeGetSeconds(session.videoComposition.frameDuration) > 0) {
+        // the frame rate cap of the profile
+        frameRate = MIN(frameRate, (float) (1 / CMTimeGetSeconds(session.videoComposition.frameDuration)));
+    }
+    unsigned long long size = 0;
+    NSFileManager *fileManager = [NSFileManager defaultManager];
+    for (NSUInteger i = 0; i <= index; i++) {
+        NSString *path = outputPaths != nil ? [outputPaths objectAtIndex:i] : [session.outputURL path];
+        size += [[fileManager attributesOfItemAtPath:path error:nil] fileSize];
+    }
+    NSString *stats = [NSString stringWithFormat:@"time=%lld;duration=%lld;frames=%lld;size=%llu",
+                       timeMs, durationMs * (long long) count, (long long) (timeMs * frameRate / 1000), size];
+    net_informaticalibera_videoediting_VideoEditingCallbacks_setProgressStats___java_lang_String_java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId), fromNSString(CN1_THREAD_GET_STATE_PASS_ARG stats));
+}
+
+// running jobs of renditions and the ones cancelled between two export sessions; accessed only on the main queue
+static NSMutableSet *renditionJobs = nil;
+static NSMutableSet *cancelledRenditionJobs = nil;
+
+// exports the rendition at the given index and, when it's completed, the next one: the hardware encoder
+// can't fan out a single decoding to more outputs, so the renditions are exported one after the other;
+// it must be invoked on the main queue
+static void exportRendition(NSString *jobId, AVURLAsset *asset, NSArray *outputPaths, NSArray *profiles, NSUInteger index) {
+    NSUInteger count = [outputPaths count];
+    if ([cancelledRenditionJobs containsObject:jobId]) {
+        [cancelledRenditionJobs removeObject:jobId];
+        [renditionJobs removeObject:jobId];
+        net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoCancelledCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId));
+        return;
+    }
+    NSMutableDictionary *profile = [NSMutableDictionary dictionaryWithDictionary:parseProfile([profiles objectAtIndex:index])];
+    // the time range of the first profile applies to all the renditions
+    NSDictionary *firstProfile = parseProfile([profiles objectAtIndex:0]);
+    [profile setValue:[firstProfile objectForKey:@"starttime"] forKey:@"starttime"];
+    [profile setValue:[firstProfile objectForKey:@"endtime"] forKey:@"endtime"];
+
+    AVAssetExportSession *session = createExportSession(asset, profile, [outputPaths objectAtIndex:index]);
+    if (exportSessions == nil) {
+        exportSessions = [[NSMutableDictionary alloc] init];
+    }
+    [exportSessions setObject:session forKey:jobId];
+    NSTimer *progressTimer = [NSTimer scheduledTimerWithTimeInterval:.5 repeats:YES block:^(NSTimer *timer) {
+        pushProgress(jobId, session, outputPaths, index);
+        if (session.progress > .99) {
+            [timer invalidate];
+        }
+    }];
+    [session exportAsynchronouslyWithCompletionHandler:^
+    {
+      AVAssetExportSessionStatus status = session.status;
+      if (status == AVAssetExportSessionStatusFailed) {
+        logExportError(session);
+      }
+      dispatch_async(dispatch_get_main_queue(), ^{
+        [progressTimer invalidate];
+        [exportSessions removeObjectForKey:jobId];
+        if (status == AVAssetExportSessionStatusCompleted && index + 1 < count) {
+          exportRendition(jobId, asset, outputPaths, profiles, index + 1);
+          return;
+        }
+        [cancelledRenditionJobs removeObject:jobId];
+        [renditionJobs removeObject:jobId];
+        if (status == AVAssetExportSessionStatusCompleted) {
+          net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Renditions exported successfully"));
+          net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoOptimizedCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId));
+        } else if (status == AVAssetExportSessionStatusCancelled) {
+          net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoCancelledCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId));
+        } else {
+          net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoErrorCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId));
+        }
+      });
+      [session release];
+    }];
+}
+
+-(void)optimizeVideoForUpload:(NSString*)param param1:(NSString*)param1 param2:(NSString*)param2 param3:(NSString*)param3{
 
     dispatch_async(dispatch_get_main_queue(), ^{
         net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"optimizeVideoForUpload\""));
         
-        NSString* videoFile = param;
-        NSString* outputPath = param1;
+        NSString* jobId = param;
+        NSString* videoFile = param1;
+        NSString* outputPath = param2;
+        NSDictionary* profile = parseProfile(param3);
+        if ([[profile objectForKey:@"fragmentduration"] intValue] > 0) {
+            // AVAssetExportSession can't write fragmented files: the output is delivered as a single part when it's complete
+            net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Fragmented mp4 is not available on iOS, a regular mp4 will be produced"));
+        }
+        if ([profile objectForKey:@"segments"] != nil) {
+            // the hardware encoder serializes the export sessions, so encoding segments in parallel would not be faster
+            net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Parallel encoding is not available on iOS, the video will be encoded as a whole"));
+        }
 
-        NSFileManager *fileManager = [NSFileManager defaultManager];
-        if ([fileManager fileExistsAtPath:outputPath]){ 
-                [fileManager removeItemAtPath:outputPath error:nil];
-        }  
-        
         NSURL* contentURL = [NSURL fileURLWithPath:videoFile];
         AVURLAsset *inputUrlAsset = [[AVURLAsset alloc] initWithURL:contentURL options:nil];
-        NSURL *outputUrl = [NSURL fileURLWithPath:outputPath];
-
-        net_informaticalibera_videoediting_VideoEditingCallbacks_setProgress___int(CN1_THREAD_GET_STATE_PASS_ARG 0);
-        encoder = [[AVAssetExportSession alloc] initWithAsset:inputUrlAsset presetName:AVAssetExportPresetMediumQuality];
-        exportProgressBarTimer = [NSTimer scheduledTimerWithTimeInterval:.1 target:self selector:@selector(updateExportDisplay) userInfo:nil repeats:YES];
 
-        encoder.outputFileType = AVFileTypeMPEG4;
-        encoder.shouldOptimizeForNetworkUse = YES;
-        encoder.outputURL = outputUrl;
+        net_informaticalibera_videoediting_VideoEditingCallbacks_setProgress___java_lang_String_int(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId), 0);
+        // every job has its own session and its own progress timer, because more optimizations can run at the same time;
+        // the progress samples are pushed to the Java dispatcher, that coalesces them
+        AVAssetExportSession *session = createExportSession(inputUrlAsset, profile, outputPath);
+        if (exportSessions == nil) {
+            exportSessions = [[NSMutableDictionary alloc] init];
+        }
+        [exportSessions setObject:session forKey:jobId];
+        NSTimer *progressTimer = [NSTimer scheduledTimerWithTimeInterval:.5 repeats:YES block:^(NSTimer *timer) {
+            pushProgress(jobId, session, nil, 0);
+            if (session.progress > .99) {
+                [timer invalidate];
+            }
+        }];
 
-        [encoder exportAsynchronouslyWithCompletionHandler:^
+        [session exportAsynchronouslyWithCompletionHandler:^
         {
-          if (encoder.status == AVAssetExportSessionStatusCompleted)
+          dispatch_async(dispatch_get_main_queue(), ^{
+            [progressTimer invalidate];
+            [exportSessions removeObjectForKey:jobId];
+          });
+          if (session.status == AVAssetExportSessionStatusCompleted)
           {
             net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Video exported successfully"));
-            net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoOptimizedCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG videoFile));
+            net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoOptimizedCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId));
           }
-          else if (encoder.status == AVAssetExportSessionStatusCancelled)
+          else if (session.status == AVAssetExportSessionStatusCancelled)
           {
             net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Video export cancelled"));
-            net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoErrorCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG videoFile));
+            net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoCancelledCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId));
           }
           else
           {
-            NSLog(@"Video export failed with error: %@ (%ld)", encoder.error.localizedDescription, encoder.error.code);
-            net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Video export failed with error:"));
-            net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG encoder.error.localizedDescription));
-            net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Code of error:"));
-            net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG [NSString stringWithFormat:@"%ld", encoder.error.code]));
-            net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoErrorCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG videoFile));
+            logExportError(session);
+            net_informaticalibera_videoediting_VideoEditingCallbacks_runVideoErrorCallback___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG jobId));
           }
+          [session release];
         }];
         
         [inputUrlAsset release];
     });
 }
 
-- (void)updateExportDisplay {
-    net_informaticalibera_videoediting_VideoEditingCallbacks_setProgress___int(CN1_THREAD_GET_STATE_PASS_ARG (encoder.progress * 100));
-    if (encoder.progress > .99) {
-        [exportProgressBarTimer invalidate];
+-(void)optimizeVideoRenditions:(NSString*)param param1:(NSString*)param1 param2:(NSString*)param2 param3:(NSString*)param3{
+    dispatch_async(dispatch_get_main_queue(), ^{
+        net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"optimizeVideoRenditions\""));
+        NSArray *outputPaths = [param2 componentsSeparatedByString:@"\n"];
+        NSArray *profiles = [param3 componentsSeparatedByString:@"\n"];
+        if (renditionJobs == nil) {
+            renditionJobs = [[NSMutableSet alloc] init];
+            cancelledRenditionJobs = [[NSMutableSet alloc] init];
+        }
+        [renditionJobs addObject:param];
+        AVURLAsset *inputUrlAsset = [[AVURLAsset alloc] initWithURL:[NSURL fileURLWithPath:param1] options:nil];
+        net_informaticalibera_videoediting_VideoEditingCallbacks_setProgress___java_lang_String_int(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG param), 0);
+        // the blocks of the chain retain the asset until the last rendition is exported
+        exportRendition(param, inputUrlAsset, outputPaths, profiles, 0);
+        [inputUrlAsset release];
+    });
+}
+
+-(void)cancelOptimization:(NSString*)param{
+    // the main queue is serial, so a cancellation can't overtake the start of the same job
+    dispatch_async(dispatch_get_main_queue(), ^{
+        AVAssetExportSession *session = [exportSessions objectForKey:param];
+        if ([renditionJobs containsObject:param]) {
+            // a job of renditions can be between two export sessions
+            [cancelledRenditionJobs addObject:param];
+        }
+        if (session != nil) {
+            // the completion handler will be invoked with AVAssetExportSessionStatusCancelled
+            [session cancelExport];
+        }
+    });
+}
+
+-(BOOL)appendFileRange:(NSString*)param param1:(long long)param1 param2:(long long)param2 param3:(NSString*)param3{
+    NSFileManager *fileManager = [NSFileManager defaultManager];
+    if (![fileManager fileExistsAtPath:param3]) {
+        [fileManager createFileAtPath:param3 contents:nil attributes:nil];
+    }
+    NSFileHandle *source = [NSFileHandle fileHandleForReadingAtPath:param];
+    NSFileHandle *destination = [NSFileHandle fileHandleForWritingAtPath:param3];
+    if (source == nil || destination == nil) {
+        logMessage(LOG_ERROR, @"appendFileRange: cannot open the files");
+        [source closeFile];
+        [destination closeFile];
+        return NO;
+    }
+    [source seekToFileOffset:param1];
+    [destination seekToEndOfFile];
+    // the bytes are copied in chunks, without passing through the Java heap
+    long long remaining = param2;
+    BOOL result = YES;
+    while (remaining > 0) {
+        @autoreleasepool {
+            NSData *chunk = [source readDataOfLength:(NSUInteger) MIN(remaining, 1024 * 1024)];
+            if ([chunk length] == 0) {
+                result = NO;
+                break;
+            }
+            [destination writeData:chunk];
+            remaining -= [chunk length];
+        }
+    }
+    [source closeFile];
+    [destination closeFile];
+    return result;
+}
+
+-(NSString*)openContentUri:(NSString*)param{
+    // the pickers of iOS return files, so only the file URLs can be opened
+    NSURL *url = [NSURL URLWithString:param];
+    if (url == nil || ![url isFileURL] || ![[NSFileManager defaultManager] isReadableFileAtPath:[url path]]) {
+        return nil;
+    }
+    return [url path];
+}
+
+-(void)closeContentUri:(NSString*)param{
+    // nothing to release for a file URL
+}
+
+// writes the given image as jpeg (quality from 1 to 100) or png
+static BOOL writeImage(CGImageRef image, BOOL png, int quality, NSString *file) {
+    UIImage *uiImage = [[[UIImage alloc] initWithCGImage:image] autorelease];
+    NSData *data = png ? UIImagePNGRepresentation(uiImage) : UIImageJPEGRepresentation(uiImage, quality / 100.0);
+    return data != nil && [data writeToFile:file atomically:YES];
+}
+
+-(NSString*)getVideoThumbnails:(NSString*)param param1:(NSString*)param1 param2:(NSString*)param2{
+    net_informaticalibera_videoediting_VideoEditingCallbacks_logsFromNative___java_lang_String(CN1_THREAD_GET_STATE_PASS_ARG fromNSString(CN1_THREAD_GET_STATE_PASS_ARG @"Called iOS native code, method \"getVideoThumbnails\""));
+    NSDictionary *options = parseProfile(param2);
+    NSArray *outputFiles = [param1 componentsSeparatedByString:@"\n"];
+    NSString *times = [options objectForKey:@"times"];
+    NSArray *timeList = [times length] > 0 ? [times componentsSeparatedByString:@","] : [NSArray array];
+    int maxSize = [[options objectForKey:@"maxsize"] intValue];
+    NSUInteger columns = (NSUInteger) MAX(0, [[options objectForKey:@"columns"] intValue]);
+    int quality = [[options objectForKey:@"quality"] intValue];
+    BOOL png = [@"png" isEqualToString:[options objectForKey:@"format"]];
+    if ([timeList count] == 0 || maxSize <= 0 || (columns == 0 && [outputFiles count] != [timeList count])) {
+        if (isLoggable(LOG_WARNING)) {
+            logMessage(LOG_WARNING, [NSString stringWithFormat:@"getVideoThumbnails: invalid options %@", param2]);
+        }
+        return nil;
     }
+
+    AVURLAsset *asset = [[AVURLAsset alloc] initWithURL:[NSURL fileURLWithPath:param] options:nil];
+    AVAssetImageGenerator *generator = [[AVAssetImageGenerator alloc] initWithAsset:asset];
+    generator.appliesPreferredTrackTransform = YES;
+    // the frames are scaled down by the decoder (never up), keeping the aspect ratio
+    generator.maximumSize = CGSizeMake(maxSize, maxSize);
+    if ([[options objectForKey:@"keyframes"] intValue] == 1) {
+        // any frame is accepted, so the generator decodes only the closest keyframe
+        generator.requestedTimeToleranceBefore = kCMTimePositiveInfinity;
+        generator.requestedTimeToleranceAfter = kCMTimePositiveInfinity;
+    } else {
+        generator.requestedTimeToleranceBefore = kCMTimeZero;
+        generator.requestedTimeToleranceAfter = kCMTimeZero;
+    }
+
+    NSUInteger count = [timeList count];
+    NSUInteger rows = columns > 0 ? (count + columns - 1) / columns : 0;
+    CGContextRef sheet = NULL;
+    size_t width = 0;
+    size_t height = 0;
+    BOOL completed = YES;
+    for (NSUInteger i = 0; i < count && completed; i++) {
+        @autoreleasepool {
+            CMTime time = CMTimeMake([[timeList objectAtIndex:i] longLongValue], 1000);
+            NSError *err = nil;
+            CGImageRef image = [generator copyCGImageAtTime:time actualTime:NULL error:&err];
+            if (image == NULL) {
+                if (isLoggable(LOG_WARNING)) {
+                    logMessage(LOG_WARNING, [NSString stringWithFormat:@"getVideoThumbnails: no frame at %@ ms: %@", [timeList objectAtIndex:i], [err localizedDescription]]);
+                }
+                completed = NO;
+                break;
+            }
+            if (i == 0) {
+                // every thumbnail has the size of the first one
+                width = CGImageGetWidth(image);
+                height = CGImageGetHeight(image);
+                if (columns > 0) {
+                    CGColorSpaceRef colorSpace = CGColorSpaceCreateDeviceRGB();
+                    sheet = CGBitmapContextCreate(NULL, width * columns, height * rows, 8, 0, colorSpace, kCGImageAlphaPremultipliedLast);
+                    CGColorSpaceRelease(colorSpace);
+                    CGContextSetInterpolationQuality(sheet, kCGInterpolationHigh);
+                }
+            }
+            if (sheet != NULL) {
+                // the origin of Core Graphics is the bottom left corner, the first row is at the top
+                CGRect tile = CGRectMake((i % columns) * width, (rows - 1 - i / columns) * height, width, height);
+                CGContextDrawImage(sheet, tile, image);
+            } else {
+                completed = writeImage(image, png, quality, [outputFiles objectAtIndex:i]);
+            }
+            CGImageRelease(image);
+        }
+    }
+    if (completed && sheet != NULL) {
+        CGImageRef sheetImage = CGBitmapContextCreateImage(sheet);
+        completed = sheetImage != NULL && writeImage(sheetImage, png, quality, [outputFiles objectAtIndex:0]);
+        CGImageRelease(sheetImage);
+    }
+    if (sheet != NULL) {
+        CGContextRelease(sheet);
+    }
+    [generator release];
+    [asset release];
+    return completed ? [NSString stringWithFormat:@"%zux%zu", width, height] : nil;
+}
+
+-(int)getMaxConcurrentEncoders{
+    // AVAssetExportSession uses the hardware encoder, that handles only a few sessions at the same time
+    NSUInteger cores = [[NSProcessInfo processInfo] activeProcessorCount];
+    return cores >= 4 ? 2 : 1;
 }
 
 -(BOOL)isSupported{
@@ -1,7 +1,24 @@
 package net.informaticalibera.videoediting;
 
 public class VideoEditingNativeInterfaceImpl {
-    public void optimizeVideoForUpload(String param, String param1) {
+    public void optimizeVideoForUpload(String param, String param1, String param2, String param3) {
+    }
+
+    public void optimizeVideoRenditions(String param, String param1, String param2, String param3) {
+    }
+
+    public void cancelOptimization(String param) {
+    }
+
+    public boolean appendFileRange(String param, long param1, long param2, String param3) {
+        return false;
+    }
+
+    public String openContentUri(String param) {
+        return null;
+    }
+
+    public void closeContentUri(String param) {
     }
 
     public int getVideoBitrate(String param) {
@@ -16,9 +33,21 @@ public class VideoEditingNativeInterfaceImpl {
         return null;
     }
 
+    public String getVideoInfo(String param) {
+        return null;
+    }
+
     public void getImageFromVideo(String param, String param1) {
     }
 
+    public String getVideoThumbnails(String param, String param1, String param2) {
+        return null;
+    }
+
+    public int getMaxConcurrentEncoders() {
+        return 1;
+    }
+
     public boolean isSupported() {
         return false;
     }
@@ -2,7 +2,27 @@
 
 var o = {};
 
-    o.optimizeVideoForUpload__java_lang_String_java_lang_String = function(param1, param2, callback) {
+    o.optimizeVideoForUpload__java_lang_String_java_lang_String_java_lang_String_java_lang_String = function(param1, param2, param3, param4, callback) {
+        callback.error(new Error("Not implemented yet"));
+    };
+
+    o.optimizeVideoRenditions__java_lang_String_java_lang_String_java_lang_String_java_lang_String = function(param1, param2, param3, param4, callback) {
+        callback.error(new Error("Not implemented yet"));
+    };
+
+    o.cancelOptimization__java_lang_String = function(param1, callback) {
+        callback.error(new Error("Not implemented yet"));
+    };
+
+    o.appendFileRange__java_lang_String_long_long_java_lang_String = function(param1, param2, param3, param4, callback) {
+        callback.error(new Error("Not implemented yet"));
+    };
+
+    o.openContentUri__java_lang_String = function(param1, callback) {
+        callback.error(new Error("Not implemented yet"));
+    };
+
+    o.closeContentUri__java_lang_String = function(param1, callback) {
         callback.error(new Error("Not implemented yet"));
     };
 
@@ -18,10 +38,22 @@ var o = {};
         callback.error(new Error("Not implemented yet"));
     };
 
+    o.getVideoInfo__java_lang_String = function(param1, callback) {
+        callback.error(new Error("Not implemented yet"));
+    };
+
     o.getImageFromVideo__java_lang_String_java_lang_String = function(param1, param2, callback) {
         callback.error(new Error("Not implemented yet"));
     };
 
+    o.getVideoThumbnails__java_lang_String_java_lang_String_java_lang_String = function(param1, param2, param3, callback) {
+        callback.error(new Error("Not implemented yet"));
+    };
+
+    o.getMaxConcurrentEncoders_ = function(callback) {
+        callback.complete(1);
+    };
+
     o.isSupported_ = function(callback) {
         callback.complete(false);
     };
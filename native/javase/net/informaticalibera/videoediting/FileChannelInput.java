@@ -0,0 +1,32 @@
+package net.informaticalibera.videoediting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RandomAccessInput backed by NIO positional reads.
+ */
+class FileChannelInput implements RandomAccessInput {
+
+    private final FileChannel channel;
+
+    FileChannelInput(String file) throws IOException {
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+    }
+
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        return channel.read(ByteBuffer.wrap(buffer, offset, length), position);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -1,26 +1,164 @@
 package net.informaticalibera.videoediting;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * JavaSE (simulator) implementation: the metadata are read by the pure Java
+ * MP4/MOV parser, without any media framework; there isn't any encoder.
+ */
 public class VideoEditingNativeInterfaceImpl implements net.informaticalibera.videoediting.VideoEditingNativeInterface{
-    public void optimizeVideoForUpload(String param, String param1) {
+    public void optimizeVideoForUpload(String param, String param1, String param2, String param3) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"optimizeVideoForUpload\": video encoding is not available in the simulator");
+        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(param);
+    }
+
+    public void optimizeVideoRenditions(String param, String param1, String param2, String param3) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"optimizeVideoRenditions\": video encoding is not available in the simulator");
+        net.informaticalibera.videoediting.VideoEditingCallbacks.runVideoErrorCallback(param);
+    }
+
+    public void cancelOptimization(String param) {
+        // nothing to cancel, optimizeVideoForUpload fails immediately
+    }
+
+    public boolean appendFileRange(String param, long param1, long param2, String param3) {
+        FileInputStream input = null;
+        FileOutputStream output = null;
+        try {
+            input = new FileInputStream(param);
+            output = new FileOutputStream(param3, true);
+            FileChannel source = input.getChannel();
+            FileChannel destination = output.getChannel();
+            // transferTo lets the kernel copy the bytes, that never pass through the Java heap
+            long position = param1;
+            long end = param1 + param2;
+            while (position < end) {
+                long transferred = source.transferTo(position, end - position, destination);
+                if (transferred <= 0) {
+                    net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("appendFileRange: unexpected end of " + param);
+                    return false;
+                }
+                position += transferred;
+            }
+            return true;
+        } catch (IOException ex) {
+            net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("appendFileRange failed: " + ex.getMessage());
+            return false;
+        } finally {
+            try {
+                if (input != null) {
+                    input.close();
+                }
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    public String openContentUri(String param) {
+        // the simulator can open only file URLs
+        try {
+            java.io.File file = new java.io.File(new java.net.URI(param));
+            return file.canRead() ? file.getPath() : null;
+        } catch (java.net.URISyntaxException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    public void closeContentUri(String param) {
+        // nothing to release for a file URL
     }
 
     public int getVideoBitrate(String param) {
-        return 0;
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"getVideoBitrate\"");
+        Mp4Container container = probe(param);
+        return container != null ? container.getBitrate() : -1;
     }
 
     public long getVideoDuration(String param) {
-        return 0;
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"getVideoDuration\"");
+        Mp4Container container = probe(param);
+        return container != null ? container.getDurationMillis() / 1000 : -1;
     }
 
     public String getVideoSize(String param) {
-        return null;
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"getVideoSize\"");
+        Mp4Container container = probe(param);
+        if (container == null || container.getVideoTrack() == null) {
+            return null;
+        }
+        return container.getWidth() + "x" + container.getHeight();
+    }
+
+    public String getVideoInfo(String param) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"getVideoInfo\"");
+        Mp4Container container = probe(param);
+        if (container == null) {
+            return null;
+        }
+        Mp4Container.Track video = container.getVideoTrack();
+        StringBuilder info = new StringBuilder();
+        info.append("duration=").append(container.getDurationMillis());
+        info.append(";bitrate=").append(container.getBitrate());
+        info.append(";audio=").append(container.getAudioTrack() != null ? 1 : 0);
+        if (video != null) {
+            info.append(";width=").append(video.width);
+            info.append(";height=").append(video.height);
+            info.append(";rotation=").append(video.rotation);
+            info.append(";codec=").append(video.codec);
+            long videoDuration = video.getDurationMillis();
+            if (videoDuration > 0) {
+                info.append(";framerate=").append(video.sampleCount * 1000.0 / videoDuration);
+            }
+        }
+        return info.toString();
     }
 
     public void getImageFromVideo(String param, String param1) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"getImageFromVideo\": frame extraction is not available in the simulator");
+    }
+
+    public String getVideoThumbnails(String param, String param1, String param2) {
+        net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Called JavaSE native method \"getVideoThumbnails\": frame extraction is not available in the simulator");
+        return null;
+    }
+
+    public int getMaxConcurrentEncoders() {
+        return Runtime.getRuntime().availableProcessors();
     }
 
     public boolean isSupported() {
+        // there isn't any encoder: the shared code reads the metadata with the Java parser
         return false;
     }
 
+    /**
+     * Parses the given file reading only the box headers and the moov box.
+     *
+     * @param videoFile path
+     * @return the parsed container, or null in case of error
+     */
+    private Mp4Container probe(String videoFile) {
+        RandomAccessInput input = null;
+        try {
+            input = new FileChannelInput(videoFile);
+            return Mp4Container.parse(input);
+        } catch (IOException ex) {
+            net.informaticalibera.videoediting.VideoEditingCallbacks.logsFromNative("Cannot parse the video " + videoFile + ": " + ex.getMessage());
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
 }
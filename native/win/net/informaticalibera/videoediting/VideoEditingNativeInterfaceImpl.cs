@@ -1,8 +1,25 @@
-namespace net.informaticalibera.videoediting{
-
-
-public class VideoEditingNativeInterfaceImpl : IVideoEditingNativeInterfaceImpl {
-    public void optimizeVideoForUpload(String param, String param1) {
+namespace net.informaticalibera.videoediting{
+
+
+public class VideoEditingNativeInterfaceImpl : IVideoEditingNativeInterfaceImpl {
+    public void optimizeVideoForUpload(String param, String param1, String param2, String param3) {
+    }
+
+    public void optimizeVideoRenditions(String param, String param1, String param2, String param3) {
+    }
+
+    public void cancelOptimization(String param) {
+    }
+
+    public bool appendFileRange(String param, long param1, long param2, String param3) {
+        return false;
+    }
+
+    public string  openContentUri(String param) {
+        return null;
+    }
+
+    public void closeContentUri(String param) {
     }
 
     public int getVideoBitrate(String param) {
@@ -17,12 +34,24 @@ public class VideoEditingNativeInterfaceImpl : IVideoEditingNativeInterfaceImpl
         return null;
     }
 
+    public string  getVideoInfo(String param) {
+        return null;
+    }
+
     public void getImageFromVideo(String param, String param1) {
     }
 
+    public string  getVideoThumbnails(String param, String param1, String param2) {
+        return null;
+    }
+
+    public int getMaxConcurrentEncoders() {
+        return 1;
+    }
+
     public bool isSupported() {
         return false;
     }
 
-}
-}
+}
+}
@@ -0,0 +1,42 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.ui.CN;
+
+/**
+ * Executes the callbacks of this library; by default they are executed on the
+ * EDT.
+ *
+ * @author Francesco Galgani
+ */
+public interface CallbackExecutor {
+
+    /**
+     * Executes the callbacks on the EDT.
+     */
+    public static final CallbackExecutor EDT = new CallbackExecutor() {
+        @Override
+        public void execute(Runnable callback) {
+            CN.callSerially(callback);
+        }
+    };
+
+    /**
+     * Executes the given callback, now or later, on any thread.
+     *
+     * @param callback to execute
+     */
+    public void execute(Runnable callback);
+
+}
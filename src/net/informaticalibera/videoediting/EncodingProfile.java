@@ -0,0 +1,543 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * <p>
+ * Encoding settings of an optimization, to trade the encoding time against the
+ * size of the optimized video. The setters return this profile, so they can be
+ * chained:</p>
+ * <pre>
+ * EncodingProfile profile = EncodingProfile.defaultProfile().setMaxResolution(480).setVideoBitrate(1000000);
+ * </pre>
+ * <p>
+ * Every platform maps the profile to the closest native settings: on Android
+ * all the settings are passed to FFmpeg (H.264 requires a build of
+ * MobileFFmpeg that includes OpenH264, otherwise MPEG-4 is used, and HEVC is
+ * replaced by H.264); on iOS the codec, the max resolution and the frame rate
+ * cap select the closest AVAssetExportSession preset and video composition,
+ * while the bitrates, the keyframe interval and the speed are decided by the
+ * preset.</p>
+ * <p>
+ * The profile is copied when an optimization is submitted, so changing it
+ * later doesn't affect the submitted jobs.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class EncodingProfile {
+
+    /**
+     * MPEG-4 Part 2: very fast to encode, but the files are bigger.
+     */
+    public static final String CODEC_MPEG4 = "mpeg4";
+
+    /**
+     * H.264 (AVC): the most compatible codec.
+     */
+    public static final String CODEC_H264 = "h264";
+
+    /**
+     * H.265 (HEVC): smaller files, slower to encode and less compatible.
+     */
+    public static final String CODEC_HEVC = "hevc";
+
+    /**
+     * The fastest encoding, with the lowest compression efficiency.
+     */
+    public static final int SPEED_FASTEST = 0;
+
+    /**
+     * Fast encoding.
+     */
+    public static final int SPEED_FAST = 1;
+
+    /**
+     * Balance between encoding time and compression efficiency.
+     */
+    public static final int SPEED_MEDIUM = 2;
+
+    /**
+     * The slowest encoding, with the best compression efficiency.
+     */
+    public static final int SPEED_SLOW = 3;
+
+    /**
+     * Bitrate assumed for the source audio when it's copied as is.
+     */
+    private static final int AUDIO_ALLOWANCE = 128000;
+
+    private String codec = CODEC_MPEG4;
+    private int maxResolution = 360;
+    private int videoBitrate = 750000;
+    private int audioBitrate = 0;
+    private int maxFrameRate = 0;
+    private int keyframeInterval = 0;
+    private int speed = SPEED_FASTEST;
+    private boolean faststart = true;
+    private int fragmentDuration = 0;
+    private boolean parallelEncoding = false;
+    private long startTime = 0;
+    private long endTime = 0;
+
+    /**
+     * Creates a profile with the default settings, see
+     * {@link #defaultProfile()}.
+     */
+    public EncodingProfile() {
+    }
+
+    /**
+     * The profile used when no profile is given: MPEG-4 at 750 kbps, with the
+     * shorter side scaled down to 360 pixels, the source audio copied as is
+     * and the fastest encoding.
+     *
+     * @return a new profile
+     */
+    public static EncodingProfile defaultProfile() {
+        return new EncodingProfile();
+    }
+
+    /**
+     * A profile for slow networks: H.264 at 400 kbps, 360 pixels, max 24 fps,
+     * audio at 64 kbps.
+     *
+     * @return a new profile
+     */
+    public static EncodingProfile smallProfile() {
+        return new EncodingProfile().setCodec(CODEC_H264).setMaxResolution(360).setVideoBitrate(400000).setAudioBitrate(64000).setMaxFrameRate(24).setSpeed(SPEED_MEDIUM);
+    }
+
+    /**
+     * A profile for good networks: H.264 at 2.5 Mbps, 720 pixels, audio at
+     * 128 kbps, keyframe every 2 seconds.
+     *
+     * @return a new profile
+     */
+    public static EncodingProfile highQualityProfile() {
+        return new EncodingProfile().setCodec(CODEC_H264).setMaxResolution(720).setVideoBitrate(2500000).setAudioBitrate(128000).setKeyframeInterval(2).setSpeed(SPEED_FAST);
+    }
+
+    /**
+     * A profile for a quick preview of the video, encoded in a fraction of
+     * the time of the other profiles: H.264 at 250 kbps, 240 pixels, max 24
+     * fps, audio at 48 kbps, keyframe every second and the fastest encoding.
+     * It's the first stage of
+     * {@link VideoOptimizer#optimizeVideoProgressive(java.lang.String, net.informaticalibera.videoediting.EncodingProfile, com.codename1.util.OnComplete, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)}.
+     *
+     * @return a new profile
+     */
+    public static EncodingProfile proxyProfile() {
+        return new EncodingProfile().setCodec(CODEC_H264).setMaxResolution(240).setVideoBitrate(250000).setAudioBitrate(48000).setMaxFrameRate(24).setKeyframeInterval(1).setSpeed(SPEED_FASTEST);
+    }
+
+    /**
+     * Returns a copy of this profile.
+     *
+     * @return a new profile with the same settings
+     */
+    public EncodingProfile copy() {
+        EncodingProfile profile = new EncodingProfile();
+        profile.codec = codec;
+        profile.maxResolution = maxResolution;
+        profile.videoBitrate = videoBitrate;
+        profile.audioBitrate = audioBitrate;
+        profile.maxFrameRate = maxFrameRate;
+        profile.keyframeInterval = keyframeInterval;
+        profile.speed = speed;
+        profile.faststart = faststart;
+        profile.fragmentDuration = fragmentDuration;
+        profile.parallelEncoding = parallelEncoding;
+        profile.startTime = startTime;
+        profile.endTime = endTime;
+        return profile;
+    }
+
+    /**
+     * Target video codec.
+     *
+     * @return one of the CODEC_ constants
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the target video codec.
+     *
+     * @param codec one of the CODEC_ constants
+     * @return this profile
+     */
+    public EncodingProfile setCodec(String codec) {
+        if (!CODEC_MPEG4.equals(codec) && !CODEC_H264.equals(codec) && !CODEC_HEVC.equals(codec)) {
+            throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Max length in pixels of the shorter side of the video (for example 720
+     * for 1280x720 or 720x1280); bigger videos are scaled down keeping the
+     * aspect ratio.
+     *
+     * @return max resolution, 0 to keep the source resolution
+     */
+    public int getMaxResolution() {
+        return maxResolution;
+    }
+
+    /**
+     * Sets the max length in pixels of the shorter side of the video.
+     *
+     * @param maxResolution 0 to keep the source resolution
+     * @return this profile
+     */
+    public EncodingProfile setMaxResolution(int maxResolution) {
+        if (maxResolution < 0) {
+            throw new IllegalArgumentException("maxResolution cannot be negative");
+        }
+        this.maxResolution = maxResolution;
+        return this;
+    }
+
+    /**
+     * Target video bitrate.
+     *
+     * @return bits/sec
+     */
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    /**
+     * Sets the target video bitrate.
+     *
+     * @param videoBitrate bits/sec, greater than 0
+     * @return this profile
+     */
+    public EncodingProfile setVideoBitrate(int videoBitrate) {
+        if (videoBitrate <= 0) {
+            throw new IllegalArgumentException("videoBitrate must be greater than 0");
+        }
+        this.videoBitrate = videoBitrate;
+        return this;
+    }
+
+    /**
+     * Target audio bitrate.
+     *
+     * @return bits/sec, 0 if the source audio is copied as is
+     */
+    public int getAudioBitrate() {
+        return audioBitrate;
+    }
+
+    /**
+     * Sets the target audio bitrate (the audio is encoded in AAC).
+     *
+     * @param audioBitrate bits/sec, 0 to copy the source audio as is
+     * @return this profile
+     */
+    public EncodingProfile setAudioBitrate(int audioBitrate) {
+        if (audioBitrate < 0) {
+            throw new IllegalArgumentException("audioBitrate cannot be negative");
+        }
+        this.audioBitrate = audioBitrate;
+        return this;
+    }
+
+    /**
+     * Max frame rate: videos with a higher frame rate drop frames.
+     *
+     * @return frames/sec, 0 to keep the source frame rate
+     */
+    public int getMaxFrameRate() {
+        return maxFrameRate;
+    }
+
+    /**
+     * Sets the max frame rate.
+     *
+     * @param maxFrameRate frames/sec, 0 to keep the source frame rate
+     * @return this profile
+     */
+    public EncodingProfile setMaxFrameRate(int maxFrameRate) {
+        if (maxFrameRate < 0) {
+            throw new IllegalArgumentException("maxFrameRate cannot be negative");
+        }
+        this.maxFrameRate = maxFrameRate;
+        return this;
+    }
+
+    /**
+     * Interval between keyframes: shorter intervals allow a faster seeking,
+     * but the files are bigger.
+     *
+     * @return seconds, 0 to let the encoder decide
+     */
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    /**
+     * Sets the interval between keyframes.
+     *
+     * @param keyframeInterval seconds, 0 to let the encoder decide
+     * @return this profile
+     */
+    public EncodingProfile setKeyframeInterval(int keyframeInterval) {
+        if (keyframeInterval < 0) {
+            throw new IllegalArgumentException("keyframeInterval cannot be negative");
+        }
+        this.keyframeInterval = keyframeInterval;
+        return this;
+    }
+
+    /**
+     * Encoder speed preset.
+     *
+     * @return one of the SPEED_ constants
+     */
+    public int getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Sets the encoder speed preset: slower encodings produce smaller files
+     * at the same quality.
+     *
+     * @param speed one of the SPEED_ constants
+     * @return this profile
+     */
+    public EncodingProfile setSpeed(int speed) {
+        if (speed < SPEED_FASTEST || speed > SPEED_SLOW) {
+            throw new IllegalArgumentException("Unsupported speed: " + speed);
+        }
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * Returns true if the optimized video must have the "moov" box (the index
+     * of the media) before the media payload, so that it can be played while
+     * it's downloaded.
+     *
+     * @return true by default
+     */
+    public boolean isFaststart() {
+        return faststart;
+    }
+
+    /**
+     * Sets if the optimized video must have the "moov" box before the media
+     * payload: it's requested to the native encoder and, if the encoder
+     * ignores it, the output is remuxed when the optimization completes.
+     *
+     * @param faststart true to produce a streamable video
+     * @return this profile
+     */
+    public EncodingProfile setFaststart(boolean faststart) {
+        this.faststart = faststart;
+        return this;
+    }
+
+    /**
+     * Duration of the fragments of a fragmented output.
+     *
+     * @return seconds, 0 if the output is a regular mp4
+     */
+    public int getFragmentDuration() {
+        return fragmentDuration;
+    }
+
+    /**
+     * <p>
+     * Sets the output to be a fragmented mp4, made of an initialization
+     * segment followed by self-contained fragments of about the given
+     * duration (a fragment always starts with a keyframe): every part can be
+     * uploaded as soon as it's written, while the next ones are being
+     * encoded, see
+     * {@link OptimizationJob#setOnFragmentCallback(net.informaticalibera.videoediting.OnFragment)}.
+     * A fragmented video is always streamable.</p>
+     * <p>
+     * Only Android produces fragmented videos; on iOS the output is a regular
+     * mp4, delivered as a single part when it's complete.</p>
+     *
+     * @param fragmentDuration seconds, 0 for a regular mp4
+     * @return this profile
+     */
+    public EncodingProfile setFragmentDuration(int fragmentDuration) {
+        if (fragmentDuration < 0) {
+            throw new IllegalArgumentException("fragmentDuration cannot be negative");
+        }
+        this.fragmentDuration = fragmentDuration;
+        return this;
+    }
+
+    /**
+     * Returns true if long videos are split into segments encoded at the same
+     * time.
+     *
+     * @return false by default
+     */
+    public boolean isParallelEncoding() {
+        return parallelEncoding;
+    }
+
+    /**
+     * <p>
+     * Sets if long videos (at least 20 seconds) are split at their keyframes
+     * into segments that are encoded at the same time, using all the cores,
+     * and then stitched together without encoding them again; the audio of
+     * the source is added to the stitched video, so it stays in sync.</p>
+     * <p>
+     * Only Android encodes the segments in parallel; on iOS the hardware
+     * encoder is shared, so the video is encoded as a whole. It's ignored for
+     * fragmented outputs and when the video stream is copied as is.</p>
+     *
+     * @param parallelEncoding true to enable the parallel encoding
+     * @return this profile
+     */
+    public EncodingProfile setParallelEncoding(boolean parallelEncoding) {
+        this.parallelEncoding = parallelEncoding;
+        return this;
+    }
+
+    /**
+     * Start of the section of the source that is kept.
+     *
+     * @return ms, 0 if the video is kept from the beginning
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * End of the section of the source that is kept.
+     *
+     * @return ms, 0 if the video is kept up to the end
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * True if only a section of the source is kept, see
+     * {@link #setTimeRange(long, long)}.
+     *
+     * @return true if the video is trimmed
+     */
+    public boolean isTrimmed() {
+        return startTime > 0 || endTime > 0;
+    }
+
+    /**
+     * <p>
+     * Keeps only the given section of the source: the rest is neither decoded
+     * nor encoded, so the encoding time depends on the duration of the
+     * section. The decoding starts from the keyframe that precedes the start
+     * time, instead of the beginning of the video.</p>
+     * <p>
+     * When the video stream is copied as is (see
+     * {@link OptimizationJob#getPath()}), only whole GOPs can be copied: the
+     * section starts from the keyframe that precedes the start time, so it
+     * can be a little longer than requested. Trimmed videos are never
+     * encoded in parallel segments.</p>
+     *
+     * @param startTime ms from the beginning of the source
+     * @param endTime ms from the beginning of the source, greater than
+     * startTime, or 0 to keep the video up to the end
+     * @return this profile
+     */
+    public EncodingProfile setTimeRange(long startTime, long endTime) {
+        if (startTime < 0) {
+            throw new IllegalArgumentException("startTime cannot be negative");
+        }
+        if (endTime != 0 && endTime <= startTime) {
+            throw new IllegalArgumentException("endTime must be greater than startTime, or 0");
+        }
+        this.startTime = startTime;
+        this.endTime = endTime;
+        return this;
+    }
+
+    /**
+     * Decides how to produce the output of the given source: the video stream
+     * is copied as is when its codec, its resolution, its frame rate and its
+     * bitrate already meet this profile. The keyframe interval of the source
+     * is unknown, so it's not considered: a video that meets everything else
+     * is not encoded again only to change it.
+     *
+     * @param source info about the source video, it can be null
+     * @return one of the PATH_ constants of {@link OptimizationJob}
+     */
+    int choosePath(VideoInfo source) {
+        if (source == null || source.getCodec() == null || source.getWidth() <= 0 || source.getHeight() <= 0 || source.getBitrate() <= 0) {
+            return OptimizationJob.PATH_FULL;
+        }
+        String sourceCodec = source.getCodec();
+        boolean compatibleCodec = sourceCodec.equals(codec)
+                // H.264 is smaller than MPEG-4 and more compatible than HEVC
+                || (CODEC_H264.equals(sourceCodec) && !CODEC_H264.equals(codec));
+        if (!compatibleCodec) {
+            return OptimizationJob.PATH_FULL;
+        }
+        if (maxResolution > 0 && Math.min(source.getWidth(), source.getHeight()) > maxResolution) {
+            return OptimizationJob.PATH_FULL;
+        }
+        if (maxFrameRate > 0 && (source.getFrameRate() <= 0 || source.getFrameRate() > maxFrameRate + 0.5)) {
+            return OptimizationJob.PATH_FULL;
+        }
+        // the bitrate of the source includes its audio, that is copied or
+        // encoded again at the profile audio bitrate
+        int audioAllowance = 0;
+        if (source.hasAudio()) {
+            audioAllowance = audioBitrate > 0 ? audioBitrate : AUDIO_ALLOWANCE;
+        }
+        if (source.getBitrate() > (videoBitrate + audioAllowance) * 1.1) {
+            return OptimizationJob.PATH_FULL;
+        }
+        if (audioBitrate > 0 && source.hasAudio()) {
+            return OptimizationJob.PATH_AUDIO_ONLY;
+        }
+        return OptimizationJob.PATH_PASSTHROUGH;
+    }
+
+    /**
+     * Returns this profile in the format passed to
+     * {@link VideoEditingNativeInterface#optimizeVideoForUpload(java.lang.String, java.lang.String, java.lang.String, java.lang.String)},
+     * that is a semicolon separated list of key=value pairs like the one
+     * returned by {@link VideoEditingNativeInterface#getVideoInfo(java.lang.String)}.
+     *
+     * @return the profile for the native code
+     */
+    String toNative() {
+        return "codec=" + codec
+                + ";maxresolution=" + maxResolution
+                + ";videobitrate=" + videoBitrate
+                + ";audiobitrate=" + audioBitrate
+                + ";maxframerate=" + maxFrameRate
+                + ";keyframeinterval=" + keyframeInterval
+                + ";speed=" + speed
+                + ";faststart=" + (faststart ? 1 : 0)
+                + ";fragmentduration=" + fragmentDuration
+                + ";starttime=" + startTime
+                + ";endtime=" + endTime;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodingProfile{" + toNative() + "}";
+    }
+
+}
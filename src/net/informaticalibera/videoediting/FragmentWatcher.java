@@ -0,0 +1,209 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Log;
+import com.codename1.ui.CN;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Watches the output of a fragmented optimization while it's written and hands
+ * the completed parts to the {@link OnFragment} callback of the job.</p>
+ * <p>
+ * It doesn't use any thread or timer: the output is scanned every time the
+ * native code pushes a progress sample, reading only the headers of the boxes
+ * written since the previous scan. A part is ready when the "mdat" box that
+ * follows a "moof" box is entirely in the file; the initialization segment is
+ * delivered together with the first fragment. If the encoder doesn't produce
+ * a fragmented file (an "mdat" box without a "moof" box, whose bytes can be
+ * rewritten when the file is finalized), the whole file is delivered as a
+ * single part when it's complete.</p>
+ *
+ * @author Francesco Galgani
+ */
+final class FragmentWatcher {
+
+    /**
+     * Watchers of the running jobs, keyed by job id; every access is
+     * synchronized on the map itself.
+     */
+    private static final Map<String, FragmentWatcher> watchers = new HashMap<>();
+
+    private final OptimizationJob job;
+    private final String file;
+    private long scanPosition = 0;
+    private long available = 0;
+    private long delivered = 0;
+    private boolean pending = false;
+    private boolean scanning = false;
+    private boolean fragmented = true;
+    private String lastType;
+    private boolean finished = false;
+
+    private FragmentWatcher(OptimizationJob job) {
+        this.job = job;
+        this.file = job.getOutputFile();
+    }
+
+    /**
+     * Starts watching the output of the given job.
+     *
+     * @param job running job with a fragmented profile
+     */
+    static void register(OptimizationJob job) {
+        synchronized (watchers) {
+            watchers.put(job.getId(), new FragmentWatcher(job));
+        }
+    }
+
+    /**
+     * Stops watching the output of the given job.
+     *
+     * @param jobId opaque id of the job
+     * @return the watcher, or null if the job was not watched
+     */
+    static FragmentWatcher unregister(String jobId) {
+        synchronized (watchers) {
+            return watchers.remove(jobId);
+        }
+    }
+
+    /**
+     * Invoked when the native code pushes a progress sample of the given job.
+     *
+     * @param jobId opaque id of the job
+     */
+    static void poll(String jobId) {
+        FragmentWatcher watcher;
+        synchronized (watchers) {
+            watcher = watchers.get(jobId);
+        }
+        if (watcher != null) {
+            watcher.scan();
+        }
+    }
+
+    /**
+     * Reads the headers of the boxes written since the previous scan and, if
+     * a new part is complete, schedules its delivery.
+     */
+    private void scan() {
+        long position;
+        synchronized (this) {
+            if (finished || pending || scanning || !fragmented) {
+                // the pending delivery will include everything found by the next scans
+                return;
+            }
+            scanning = true;
+            position = scanPosition;
+        }
+        if (!FileSystemStorage.getInstance().exists(file)) {
+            // the encoder didn't create the output yet
+            synchronized (this) {
+                scanning = false;
+            }
+            return;
+        }
+        long length = FileSystemStorage.getInstance().getLength(file);
+        long newAvailable = -1;
+        boolean fragmentedOutput = true;
+        String previousType;
+        synchronized (this) {
+            previousType = lastType;
+        }
+        StorageInput input = null;
+        try {
+            input = new StorageInput(file);
+            byte[] header = new byte[16];
+            while (position + 16 <= length) {
+                Mp4Container.readFully(input, position, header, 0, header.length);
+                long size = Mp4Container.u32(header, 0);
+                if (size == 1) {
+                    size = Mp4Container.u64(header, 8);
+                }
+                if (size < 8 || position + size > length) {
+                    // a box that extends to the end of the file or that is still being written
+                    break;
+                }
+                String type = Mp4Container.fourcc(header, 4);
+                if ("mdat".equals(type)) {
+                    if (!"moof".equals(previousType)) {
+                        fragmentedOutput = false;
+                        break;
+                    }
+                    newAvailable = position + size;
+                }
+                previousType = type;
+                position += size;
+            }
+            synchronized (this) {
+                scanPosition = position;
+                lastType = previousType;
+                fragmented = fragmentedOutput;
+                scanning = false;
+                if (newAvailable <= available || finished || pending) {
+                    return;
+                }
+                available = newAvailable;
+                pending = true;
+            }
+            CN.callSerially(() -> deliver(false));
+        } catch (IOException ex) {
+            Log.p("FragmentWatcher -> Cannot scan " + file + ": " + ex.getMessage(), Log.WARNING);
+            synchronized (this) {
+                scanning = false;
+            }
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers the part of the output that is complete and not yet delivered;
+     * it must be invoked by the EDT, so that the parts are delivered in order.
+     *
+     * @param last true to deliver the remaining bytes of the file, that is
+     * complete
+     */
+    void deliver(boolean last) {
+        long offset;
+        long end;
+        synchronized (this) {
+            pending = false;
+            if (finished) {
+                return;
+            }
+            if (last) {
+                finished = true;
+                available = FileSystemStorage.getInstance().getLength(file);
+            }
+            offset = delivered;
+            end = available;
+            delivered = end;
+        }
+        OnFragment callback = job.getOnFragmentCallback();
+        if (callback != null && (end > offset || last)) {
+            callback.fragmentReady(file, offset, end - offset, last);
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * <p>
+ * Distribution of the values of a metric of {@link Metrics}, for example the
+ * latency of the probes in ms, kept in fixed buckets whose upper bounds
+ * follow the 1-2-5 series (1, 2, 5, 10, 20, 50...), so that recording a value
+ * costs a few comparisons and no allocation.</p>
+ * <p>
+ * The histograms returned by {@link MetricsSnapshot} are copies that are
+ * never modified.</p>
+ *
+ * @author Francesco Galgani
+ */
+public final class Histogram {
+
+    /**
+     * Inclusive upper bounds of the buckets; the last bucket has no upper
+     * bound.
+     */
+    private static final long[] BOUNDS = createBounds();
+
+    private final String name;
+    private final long[] buckets;
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    Histogram(String name) {
+        this.name = name;
+        this.buckets = new long[BOUNDS.length + 1];
+    }
+
+    private static long[] createBounds() {
+        // from 1 to 5*10^8: about 6 days in ms
+        long[] bounds = new long[27];
+        long decade = 1;
+        for (int i = 0; i < bounds.length; i += 3) {
+            bounds[i] = decade;
+            bounds[i + 1] = decade * 2;
+            bounds[i + 2] = decade * 5;
+            decade *= 10;
+        }
+        return bounds;
+    }
+
+    /**
+     * Adds a value; the caller must hold the lock of {@link Metrics}.
+     *
+     * @param value to add
+     */
+    void record(long value) {
+        int index = 0;
+        while (index < BOUNDS.length && value > BOUNDS[index]) {
+            index++;
+        }
+        buckets[index]++;
+        count++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Returns a copy of this histogram; the caller must hold the lock of
+     * {@link Metrics}.
+     *
+     * @return copy
+     */
+    Histogram copy() {
+        Histogram copy = new Histogram(name);
+        System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+        copy.count = count;
+        copy.sum = sum;
+        copy.min = min;
+        copy.max = max;
+        return copy;
+    }
+
+    /**
+     * Name of the metric.
+     *
+     * @return name, for example {@link Metrics#PROBE}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of recorded values.
+     *
+     * @return count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Sum of the recorded values.
+     *
+     * @return sum
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * Smallest recorded value.
+     *
+     * @return min, or 0 if there are no values
+     */
+    public long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    /**
+     * Largest recorded value.
+     *
+     * @return max, or 0 if there are no values
+     */
+    public long getMax() {
+        return count > 0 ? max : 0;
+    }
+
+    /**
+     * Average of the recorded values.
+     *
+     * @return mean, or 0 if there are no values
+     */
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Estimates the given percentile as the upper bound of the bucket that
+     * contains it, limited by the largest recorded value.
+     *
+     * @param percentile from 0 to 100, for example 50 for the median or 99
+     * @return estimated value, or 0 if there are no values
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return i < BOUNDS.length ? Math.max(min, Math.min(max, BOUNDS[i])) : max;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Number of buckets.
+     *
+     * @return buckets
+     */
+    public int getBucketCount() {
+        return buckets.length;
+    }
+
+    /**
+     * Inclusive upper bound of the given bucket; every bucket holds the values
+     * greater than the upper bound of the previous one.
+     *
+     * @param index from 0 to {@link #getBucketCount()} - 1
+     * @return upper bound, Long.MAX_VALUE for the last bucket
+     */
+    public long getBucketUpperBound(int index) {
+        return index < BOUNDS.length ? BOUNDS[index] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Number of values recorded in the given bucket.
+     *
+     * @param index from 0 to {@link #getBucketCount()} - 1
+     * @return count
+     */
+    public long getBucketValue(int index) {
+        return buckets[index];
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram{name=" + name + ", count=" + count + ", mean=" + getMean() + ", p50=" + getPercentile(50)
+                + ", p90=" + getPercentile(90) + ", p99=" + getPercentile(99) + ", max=" + getMax() + "}";
+    }
+
+}
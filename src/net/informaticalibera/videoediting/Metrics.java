@@ -0,0 +1,314 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Registry of the metrics of this library, shared by all the instances of
+ * {@link VideoOptimizer} (see {@link VideoOptimizer#getMetrics()}): the
+ * latency histograms of the probes, of the previews, of the thumbnails, of
+ * the optimizations and of their wait in the queue, the histograms of the
+ * compression ratio and of the encoding speed, the totals of the input and
+ * output bytes and the counts of the failures and of the cancellations by
+ * cause.</p>
+ * <p>
+ * It's disabled by default: in that case every instrumented operation only
+ * reads a flag. The metrics can be read with {@link #snapshot()} or exported
+ * periodically to a {@link MetricsSink}; the export is checked when a value is
+ * recorded, so no thread or timer is used.</p>
+ * <p>
+ * The ratios are recorded as integers multiplied by 100: a compression ratio
+ * of 350 means that the output is 3.5 times smaller than the input, an
+ * encoding speed of 200 means that a second of video is encoded in 500
+ * ms.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class Metrics {
+
+    /**
+     * Histogram of the latency (ms) of the native probes of the video info
+     * (cache misses only).
+     */
+    public static final String PROBE = "probe";
+
+    /**
+     * Histogram of the latency (ms) of the extraction of the previews (cache
+     * misses only).
+     */
+    public static final String PREVIEW = "preview";
+
+    /**
+     * Histogram of the latency (ms) of the extraction of the thumbnails.
+     */
+    public static final String THUMBNAILS = "thumbnails";
+
+    /**
+     * Histogram of the latency (ms) of the completed optimizations, from
+     * their start to their completion.
+     */
+    public static final String OPTIMIZE = "optimize";
+
+    /**
+     * Histogram of the time (ms) spent by the optimizations in the queue
+     * before their start.
+     */
+    public static final String QUEUE_WAIT = "queue_wait";
+
+    /**
+     * Histogram of the size of the input divided by the size of the output of
+     * the completed optimizations, multiplied by 100.
+     */
+    public static final String COMPRESSION_RATIO = "compression_ratio";
+
+    /**
+     * Histogram of the media duration divided by the encoding time of the
+     * completed optimizations, multiplied by 100.
+     */
+    public static final String SPEED_RATIO = "speed_ratio";
+
+    /**
+     * Counter of the bytes of the inputs of the completed optimizations.
+     */
+    public static final String INPUT_BYTES = "input_bytes";
+
+    /**
+     * Counter of the bytes of the outputs of the completed optimizations.
+     */
+    public static final String OUTPUT_BYTES = "output_bytes";
+
+    /**
+     * Prefix of the counters of the failed requests, followed by the name of
+     * the operation and, for the optimizations, by the encoding path: for
+     * example "failed.probe" or "failed.optimize.full".
+     */
+    public static final String FAILED = "failed.";
+
+    /**
+     * Prefix of the counters of the cancelled optimizations, followed by
+     * "queued" or "running".
+     */
+    public static final String CANCELLED = "cancelled.";
+
+    /**
+     * Counter of the optimizations refused because the queue was full.
+     */
+    public static final String REJECTED = "rejected";
+
+    private final LinkedHashMap<String, long[]> counters = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Histogram> histograms = new LinkedHashMap<>();
+    private volatile boolean enabled;
+    private MetricsSink sink;
+    private long exportInterval;
+    private long lastExport;
+    private CallbackExecutor executor = CallbackExecutor.EDT;
+
+    Metrics() {
+    }
+
+    /**
+     * Returns true if the metrics are recorded.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the recording of the metrics; the values already
+     * recorded are kept.
+     *
+     * @param enabled false by default
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Sets the sink that receives a snapshot at most every intervalMillis,
+     * when a new value is recorded.
+     *
+     * @param sink null to remove it
+     * @param intervalMillis min time between two exports, at least 1000
+     */
+    public void setSink(MetricsSink sink, long intervalMillis) {
+        if (sink != null && intervalMillis < 1000) {
+            throw new IllegalArgumentException("intervalMillis must be at least 1000");
+        }
+        synchronized (this) {
+            this.sink = sink;
+            this.exportInterval = intervalMillis;
+            this.lastExport = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The sink of the periodic snapshots.
+     *
+     * @return sink, or null
+     */
+    public synchronized MetricsSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Executor of the sink.
+     *
+     * @return executor
+     */
+    public synchronized CallbackExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor of the sink, by default {@link CallbackExecutor#EDT}.
+     *
+     * @param executor not null
+     */
+    public synchronized void setExecutor(CallbackExecutor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Returns a copy of the current counters and histograms.
+     *
+     * @return snapshot
+     */
+    public synchronized MetricsSnapshot snapshot() {
+        LinkedHashMap<String, Long> counterCopy = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+            counterCopy.put(entry.getKey(), entry.getValue()[0]);
+        }
+        LinkedHashMap<String, Histogram> histogramCopy = new LinkedHashMap<>();
+        for (Histogram histogram : histograms.values()) {
+            histogramCopy.put(histogram.getName(), histogram.copy());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), counterCopy, histogramCopy);
+    }
+
+    /**
+     * Exports a snapshot to the sink now, if there is a sink.
+     */
+    public void flush() {
+        MetricsSink target;
+        CallbackExecutor targetExecutor;
+        synchronized (this) {
+            if (sink == null) {
+                return;
+            }
+            lastExport = System.currentTimeMillis();
+            target = sink;
+            targetExecutor = executor;
+        }
+        export(target, targetExecutor, snapshot());
+    }
+
+    /**
+     * Removes all the recorded values.
+     */
+    public synchronized void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /**
+     * Returns the start time of an operation to measure.
+     *
+     * @return ms since epoch, or 0 if the metrics are disabled
+     */
+    long start() {
+        return enabled ? System.currentTimeMillis() : 0;
+    }
+
+    /**
+     * Records the latency of an operation.
+     *
+     * @param name of the histogram
+     * @param startTime returned by {@link #start()}, nothing is recorded if
+     * it's 0
+     */
+    void recordSince(String name, long startTime) {
+        if (startTime > 0 && enabled) {
+            record(name, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Adds a value to the given histogram.
+     *
+     * @param name of the histogram
+     * @param value to add
+     */
+    void record(String name, long value) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            Histogram histogram = histograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram(name);
+                histograms.put(name, histogram);
+            }
+            histogram.record(value);
+        }
+        exportIfDue();
+    }
+
+    /**
+     * Adds the given amount to the given counter.
+     *
+     * @param name of the counter
+     * @param delta amount to add
+     */
+    void increment(String name, long delta) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            long[] counter = counters.get(name);
+            if (counter == null) {
+                counter = new long[1];
+                counters.put(name, counter);
+            }
+            counter[0] += delta;
+        }
+        exportIfDue();
+    }
+
+    private void exportIfDue() {
+        MetricsSink target;
+        CallbackExecutor targetExecutor;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (sink == null || now - lastExport < exportInterval) {
+                return;
+            }
+            lastExport = now;
+            target = sink;
+            targetExecutor = executor;
+        }
+        export(target, targetExecutor, snapshot());
+    }
+
+    private static void export(MetricsSink target, CallbackExecutor targetExecutor, MetricsSnapshot snapshot) {
+        targetExecutor.execute(() -> target.export(snapshot));
+    }
+
+}
@@ -0,0 +1,32 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * Receives the periodic snapshots of {@link Metrics}, for example to log them
+ * or to send them to an analytics server. See
+ * {@link Metrics#setSink(net.informaticalibera.videoediting.MetricsSink, long)}.
+ *
+ * @author Francesco Galgani
+ */
+public interface MetricsSink {
+
+    /**
+     * Invoked with the executor of {@link Metrics}, by default on the EDT:
+     * any slow work (like a network request) must be done asynchronously.
+     *
+     * @param snapshot the current metrics
+     */
+    public void export(MetricsSnapshot snapshot);
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable copy of the counters and of the histograms of {@link Metrics} at
+ * a given time, that can be read by the app or exported as JSON.
+ *
+ * @author Francesco Galgani
+ */
+public final class MetricsSnapshot {
+
+    private final long time;
+    private final LinkedHashMap<String, Long> counters;
+    private final LinkedHashMap<String, Histogram> histograms;
+
+    MetricsSnapshot(long time, LinkedHashMap<String, Long> counters, LinkedHashMap<String, Histogram> histograms) {
+        this.time = time;
+        this.counters = counters;
+        this.histograms = histograms;
+    }
+
+    /**
+     * Time of the snapshot.
+     *
+     * @return ms since epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Names of the counters that have been incremented at least once.
+     *
+     * @return names, in order of first use
+     */
+    public String[] getCounterNames() {
+        return counters.keySet().toArray(new String[counters.size()]);
+    }
+
+    /**
+     * Value of the given counter.
+     *
+     * @param name for example {@link Metrics#INPUT_BYTES}
+     * @return value, 0 if the counter has never been incremented
+     */
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Names of the histograms that have at least a value.
+     *
+     * @return names, in order of first use
+     */
+    public String[] getHistogramNames() {
+        return histograms.keySet().toArray(new String[histograms.size()]);
+    }
+
+    /**
+     * The given histogram.
+     *
+     * @param name for example {@link Metrics#PROBE}
+     * @return histogram, or null if it has no values
+     */
+    public Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    /**
+     * Exports this snapshot as a JSON object, for example:
+     * {"time":1571234567890,"counters":{"input_bytes":52428800},"histograms":{"probe":{"count":3,"sum":77,"min":12,"max":45,"p50":20,"p90":45,"p99":45,"buckets":[[20,2],[50,1]]}}};
+     * the buckets are pairs of upper bound (-1 for the last bucket) and count,
+     * the empty buckets are omitted.
+     *
+     * @return JSON
+     */
+    public String toJSON() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":").append(time).append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+        }
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Histogram histogram : histograms.values()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(histogram.getName()).append("\":{\"count\":").append(histogram.getCount())
+                    .append(",\"sum\":").append(histogram.getSum())
+                    .append(",\"min\":").append(histogram.getMin())
+                    .append(",\"max\":").append(histogram.getMax())
+                    .append(",\"p50\":").append(histogram.getPercentile(50))
+                    .append(",\"p90\":").append(histogram.getPercentile(90))
+                    .append(",\"p99\":").append(histogram.getPercentile(99))
+                    .append(",\"buckets\":[");
+            boolean firstBucket = true;
+            for (int i = 0; i < histogram.getBucketCount(); i++) {
+                long value = histogram.getBucketValue(i);
+                if (value == 0) {
+                    continue;
+                }
+                if (!firstBucket) {
+                    json.append(',');
+                }
+                firstBucket = false;
+                long bound = histogram.getBucketUpperBound(i);
+                json.append('[').append(bound != Long.MAX_VALUE ? bound : -1).append(',').append(value).append(']');
+            }
+            json.append("]}");
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{time=" + time + ", counters=" + counters + ", histograms=" + histograms.values() + "}";
+    }
+
+}
@@ -0,0 +1,724 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Pure Java parser of the ISO Base Media File Format (MP4 and QuickTime MOV
+ * files).</p>
+ * <p>
+ * It reads only the headers of the top-level boxes and the content of the
+ * "moov" box, so it never touches the media payload (the "mdat" box) and it
+ * doesn't need any decoder: probing a multi-GB file costs only the size of its
+ * "moov" box in I/O.</p>
+ *
+ * @author Francesco Galgani
+ */
+final class Mp4Container {
+
+    /**
+     * Upper limit to the size of the "moov" box that is loaded in memory, to
+     * protect against corrupted files.
+     */
+    private static final long MAX_MOOV_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Sample tables used to build the {@link TrackIndex}, the constants are
+     * their positions in TABLE_TYPES.
+     */
+    private static final String[] TABLE_TYPES = {"stts", "stss", "ctts", "stsz", "stsc", "stco", "co64"};
+    private static final int STTS = 0;
+    private static final int STSS = 1;
+    private static final int CTTS = 2;
+    private static final int STSZ = 3;
+    private static final int STSC = 4;
+    private static final int STCO = 5;
+    private static final int CO64 = 6;
+    private static final int TABLE_COUNT = 7;
+
+    private final List<Box> boxes = new ArrayList<>();
+    private final List<Track> tracks = new ArrayList<>();
+    private String majorBrand;
+    private long timescale;
+    private long duration;
+    private long fileLength;
+    private final boolean indexed;
+
+    private Mp4Container(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * A top-level box of the file.
+     */
+    static final class Box {
+
+        final String type;
+        final long offset;
+        final long size;
+        final int headerSize;
+
+        Box(String type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+    }
+
+    /**
+     * A track ("trak" box) of the movie.
+     */
+    static final class Track {
+
+        int trackId;
+        String handlerType;
+        String codec;
+        long timescale;
+        long duration;
+        int width;
+        int height;
+        int rotation;
+        int sampleCount;
+        long totalSampleBytes;
+        /**
+         * Index of the samples, only if the container was parsed with the
+         * indexes and the track has all the needed sample tables.
+         */
+        TrackIndex index;
+
+        boolean isVideo() {
+            return "vide".equals(handlerType);
+        }
+
+        boolean isAudio() {
+            return "soun".equals(handlerType);
+        }
+
+        /**
+         * Duration of the track in milliseconds, as declared in its media
+         * header.
+         *
+         * @return duration in ms, or 0 if unknown
+         */
+        long getDurationMillis() {
+            if (timescale <= 0) {
+                return 0;
+            }
+            return duration * 1000 / timescale;
+        }
+    }
+
+    /**
+     * Parses the given source, without building the indexes of the tracks.
+     *
+     * @param input source to parse, it's not closed by this method
+     * @return the parsed container
+     * @throws IOException if the source cannot be read or if it's not a valid
+     * MP4/MOV file
+     */
+    static Mp4Container parse(RandomAccessInput input) throws IOException {
+        return parse(input, false);
+    }
+
+    /**
+     * Parses the given source.
+     *
+     * @param input source to parse, it's not closed by this method
+     * @param indexed true to build the {@link TrackIndex} of every track
+     * @return the parsed container
+     * @throws IOException if the source cannot be read or if it's not a valid
+     * MP4/MOV file
+     */
+    static Mp4Container parse(RandomAccessInput input, boolean indexed) throws IOException {
+        Mp4Container container = new Mp4Container(indexed);
+        container.fileLength = input.length();
+        byte[] header = new byte[16];
+        byte[] moov = null;
+        long position = 0;
+        while (position + 8 <= container.fileLength) {
+            int available = (int) Math.min(header.length, container.fileLength - position);
+            readFully(input, position, header, 0, available);
+            long size = u32(header, 0);
+            String type = fourcc(header, 4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (available < 16) {
+                    break;
+                }
+                size = u64(header, 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                // the box extends to the end of the file
+                size = container.fileLength - position;
+            }
+            if (position == 0 && !isValidType(type)) {
+                throw new IOException("Not an MP4/MOV file");
+            }
+            if (size < headerSize) {
+                throw new IOException("Invalid size of the box \"" + type + "\" at offset " + position);
+            }
+            if (position + size > container.fileLength) {
+                // truncated file, we keep what we have
+                size = container.fileLength - position;
+            }
+            container.boxes.add(new Box(type, position, size, headerSize));
+            if ("ftyp".equals(type) && headerSize == 8 && available >= 12) {
+                container.majorBrand = fourcc(header, 8);
+            } else if ("moov".equals(type) && moov == null) {
+                long moovSize = size - headerSize;
+                if (moovSize > MAX_MOOV_SIZE) {
+                    throw new IOException("The moov box is too big: " + moovSize + " bytes");
+                }
+                moov = new byte[(int) moovSize];
+                readFully(input, position + headerSize, moov, 0, moov.length);
+            }
+            position += size;
+        }
+        if (moov == null) {
+            throw new IOException("The moov box is missing");
+        }
+        try {
+            container.parseMoov(moov, 0, moov.length);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("The moov box is corrupted");
+        }
+        return container;
+    }
+
+    /**
+     * Returns the top-level boxes, in file order.
+     *
+     * @return boxes
+     */
+    List<Box> getBoxes() {
+        return boxes;
+    }
+
+    /**
+     * Returns the first top-level box of the given type.
+     *
+     * @param type four characters code
+     * @return box or null
+     */
+    Box getBox(String type) {
+        for (Box box : boxes) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the tracks, in file order.
+     *
+     * @return tracks
+     */
+    List<Track> getTracks() {
+        return tracks;
+    }
+
+    /**
+     * Returns the first video track, or null if there isn't any.
+     *
+     * @return track or null
+     */
+    Track getVideoTrack() {
+        for (Track track : tracks) {
+            if (track.isVideo()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first audio track, or null if there isn't any.
+     *
+     * @return track or null
+     */
+    Track getAudioTrack() {
+        for (Track track : tracks) {
+            if (track.isAudio()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the major brand declared in the "ftyp" box (for example "isom"
+     * or "qt  "), or null if not available.
+     *
+     * @return major brand or null
+     */
+    String getMajorBrand() {
+        return majorBrand;
+    }
+
+    /**
+     * Length of the parsed file in bytes.
+     *
+     * @return length
+     */
+    long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Duration of the movie in milliseconds; if the movie header doesn't
+     * declare it, the duration of the longest track is used.
+     *
+     * @return duration in ms
+     */
+    long getDurationMillis() {
+        long result = timescale > 0 ? duration * 1000 / timescale : 0;
+        if (result <= 0) {
+            for (Track track : tracks) {
+                result = Math.max(result, track.getDurationMillis());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Width of the video as displayed, that is with the rotation matrix
+     * applied.
+     *
+     * @return width, or 0 if there isn't a video track
+     */
+    int getWidth() {
+        Track video = getVideoTrack();
+        if (video == null) {
+            return 0;
+        }
+        return video.rotation == 90 || video.rotation == 270 ? video.height : video.width;
+    }
+
+    /**
+     * Height of the video as displayed, that is with the rotation matrix
+     * applied.
+     *
+     * @return height, or 0 if there isn't a video track
+     */
+    int getHeight() {
+        Track video = getVideoTrack();
+        if (video == null) {
+            return 0;
+        }
+        return video.rotation == 90 || video.rotation == 270 ? video.width : video.height;
+    }
+
+    /**
+     * Clockwise rotation of the video, as declared by the matrix of its track
+     * header.
+     *
+     * @return 0, 90, 180 or 270
+     */
+    int getRotation() {
+        Track video = getVideoTrack();
+        return video != null ? video.rotation : 0;
+    }
+
+    /**
+     * Codec of the video track as a four characters code (for example "avc1",
+     * "hvc1" or "mp4v"), or null if there isn't a video track.
+     *
+     * @return codec or null
+     */
+    String getCodec() {
+        Track video = getVideoTrack();
+        return video != null ? video.codec : null;
+    }
+
+    /**
+     * True average bitrate of the file, computed from the sizes of all the
+     * samples of all the tracks.
+     *
+     * @return bits/sec, or -1 if the duration is unknown
+     */
+    int getBitrate() {
+        long durationMillis = getDurationMillis();
+        if (durationMillis <= 0) {
+            return -1;
+        }
+        long totalBytes = 0;
+        for (Track track : tracks) {
+            totalBytes += track.totalSampleBytes;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, totalBytes * 8 * 1000 / durationMillis);
+    }
+
+    private void parseMoov(byte[] data, int start, int end) {
+        BoxIterator children = new BoxIterator(data, start, end);
+        while (children.next()) {
+            if ("mvhd".equals(children.type)) {
+                int offset = children.bodyStart;
+                if (data[offset] == 1) {
+                    timescale = u32(data, offset + 20);
+                    duration = u64(data, offset + 24);
+                } else {
+                    timescale = u32(data, offset + 12);
+                    duration = u32(data, offset + 16);
+                }
+            } else if ("trak".equals(children.type)) {
+                Track track = new Track();
+                parseTrak(data, children.bodyStart, children.boxEnd, track);
+                if (track.handlerType != null) {
+                    tracks.add(track);
+                }
+            }
+        }
+    }
+
+    private void parseTrak(byte[] data, int start, int end, Track track) {
+        BoxIterator children = new BoxIterator(data, start, end);
+        while (children.next()) {
+            if ("tkhd".equals(children.type)) {
+                parseTkhd(data, children.bodyStart, track);
+            } else if ("mdia".equals(children.type)) {
+                parseMdia(data, children.bodyStart, children.boxEnd, track);
+            }
+        }
+    }
+
+    private void parseTkhd(byte[] data, int offset, Track track) {
+        int version = data[offset];
+        if (version == 1) {
+            track.trackId = (int) u32(data, offset + 20);
+            offset += 36;
+        } else {
+            track.trackId = (int) u32(data, offset + 12);
+            offset += 24;
+        }
+        // reserved (8), layer (2), alternate group (2), volume (2), reserved (2)
+        offset += 16;
+        int a = s32(data, offset);
+        int b = s32(data, offset + 4);
+        int c = s32(data, offset + 12);
+        int d = s32(data, offset + 16);
+        offset += 36;
+        track.width = (int) (u32(data, offset) >>> 16);
+        track.height = (int) (u32(data, offset + 4) >>> 16);
+        track.rotation = rotationOf(a, b, c, d);
+    }
+
+    private void parseMdia(byte[] data, int start, int end, Track track) {
+        BoxIterator children = new BoxIterator(data, start, end);
+        while (children.next()) {
+            if ("mdhd".equals(children.type)) {
+                int offset = children.bodyStart;
+                if (data[offset] == 1) {
+                    track.timescale = u32(data, offset + 20);
+                    track.duration = u64(data, offset + 24);
+                } else {
+                    track.timescale = u32(data, offset + 12);
+                    track.duration = u32(data, offset + 16);
+                }
+            } else if ("hdlr".equals(children.type)) {
+                track.handlerType = fourcc(data, children.bodyStart + 8);
+            } else if ("minf".equals(children.type)) {
+                BoxIterator minf = new BoxIterator(data, children.bodyStart, children.boxEnd);
+                while (minf.next()) {
+                    if ("stbl".equals(minf.type)) {
+                        parseStbl(data, minf.bodyStart, minf.boxEnd, track);
+                    }
+                }
+            }
+        }
+    }
+
+    private void parseStbl(byte[] data, int start, int end, Track track) {
+        // bodies and ends of the sample tables, used to build the index
+        int[] tables = new int[TABLE_COUNT * 2];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = -1;
+        }
+        BoxIterator children = new BoxIterator(data, start, end);
+        while (children.next()) {
+            int offset = children.bodyStart;
+            int table = tableOf(children.type);
+            if (table >= 0) {
+                tables[table * 2] = offset;
+                tables[table * 2 + 1] = children.boxEnd;
+            }
+            if ("stsd".equals(children.type)) {
+                long entries = u32(data, offset + 4);
+                int entry = offset + 8;
+                if (entries > 0 && entry + 8 <= children.boxEnd) {
+                    track.codec = fourcc(data, entry + 4);
+                    // fallback for tracks without dimensions in the track header
+                    if (track.isVideo() && track.width == 0 && entry + 36 <= children.boxEnd) {
+                        track.width = u16(data, entry + 32);
+                        track.height = u16(data, entry + 34);
+                    }
+                }
+            } else if ("stsz".equals(children.type)) {
+                long sampleSize = u32(data, offset + 4);
+                long sampleCount = u32(data, offset + 8);
+                track.sampleCount = (int) sampleCount;
+                if (sampleSize != 0) {
+                    track.totalSampleBytes = sampleSize * sampleCount;
+                } else {
+                    long total = 0;
+                    int position = offset + 12;
+                    for (long i = 0; i < sampleCount && position + 4 <= children.boxEnd; i++) {
+                        total += u32(data, position);
+                        position += 4;
+                    }
+                    track.totalSampleBytes = total;
+                }
+            }
+        }
+        if (indexed) {
+            track.index = buildIndex(data, tables, track.timescale);
+        }
+    }
+
+    private static int tableOf(String type) {
+        for (int i = 0; i < TABLE_TYPES.length; i++) {
+            if (TABLE_TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of entries of a table, limited to the entries that are really
+     * contained in its box, so that a corrupted count cannot allocate huge
+     * arrays.
+     */
+    private static int entryCount(long declared, int firstEntry, int boxEnd, int entrySize) {
+        return (int) Math.max(0, Math.min(declared, (boxEnd - firstEntry) / entrySize));
+    }
+
+    /**
+     * Builds the index of a track from its sample tables, keeping them in
+     * their compact form.
+     *
+     * @param data moov bytes
+     * @param tables body and end of every sample table, -1 if missing
+     * @param timescale of the track
+     * @return the index, or null if a mandatory table is missing
+     */
+    private static TrackIndex buildIndex(byte[] data, int[] tables, long timescale) {
+        int stts = tables[STTS * 2];
+        int stsz = tables[STSZ * 2];
+        int stsc = tables[STSC * 2];
+        boolean wide = tables[STCO * 2] < 0;
+        int chunkTable = wide ? CO64 : STCO;
+        int chunks = tables[chunkTable * 2];
+        if (stts < 0 || stsz < 0 || stsc < 0 || chunks < 0) {
+            return null;
+        }
+
+        // sizes: a single value if all the samples have the same size
+        int constantSampleSize = (int) u32(data, stsz + 4);
+        int sampleCount;
+        int[] sampleSizes = null;
+        if (constantSampleSize == 0) {
+            sampleCount = entryCount(u32(data, stsz + 8), stsz + 12, tables[STSZ * 2 + 1], 4);
+            sampleSizes = new int[sampleCount];
+            for (int i = 0; i < sampleCount; i++) {
+                sampleSizes[i] = s32(data, stsz + 12 + i * 4);
+            }
+        } else {
+            sampleCount = (int) Math.min(Integer.MAX_VALUE, u32(data, stsz + 8));
+        }
+
+        // chunk offsets and, from the sample-to-chunk runs, the first sample of every chunk
+        int entrySize = wide ? 8 : 4;
+        int chunkCount = entryCount(u32(data, chunks + 4), chunks + 8, tables[chunkTable * 2 + 1], entrySize);
+        long[] chunkOffsets = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets[i] = wide ? u64(data, chunks + 8 + i * 8) : u32(data, chunks + 8 + i * 4);
+        }
+        int stscCount = entryCount(u32(data, stsc + 4), stsc + 8, tables[STSC * 2 + 1], 12);
+        int[] chunkFirstSamples = new int[chunkCount];
+        int stscIndex = 0;
+        long sample = 0;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            while (stscIndex + 1 < stscCount && u32(data, stsc + 8 + (stscIndex + 1) * 12) <= chunk + 1) {
+                stscIndex++;
+            }
+            chunkFirstSamples[chunk] = (int) Math.min(sample, sampleCount);
+            if (stscCount > 0) {
+                sample += u32(data, stsc + 8 + stscIndex * 12 + 4);
+            }
+        }
+
+        // 1-based sync samples
+        int[] syncSamples = null;
+        int stss = tables[STSS * 2];
+        if (stss >= 0) {
+            int syncCount = entryCount(u32(data, stss + 4), stss + 8, tables[STSS * 2 + 1], 4);
+            syncSamples = new int[syncCount];
+            for (int i = 0; i < syncCount; i++) {
+                syncSamples[i] = (int) (u32(data, stss + 8 + i * 4) - 1);
+            }
+        }
+
+        // decoding times, as runs of samples with the same duration
+        int sttsCount = entryCount(u32(data, stts + 4), stts + 8, tables[STTS * 2 + 1], 8);
+        int[] timeRunStarts = new int[sttsCount];
+        long[] timeRunTimes = new long[sttsCount];
+        int[] timeRunDeltas = new int[sttsCount];
+        sample = 0;
+        long time = 0;
+        for (int i = 0; i < sttsCount; i++) {
+            long count = u32(data, stts + 8 + i * 8);
+            timeRunStarts[i] = (int) Math.min(sample, Integer.MAX_VALUE);
+            timeRunTimes[i] = time;
+            timeRunDeltas[i] = s32(data, stts + 12 + i * 8);
+            sample += count;
+            time += count * timeRunDeltas[i];
+        }
+
+        // composition offsets, as runs of samples with the same offset
+        int[] offsetRunStarts = null;
+        int[] offsetRunValues = null;
+        int ctts = tables[CTTS * 2];
+        if (ctts >= 0) {
+            int cttsCount = entryCount(u32(data, ctts + 4), ctts + 8, tables[CTTS * 2 + 1], 8);
+            offsetRunStarts = new int[cttsCount];
+            offsetRunValues = new int[cttsCount];
+            sample = 0;
+            for (int i = 0; i < cttsCount; i++) {
+                offsetRunStarts[i] = (int) Math.min(sample, Integer.MAX_VALUE);
+                // the version 0 declares unsigned offsets, but the negative ones are common anyway
+                offsetRunValues[i] = s32(data, ctts + 12 + i * 8);
+                sample += u32(data, ctts + 8 + i * 8);
+            }
+        }
+        return new TrackIndex(timescale, sampleCount, constantSampleSize, sampleSizes, chunkOffsets, chunkFirstSamples,
+                syncSamples, timeRunStarts, timeRunTimes, timeRunDeltas, offsetRunStarts, offsetRunValues);
+    }
+
+    /**
+     * Gets the clockwise rotation from the first two columns of the track
+     * matrix (16.16 fixed point values).
+     */
+    private static int rotationOf(int a, int b, int c, int d) {
+        if (a == 0 && b > 0 && c < 0 && d == 0) {
+            return 90;
+        } else if (a < 0 && b == 0 && c == 0 && d < 0) {
+            return 180;
+        } else if (a == 0 && b < 0 && c > 0 && d == 0) {
+            return 270;
+        }
+        return 0;
+    }
+
+    private static boolean isValidType(String type) {
+        for (int i = 0; i < type.length(); i++) {
+            char ch = type.charAt(i);
+            if (ch < 0x20 || ch > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads exactly length bytes from the given position.
+     *
+     * @throws IOException if the end of the source is reached before
+     */
+    static void readFully(RandomAccessInput input, long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = input.read(position, buffer, offset, length);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            position += read;
+            offset += read;
+            length -= read;
+        }
+    }
+
+    static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    static int s32(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    static long u32(byte[] data, int offset) {
+        return s32(data, offset) & 0xffffffffL;
+    }
+
+    static long u64(byte[] data, int offset) {
+        return (u32(data, offset) << 32) | u32(data, offset + 4);
+    }
+
+    static String fourcc(byte[] data, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (data[offset + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Iterates over the child boxes contained in a region of a byte array.
+     */
+    static final class BoxIterator {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+        String type;
+        int bodyStart;
+        int boxEnd;
+
+        BoxIterator(byte[] data, int start, int end) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean next() {
+            if (position + 8 > end) {
+                return false;
+            }
+            long size = u32(data, position);
+            int headerSize = 8;
+            if (size == 1) {
+                if (position + 16 > end) {
+                    return false;
+                }
+                size = u64(data, position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < headerSize || position + size > end) {
+                return false;
+            }
+            type = fourcc(data, position + 4);
+            bodyStart = position + headerSize;
+            boxEnd = (int) (position + size);
+            position = boxEnd;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Util;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * "Faststart" remux of MP4/MOV files: the "moov" box is moved before the
+ * first "mdat" box, so that the video can be played while it's downloaded,
+ * and the chunk offsets of the "stco"/"co64" boxes are shifted
+ * accordingly.</p>
+ * <p>
+ * Only the boxes before the media payload and the "moov" box pass through the
+ * Java heap; the media payload is appended to the output by the native code
+ * (see
+ * {@link VideoEditingNativeInterface#appendFileRange(java.lang.String, long, long, java.lang.String)}),
+ * that copies it file to file.</p>
+ *
+ * @author Francesco Galgani
+ */
+final class Mp4Faststart {
+
+    /**
+     * Upper limit to the bytes before the first "mdat" box, that are copied
+     * through the Java heap.
+     */
+    private static final long MAX_HEAD_SIZE = 1024 * 1024;
+
+    private Mp4Faststart() {
+    }
+
+    /**
+     * Returns true if the "moov" box of the given container is before its
+     * media payload.
+     *
+     * @param container parsed file
+     * @return true if the file is already streamable
+     */
+    static boolean isFaststart(Mp4Container container) {
+        Mp4Container.Box moov = container.getBox("moov");
+        Mp4Container.Box mdat = container.getBox("mdat");
+        return moov != null && (mdat == null || moov.offset < mdat.offset);
+    }
+
+    /**
+     * Returns true if the given file is a valid MP4/MOV file with the "moov"
+     * box before the media payload.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @return true if the file is already streamable
+     * @throws IOException if the file is not a valid MP4/MOV file
+     */
+    static boolean isFaststart(String videoFile) throws IOException {
+        StorageInput input = new StorageInput(videoFile);
+        try {
+            return isFaststart(Mp4Container.parse(input));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes to outputFile a copy of inputFile with the "moov" box moved before
+     * the media payload; if inputFile is already streamable, it's copied as
+     * is. An existing outputFile is overwritten.
+     *
+     * @param videoEditing native interface used to copy the media payload
+     * @param inputFile placed in FileSystemStorage
+     * @param outputFile placed in FileSystemStorage
+     * @throws IOException if inputFile is not a valid MP4/MOV file or in case
+     * of I/O error
+     */
+    static void remux(VideoEditingNativeInterface videoEditing, String inputFile, String outputFile) throws IOException {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (fs.exists(outputFile)) {
+            fs.delete(outputFile);
+        }
+        StorageInput input = new StorageInput(inputFile);
+        try {
+            Mp4Container container = Mp4Container.parse(input);
+            if (isFaststart(container)) {
+                append(videoEditing, inputFile, 0, container.getFileLength(), outputFile);
+                return;
+            }
+            Mp4Container.Box moov = container.getBox("moov");
+            Mp4Container.Box mdat = container.getBox("mdat");
+            if (mdat.offset > MAX_HEAD_SIZE) {
+                throw new IOException("Too many bytes before the media payload: " + mdat.offset);
+            }
+            byte[] head = new byte[(int) mdat.offset];
+            Mp4Container.readFully(input, 0, head, 0, head.length);
+            byte[] moovBytes = new byte[(int) moov.size];
+            Mp4Container.readFully(input, moov.offset, moovBytes, 0, moovBytes.length);
+            try {
+                // the payload between the first mdat and the moov moves forward
+                // by the size of the moov, the payload after the moov doesn't move
+                shiftChunkOffsets(moovBytes, moov.headerSize, moovBytes.length, mdat.offset, moov.offset, moov.size);
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw new IOException("The moov box is corrupted");
+            }
+
+            OutputStream out = fs.openOutputStream(outputFile);
+            try {
+                out.write(head);
+                out.write(moovBytes);
+            } finally {
+                Util.cleanup(out);
+            }
+            append(videoEditing, inputFile, mdat.offset, moov.offset - mdat.offset, outputFile);
+            long moovEnd = moov.offset + moov.size;
+            append(videoEditing, inputFile, moovEnd, container.getFileLength() - moovEnd, outputFile);
+        } catch (IOException ex) {
+            if (fs.exists(outputFile)) {
+                fs.delete(outputFile);
+            }
+            throw ex;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void append(VideoEditingNativeInterface videoEditing, String sourceFile, long offset, long length, String destinationFile) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        // it's mandatory to remove the "file://" when accessing to native interfaces
+        if (!videoEditing.appendFileRange(VideoOptimizer.removeFilePrefix(sourceFile), offset, length, VideoOptimizer.removeFilePrefix(destinationFile))) {
+            throw new IOException("Cannot copy " + length + " bytes from " + sourceFile + " to " + destinationFile);
+        }
+    }
+
+    /**
+     * Adds delta to every chunk offset in [from, to) of the "stco" and "co64"
+     * boxes contained in the given region of the moov.
+     */
+    private static void shiftChunkOffsets(byte[] data, int start, int end, long from, long to, long delta) throws IOException {
+        Mp4Container.BoxIterator children = new Mp4Container.BoxIterator(data, start, end);
+        while (children.next()) {
+            String type = children.type;
+            if ("trak".equals(type) || "mdia".equals(type) || "minf".equals(type) || "stbl".equals(type)) {
+                shiftChunkOffsets(data, children.bodyStart, children.boxEnd, from, to, delta);
+            } else if ("stco".equals(type) || "co64".equals(type)) {
+                boolean wide = "co64".equals(type);
+                int entryCount = (int) Mp4Container.u32(data, children.bodyStart + 4);
+                int position = children.bodyStart + 8;
+                for (int i = 0; i < entryCount; i++) {
+                    long offset = wide ? Mp4Container.u64(data, position) : Mp4Container.u32(data, position);
+                    if (offset >= from && offset < to) {
+                        offset += delta;
+                        if (!wide && offset > 0xFFFFFFFFL) {
+                            throw new IOException("The chunk offsets don't fit in the stco box");
+                        }
+                    }
+                    if (wide) {
+                        putU32(data, position, offset >>> 32);
+                        putU32(data, position + 4, offset);
+                        position += 8;
+                    } else {
+                        putU32(data, position, offset);
+                        position += 4;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void putU32(byte[] data, int offset, long value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import com.codename1.ui.CN;
+
+/**
+ * <p>
+ * Buffer of the log messages of the native code, shared by all the instances
+ * of {@link VideoOptimizer} (see {@link VideoOptimizer#getNativeLog()}).</p>
+ * <p>
+ * The native code checks {@link #isLoggable(int)} before building a message,
+ * so the filtered messages cost nothing, and it appends the others to a
+ * bounded ring buffer: appending only stores a reference, it never waits for
+ * the EDT or for the log file. A background thread, started when there are
+ * messages and ended when the buffer is empty, writes them to {@link Log} at
+ * most every {@link #getDrainInterval()} ms, joining the consecutive messages
+ * of the same level in a single entry. When the buffer is full the oldest
+ * messages are dropped and counted.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class NativeLog {
+
+    /**
+     * Default max number of messages waiting to be written.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Default min time between two writes to the log.
+     */
+    public static final int DEFAULT_DRAIN_INTERVAL = 500;
+
+    /**
+     * Max length of a message: longer messages (like the whole output of an
+     * FFmpeg command) are truncated at the beginning, because the errors are
+     * at the end.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 2000;
+
+    private String[] messages = new String[DEFAULT_CAPACITY];
+    private int[] levels = new int[DEFAULT_CAPACITY];
+    private int head;
+    private int size;
+    private long dropped;
+    private long reportedDropped;
+    private boolean draining;
+    private int drainInterval = DEFAULT_DRAIN_INTERVAL;
+    private volatile int minLevel = Log.DEBUG;
+
+    NativeLog() {
+    }
+
+    /**
+     * Returns true if a native message of the given level would be written,
+     * according to {@link #getMinLevel()} and to the level of {@link Log}.
+     *
+     * @param level one of the Log levels
+     * @return true if the message must be built and appended
+     */
+    public boolean isLoggable(int level) {
+        return level >= minLevel && level >= Log.getLevel();
+    }
+
+    /**
+     * Min level of the native messages that are written.
+     *
+     * @return one of the Log levels
+     */
+    public int getMinLevel() {
+        return minLevel;
+    }
+
+    /**
+     * Sets the min level of the native messages that are written, for example
+     * Log.WARNING to keep only the warnings and the errors.
+     *
+     * @param minLevel one of the Log levels, Log.DEBUG by default
+     */
+    public void setMinLevel(int minLevel) {
+        this.minLevel = minLevel;
+    }
+
+    /**
+     * Max number of messages waiting to be written.
+     *
+     * @return capacity
+     */
+    public synchronized int getCapacity() {
+        return messages.length;
+    }
+
+    /**
+     * Sets the max number of messages waiting to be written; if the waiting
+     * messages are more, the oldest ones are dropped.
+     *
+     * @param capacity at least 16
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 16) {
+            throw new IllegalArgumentException("capacity must be at least 16");
+        }
+        String[] newMessages = new String[capacity];
+        int[] newLevels = new int[capacity];
+        int skip = Math.max(0, size - capacity);
+        for (int i = skip; i < size; i++) {
+            int index = (head + i) % messages.length;
+            newMessages[i - skip] = messages[index];
+            newLevels[i - skip] = levels[index];
+        }
+        dropped += skip;
+        size -= skip;
+        head = 0;
+        messages = newMessages;
+        levels = newLevels;
+    }
+
+    /**
+     * Min time between two writes to the log.
+     *
+     * @return ms
+     */
+    public synchronized int getDrainInterval() {
+        return drainInterval;
+    }
+
+    /**
+     * Sets the min time between two writes to the log.
+     *
+     * @param drainInterval ms, at least 10
+     */
+    public synchronized void setDrainInterval(int drainInterval) {
+        if (drainInterval < 10) {
+            throw new IllegalArgumentException("drainInterval must be at least 10");
+        }
+        this.drainInterval = drainInterval;
+    }
+
+    /**
+     * Number of messages waiting to be written.
+     *
+     * @return pending messages
+     */
+    public synchronized int getPendingCount() {
+        return size;
+    }
+
+    /**
+     * Number of messages dropped because the buffer was full.
+     *
+     * @return dropped messages since the start of the app
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Appends a message of the native code, if its level is loggable.
+     *
+     * @param level one of the Log levels
+     * @param message to write
+     */
+    void append(int level, String message) {
+        if (message == null || !isLoggable(level)) {
+            return;
+        }
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            message = "[...]" + message.substring(message.length() - MAX_MESSAGE_LENGTH);
+        }
+        synchronized (this) {
+            if (size == messages.length) {
+                messages[head] = null;
+                head = (head + 1) % messages.length;
+                size--;
+                dropped++;
+            }
+            int tail = (head + size) % messages.length;
+            messages[tail] = message;
+            levels[tail] = level;
+            size++;
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        CN.startThread(() -> drain(), "VideoOptimizer native log").start();
+    }
+
+    private void drain() {
+        while (true) {
+            Util.sleep(getDrainInterval());
+            String[] batch;
+            int[] batchLevels;
+            long newlyDropped;
+            synchronized (this) {
+                if (size == 0) {
+                    draining = false;
+                    return;
+                }
+                batch = new String[size];
+                batchLevels = new int[size];
+                for (int i = 0; i < size; i++) {
+                    int index = (head + i) % messages.length;
+                    batch[i] = messages[index];
+                    batchLevels[i] = levels[index];
+                    messages[index] = null;
+                }
+                head = 0;
+                size = 0;
+                newlyDropped = dropped - reportedDropped;
+                reportedDropped = dropped;
+            }
+            if (newlyDropped > 0) {
+                Log.p("VideoOptimizer native code -> " + newlyDropped + " messages dropped because the log buffer was full", Log.WARNING);
+            }
+            StringBuilder entry = new StringBuilder();
+            for (int i = 0; i < batch.length; i++) {
+                if (entry.length() > 0) {
+                    entry.append('\n');
+                }
+                entry.append(batch[i]);
+                if (i == batch.length - 1 || batchLevels[i + 1] != batchLevels[i]) {
+                    Log.p("VideoOptimizer native code -> " + entry, batchLevels[i]);
+                    entry.setLength(0);
+                }
+            }
+        }
+    }
+
+}
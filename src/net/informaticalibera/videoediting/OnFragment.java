@@ -0,0 +1,39 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * Invoked by the EDT every time a new part of a fragmented optimized video is
+ * written (see {@link EncodingProfile#setFragmentDuration(int)}), so that it
+ * can be uploaded while the following parts are being encoded. The parts are
+ * consecutive ranges of the output file: the first one is the initialization
+ * segment (the "ftyp" and "moov" boxes), the following ones are complete
+ * fragments ("moof" and "mdat" boxes).
+ *
+ * @author Francesco Galgani
+ */
+public interface OnFragment {
+
+    /**
+     * Invoked when a new part of the output file is ready; the bytes of the
+     * range don't change anymore.
+     *
+     * @param videoFile the output file, placed in FileSystemStorage
+     * @param offset first byte of the part
+     * @param length number of bytes of the part
+     * @param last true if this is the last part, that is if the file is
+     * complete
+     */
+    public void fragmentReady(String videoFile, long offset, long length, boolean last);
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * Invoked for every video of a batch probe (see
+ * {@link VideoOptimizer#probeVideos(java.lang.String[], net.informaticalibera.videoediting.OnProbe, java.lang.Runnable)})
+ * as soon as its info is ready, so the results arrive in completion order
+ * and not in the order of the batch.
+ *
+ * @author Francesco Galgani
+ */
+public interface OnProbe {
+
+    /**
+     * Invoked when a video of the batch has been probed.
+     *
+     * @param index position of the video in the batch
+     * @param videoFile the video, placed in FileSystemStorage
+     * @param info the info of the video, or null in case of error
+     */
+    public void probed(int index, String videoFile, VideoInfo info);
+
+}
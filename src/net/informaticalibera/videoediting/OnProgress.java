@@ -14,8 +14,9 @@
 package net.informaticalibera.videoediting;
 
 /**
- * Invoked automatically every second while the video optimization is in
- * progress, this can be used to update the UI with the progress percentage.
+ * Invoked automatically when the progress of a video optimization changes (at
+ * most at the rate set in the {@link ProgressDispatcher}), this can be used to
+ * update the UI with the progress percentage.
  *
  * @author Francesco Galgani
  */
@@ -0,0 +1,33 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * Invoked automatically when the progress of a video optimization changes (at
+ * most at the rate set in the {@link ProgressDispatcher}), with the detailed
+ * {@link ProgressEvent}: processed time, frames, bytes written, speed and
+ * estimated time remaining. See
+ * {@link OptimizationJob#setOnProgressEventCallback(net.informaticalibera.videoediting.OnProgressEvent)}.
+ *
+ * @author Francesco Galgani
+ */
+public interface OnProgressEvent {
+
+    /**
+     * Invoked with the latest progress of the job.
+     *
+     * @param event snapshot of the progress
+     */
+    public void update(ProgressEvent event);
+
+}
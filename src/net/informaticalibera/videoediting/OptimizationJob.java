@@ -0,0 +1,470 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.util.OnComplete;
+
+/**
+ * Handle of a video optimization submitted to the
+ * {@link OptimizationScheduler}, as returned by
+ * {@link VideoOptimizer#optimizeVideoForUpload(java.lang.String, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)}.
+ *
+ * @author Francesco Galgani
+ */
+public class OptimizationJob {
+
+    /**
+     * Priority of background jobs.
+     */
+    public static final int PRIORITY_LOW = 0;
+
+    /**
+     * Default priority.
+     */
+    public static final int PRIORITY_NORMAL = 5;
+
+    /**
+     * Priority of the jobs that the user is waiting for.
+     */
+    public static final int PRIORITY_HIGH = 10;
+
+    /**
+     * The job is waiting in the queue of the scheduler.
+     */
+    public static final int STATE_QUEUED = 0;
+
+    /**
+     * The job is being executed by the native encoder.
+     */
+    public static final int STATE_RUNNING = 1;
+
+    /**
+     * The job completed successfully, its output file is ready.
+     */
+    public static final int STATE_COMPLETED = 2;
+
+    /**
+     * The job failed.
+     */
+    public static final int STATE_FAILED = 3;
+
+    /**
+     * The job was cancelled, its partial output was deleted.
+     */
+    public static final int STATE_CANCELLED = 4;
+
+    /**
+     * The encoding path is not decided yet, because the job is still queued.
+     */
+    public static final int PATH_UNKNOWN = -1;
+
+    /**
+     * The source already meets the profile: the audio and video streams are
+     * copied as is into a new mp4 container.
+     */
+    public static final int PATH_PASSTHROUGH = 0;
+
+    /**
+     * The video stream already meets the profile and it's copied as is, only
+     * the audio is encoded again.
+     */
+    public static final int PATH_AUDIO_ONLY = 1;
+
+    /**
+     * The video is encoded again.
+     */
+    public static final int PATH_FULL = 2;
+
+    private static int counter = 0;
+
+    private final String id;
+    private final VideoSource source;
+    private final EncodingProfile profile;
+    private final EncodingProfile[] renditionProfiles;
+    private final int priority;
+    private final long submitTime;
+    final OnComplete<String> onCompleteCallback;
+    final OnComplete<Rendition[]> onRenditionsCallback;
+    final Runnable onFailureCallback;
+    final OnProgress onProgressCallback;
+    Runnable onCancelCallback;
+    OnFragment onFragmentCallback;
+    OnProgressEvent onProgressEventCallback;
+    String inputFile;
+    String outputFile;
+    Rendition[] renditions;
+    int state = STATE_QUEUED;
+    boolean cancelRequested = false;
+    int path = PATH_UNKNOWN;
+    long startTime;
+    String resultKey;
+    long fingerprintMillis;
+    long estimatedBytes;
+
+    OptimizationJob(String inputFile, EncodingProfile profile, int priority, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        this(inputFile, null, profile != null ? profile.copy() : EncodingProfile.defaultProfile(), null, priority, onCompleteCallback, null, onFailureCallback, onProgressCallback);
+    }
+
+    /**
+     * Creates a job that reads the given source, that is closed when the job
+     * finishes.
+     *
+     * @param source a Storage entry, a stream or a URI
+     */
+    OptimizationJob(VideoSource source, EncodingProfile profile, int priority, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        this(source.getName(), source, profile != null ? profile.copy() : EncodingProfile.defaultProfile(), null, priority, onCompleteCallback, null, onFailureCallback, onProgressCallback);
+    }
+
+    /**
+     * Creates a job that produces a rendition for each of the given profiles,
+     * decoding the source only once.
+     *
+     * @param profiles at least one profile, they are copied
+     */
+    OptimizationJob(String inputFile, EncodingProfile[] profiles, int priority, OnComplete<Rendition[]> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        this(inputFile, null, profiles[0].copy(), copyProfiles(profiles), priority, null, onCompleteCallback, onFailureCallback, onProgressCallback);
+    }
+
+    private OptimizationJob(String inputFile, VideoSource source, EncodingProfile profile, EncodingProfile[] renditionProfiles, int priority, OnComplete<String> onCompleteCallback,
+            OnComplete<Rendition[]> onRenditionsCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        this.id = nextId();
+        this.inputFile = inputFile;
+        this.source = source;
+        this.profile = profile;
+        this.renditionProfiles = renditionProfiles;
+        this.priority = priority;
+        this.submitTime = System.currentTimeMillis();
+        this.onCompleteCallback = onCompleteCallback;
+        this.onRenditionsCallback = onRenditionsCallback;
+        this.onFailureCallback = onFailureCallback;
+        this.onProgressCallback = onProgressCallback;
+    }
+
+    private static EncodingProfile[] copyProfiles(EncodingProfile[] profiles) {
+        EncodingProfile[] result = new EncodingProfile[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            result[i] = profiles[i].copy();
+        }
+        return result;
+    }
+
+    private static synchronized String nextId() {
+        counter++;
+        return "job" + counter + "-" + System.currentTimeMillis();
+    }
+
+    /**
+     * Opaque identifier of this job, unique in the app session.
+     *
+     * @return id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The video to optimize.
+     *
+     * @return FileSystemStorage path; for a job submitted with a
+     * {@link VideoSource}, the name of the source until the job is started,
+     * then the file read by the native code
+     */
+    public synchronized String getInputFile() {
+        return inputFile;
+    }
+
+    /**
+     * The source of a job submitted with a {@link VideoSource}.
+     *
+     * @return the source, or null if the job reads a FileSystemStorage path
+     */
+    VideoSource getSource() {
+        return source;
+    }
+
+    /**
+     * The encoding settings of this job.
+     *
+     * @return a copy of the profile given at submission
+     */
+    public EncodingProfile getProfile() {
+        return profile.copy();
+    }
+
+    /**
+     * Estimates the bytes that this job writes, without reading the source:
+     * from the cached info of the source through the {@link Predictor}, or
+     * from the size of the source when the info is not cached. The
+     * estimate includes the copy of a stream or of a Storage entry and the
+     * second copy written while moving the "moov" box to the front.
+     *
+     * @return bytes, or 0 if the size of the source is unknown
+     */
+    long estimateOutputBytes() {
+        long inputBytes = source != null ? source.getLength() : FileSystemStorage.getInstance().getLength(getInputFile());
+        if (inputBytes <= 0) {
+            return 0;
+        }
+        VideoInfo info = source == null ? VideoOptimizer.getCache().peekInfo(getInputFile()) : null;
+        EncodingProfile[] profiles = renditionProfiles != null ? renditionProfiles : new EncodingProfile[]{profile};
+        long total = 0;
+        for (EncodingProfile outputProfile : profiles) {
+            long bytes = inputBytes;
+            if (info != null && info.getDurationMillis() > 0) {
+                EncodingProfile predicted = outputProfile;
+                if (profile.isTrimmed() && !outputProfile.isTrimmed()) {
+                    // the time range of the first profile applies to all the renditions
+                    predicted = outputProfile.copy().setTimeRange(profile.getStartTime(), profile.getEndTime());
+                }
+                bytes = VideoOptimizer.getPredictor().predict(info, predicted).getOutputBytes();
+            }
+            // the container and the peaks of the bitrate
+            bytes += bytes / 10;
+            if (outputProfile.isFaststart()) {
+                bytes *= 2;
+            }
+            total += bytes;
+        }
+        if (source != null && source.getType() != VideoSource.TYPE_URI) {
+            total += inputBytes;
+        }
+        return total;
+    }
+
+    /**
+     * Size of the files that this job was estimated to write when it was
+     * started.
+     *
+     * @return bytes, or 0 if unknown
+     */
+    synchronized long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * The encoding settings in the format passed to the native code.
+     *
+     * @return the profile for the native code
+     */
+    String getNativeProfile() {
+        return profile.toNative();
+    }
+
+    /**
+     * True if this job produces more renditions of the source.
+     *
+     * @return true for a multi-rendition job
+     */
+    boolean hasRenditions() {
+        return renditionProfiles != null;
+    }
+
+    /**
+     * The encoding settings of the renditions, in the format passed to the
+     * native code, one per line.
+     *
+     * @return the profiles for the native code
+     */
+    String getNativeRenditionProfiles() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < renditionProfiles.length; i++) {
+            if (i > 0) {
+                result.append('\n');
+            }
+            result.append(renditionProfiles[i].toNative());
+        }
+        return result.toString();
+    }
+
+    /**
+     * Creates the renditions of this job, the first one is written to the
+     * output file of the job; it must be invoked holding the lock of this job.
+     */
+    void createRenditions() {
+        renditions = new Rendition[renditionProfiles.length];
+        for (int i = 0; i < renditions.length; i++) {
+            String file = i == 0 ? outputFile : VideoOptimizer.getWorkspace().reserve("mp4", Workspace.KIND_PARTIAL);
+            renditions[i] = new Rendition(renditionProfiles[i].copy(), file);
+        }
+    }
+
+    /**
+     * The renditions of a multi-rendition job, in the order of their
+     * profiles; they are assigned when the job starts and their videos are
+     * ready only when the job is completed.
+     *
+     * @return the renditions, or null if this is a single output job or if
+     * it's still queued
+     */
+    public synchronized Rendition[] getRenditions() {
+        if (renditions == null) {
+            return null;
+        }
+        Rendition[] result = new Rendition[renditions.length];
+        System.arraycopy(renditions, 0, result, 0, renditions.length);
+        return result;
+    }
+
+    /**
+     * The optimized video; it's assigned when the job starts and it's ready
+     * only when the job is completed.
+     *
+     * @return FileSystemStorage path, or null if the job is still queued
+     */
+    public synchronized String getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Priority of this job: the jobs with higher priority are started first.
+     *
+     * @return priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Current state of this job.
+     *
+     * @return one of the STATE_ constants
+     */
+    public synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * How the job produces its output, decided when the job starts comparing
+     * the source with the profile.
+     *
+     * @return one of the PATH_ constants
+     */
+    public synchronized int getPath() {
+        return path;
+    }
+
+    /**
+     * Returns true if the job completed, failed or was cancelled.
+     *
+     * @return true if the job is finished
+     */
+    public synchronized boolean isDone() {
+        return state == STATE_COMPLETED || state == STATE_FAILED || state == STATE_CANCELLED;
+    }
+
+    /**
+     * Returns true if {@link #cancel()} was invoked before the job finished;
+     * the state becomes STATE_CANCELLED when the native encoder has actually
+     * stopped.
+     *
+     * @return true if the cancellation was requested
+     */
+    public synchronized boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /**
+     * Sets the callback executed (by the EDT) when the job is cancelled,
+     * instead of the success or failure callbacks.
+     *
+     * @param onCancelCallback it can be null
+     * @return this job
+     */
+    public synchronized OptimizationJob setOnCancelCallback(Runnable onCancelCallback) {
+        this.onCancelCallback = onCancelCallback;
+        return this;
+    }
+
+    /**
+     * Sets the callback executed (by the EDT) every time a new part of the
+     * output is ready, when the profile of this job produces a fragmented
+     * video (see {@link EncodingProfile#setFragmentDuration(int)}); the parts
+     * written before this call are delivered together with the next one.
+     *
+     * @param onFragmentCallback it can be null
+     * @return this job
+     */
+    public synchronized OptimizationJob setOnFragmentCallback(OnFragment onFragmentCallback) {
+        this.onFragmentCallback = onFragmentCallback;
+        return this;
+    }
+
+    synchronized OnFragment getOnFragmentCallback() {
+        return onFragmentCallback;
+    }
+
+    /**
+     * Sets the callback executed (by the EDT, or by the executor of the
+     * {@link ProgressDispatcher}) when the progress of the job changes, with
+     * the detailed {@link ProgressEvent}; it's invoked together with the
+     * OnProgress callback given at submission.
+     *
+     * @param onProgressEventCallback it can be null
+     * @return this job
+     */
+    public synchronized OptimizationJob setOnProgressEventCallback(OnProgressEvent onProgressEventCallback) {
+        this.onProgressEventCallback = onProgressEventCallback;
+        return this;
+    }
+
+    synchronized OnProgressEvent getOnProgressEventCallback() {
+        return onProgressEventCallback;
+    }
+
+    /**
+     * Returns the latest detailed progress of this job, for example to poll
+     * it instead of setting a callback.
+     *
+     * @return the event, or null if the job is not running or it didn't
+     * report any progress yet
+     */
+    public ProgressEvent getProgressEvent() {
+        return VideoOptimizer.getProgressDispatcher().getProgressEvent(id);
+    }
+
+    /**
+     * Cancels this job, see {@link OptimizationScheduler#cancel(java.lang.String)}.
+     *
+     * @return true if the job was queued or running, false if it's already
+     * finished
+     */
+    public boolean cancel() {
+        OptimizationScheduler scheduler = VideoOptimizer.getScheduler();
+        return scheduler != null && scheduler.cancel(id);
+    }
+
+    /**
+     * Time of submission.
+     *
+     * @return ms since epoch
+     */
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    /**
+     * Time when the job was started by the scheduler.
+     *
+     * @return ms since epoch, or 0 if the job is still queued
+     */
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public String toString() {
+        return "OptimizationJob{id=" + id + ", inputFile=" + getInputFile() + ", priority=" + priority + ", state=" + getState() + ", path=" + getPath() + "}";
+    }
+
+}
@@ -0,0 +1,807 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Log;
+import com.codename1.ui.CN;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Scheduler of the video optimizations: the submitted jobs wait in a bounded
+ * queue, ordered by priority (and by submission time for equal priorities),
+ * and up to {@link #getMaxConcurrency()} jobs are executed at the same time by
+ * the native encoder.</p>
+ * <p>
+ * The native optimization is asynchronous, so the scheduler doesn't need a
+ * thread for each job: a job is started as soon as a slot is free and its
+ * slot is released by the native success or error callback. The size of the
+ * output and the free space are checked by a background thread, that runs
+ * only while there are jobs to start, so the EDT never reads the
+ * storage.</p>
+ * <p>
+ * When the queue is full, any further submission is refused with an
+ * IllegalStateException, so that the caller can slow down.</p>
+ * <p>
+ * A queued job can be cancelled immediately, while a running job is stopped
+ * by the native encoder: its slot is released and its partial output is
+ * deleted as soon as the encoder reports the cancellation.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class OptimizationScheduler {
+
+    /**
+     * Default max number of queued (not yet started) jobs.
+     */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 32;
+
+    private final VideoEditingNativeInterface videoEditing;
+    private final List<OptimizationJob> queue = new ArrayList<>();
+    private final List<OptimizationJob> running = new ArrayList<>();
+    private int maxConcurrency;
+    private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+    private boolean admitting;
+    private boolean admitAgain;
+
+    OptimizationScheduler(VideoEditingNativeInterface videoEditing) {
+        this.videoEditing = videoEditing;
+        int capacity = videoEditing.getMaxConcurrentEncoders();
+        this.maxConcurrency = capacity > 0 ? capacity : 1;
+    }
+
+    /**
+     * Max number of optimizations executed at the same time; it defaults to
+     * the encoding capacity reported by the native code (that depends on the
+     * number of cores and on the encoder).
+     *
+     * @return max concurrency
+     */
+    public synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Sets the max number of optimizations executed at the same time; the
+     * running jobs are not affected if the value is decreased.
+     *
+     * @param maxConcurrency at least 1
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        synchronized (this) {
+            this.maxConcurrency = maxConcurrency;
+        }
+        dispatch();
+    }
+
+    /**
+     * Max number of jobs waiting to be started.
+     *
+     * @return max queue size
+     */
+    public synchronized int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Sets the max number of jobs waiting to be started.
+     *
+     * @param maxQueueSize at least 1
+     */
+    public synchronized void setMaxQueueSize(int maxQueueSize) {
+        if (maxQueueSize < 1) {
+            throw new IllegalArgumentException("maxQueueSize must be at least 1");
+        }
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Number of jobs waiting to be started.
+     *
+     * @return queued jobs
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Number of jobs being executed.
+     *
+     * @return running jobs
+     */
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Returns true if the queue is full, that is if a submission would be
+     * refused.
+     *
+     * @return true if the queue is full
+     */
+    public synchronized boolean isQueueFull() {
+        return queue.size() >= maxQueueSize;
+    }
+
+    /**
+     * Adds the given job to the queue and starts it if there is a free slot.
+     *
+     * @param job to submit
+     * @return the same job
+     * @throws IllegalStateException if the queue is full
+     */
+    OptimizationJob submit(OptimizationJob job) {
+        synchronized (this) {
+            if (queue.size() >= maxQueueSize) {
+                VideoOptimizer.getMetrics().increment(Metrics.REJECTED, 1);
+                throw new IllegalStateException("The queue of VideoOptimizer is full (" + maxQueueSize + " jobs): wait for some optimizations to finish before submitting new ones.");
+            }
+            int index = queue.size();
+            while (index > 0 && queue.get(index - 1).getPriority() < job.getPriority()) {
+                index--;
+            }
+            queue.add(index, job);
+        }
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Starts as many queued jobs as allowed by the free slots and by the free
+     * space, see {@link #admit()}; the check is done by a background thread,
+     * that is started only if it's not already running.
+     */
+    private void dispatch() {
+        synchronized (this) {
+            admitAgain = true;
+            if (admitting) {
+                return;
+            }
+            admitting = true;
+        }
+        CN.startThread(() -> {
+            while (true) {
+                synchronized (this) {
+                    if (!admitAgain) {
+                        admitting = false;
+                        return;
+                    }
+                    admitAgain = false;
+                }
+                try {
+                    admit();
+                } catch (RuntimeException ex) {
+                    Log.p("OptimizationScheduler -> Cannot start the queued jobs: " + ex, Log.ERROR);
+                    Log.e(ex);
+                }
+            }
+        }, "VideoOptimizer admission").start();
+    }
+
+    /**
+     * Starts the first queued jobs while there are free slots: a job that
+     * doesn't fit in the free space waits for the running jobs to end, or it
+     * fails if there are no running jobs. The size of the output and the free
+     * space are read without holding the lock, so the check is repeated if
+     * the queue or the running jobs changed in the meantime.
+     */
+    private void admit() {
+        Workspace workspace = VideoOptimizer.getWorkspace();
+        while (true) {
+            OptimizationJob job;
+            List<OptimizationJob> runningJobs;
+            synchronized (this) {
+                if (running.size() >= maxConcurrency || queue.size() == 0) {
+                    return;
+                }
+                job = queue.get(0);
+                runningJobs = new ArrayList<>(running);
+            }
+            long estimatedBytes = job.estimateOutputBytes();
+            boolean fits = workspace.hasSpaceFor(estimatedBytes, runningJobs);
+            synchronized (this) {
+                // only this thread starts the jobs, so the running jobs can only decrease
+                if (queue.size() == 0 || queue.get(0) != job || running.size() != runningJobs.size()) {
+                    // a job was submitted, cancelled or finished in the meantime
+                    continue;
+                }
+                if (!fits && running.size() > 0) {
+                    // it waits for the running jobs to end
+                    return;
+                }
+                queue.remove(0);
+                if (fits) {
+                    running.add(job);
+                }
+            }
+            synchronized (job) {
+                job.estimatedBytes = estimatedBytes;
+            }
+            if (!fits) {
+                refuse(job, workspace);
+                continue;
+            }
+            synchronized (job) {
+                job.state = OptimizationJob.STATE_RUNNING;
+                job.startTime = System.currentTimeMillis();
+            }
+            String outputFile = workspace.reserve("mp4", Workspace.KIND_PARTIAL); // note that it has the "file://" prefix
+            synchronized (job) {
+                job.outputFile = outputFile;
+                if (job.hasRenditions()) {
+                    job.createRenditions();
+                }
+            }
+            VideoOptimizer.getMetrics().record(Metrics.QUEUE_WAIT, job.getStartTime() - job.getSubmitTime());
+            CN.callSerially(() -> start(job));
+        }
+    }
+
+    /**
+     * Fails a job that cannot start because of the free space.
+     */
+    private void refuse(OptimizationJob job, Workspace workspace) {
+        synchronized (job) {
+            job.state = OptimizationJob.STATE_FAILED;
+        }
+        Log.p("OptimizationScheduler -> Not enough free space for " + job + ": about " + job.getEstimatedBytes()
+                + " bytes needed, " + workspace.getAvailableSpace() + " available", Log.ERROR);
+        VideoOptimizer.getMetrics().increment(Metrics.FAILED + Metrics.OPTIMIZE + ".space", 1);
+        closeSource(job);
+        CN.callSerially(job.onFailureCallback);
+    }
+
+    /**
+     * Cancels the given job: a queued job is removed from the queue, a
+     * running job is stopped by the native encoder. In both cases the partial
+     * output is deleted and the cancel callback of the job (if any) is
+     * executed instead of the success or failure callbacks.
+     *
+     * @param jobId id of the job
+     * @return true if the job was queued or running, false if it's unknown or
+     * already finished
+     */
+    public boolean cancel(String jobId) {
+        OptimizationJob job = null;
+        boolean queued = false;
+        synchronized (this) {
+            for (int i = 0; i < queue.size(); i++) {
+                if (queue.get(i).getId().equals(jobId)) {
+                    job = queue.remove(i);
+                    queued = true;
+                    break;
+                }
+            }
+            if (job == null) {
+                for (OptimizationJob runningJob : running) {
+                    if (runningJob.getId().equals(jobId)) {
+                        job = runningJob;
+                        break;
+                    }
+                }
+            }
+        }
+        if (job == null) {
+            return false;
+        }
+        synchronized (job) {
+            if (job.cancelRequested) {
+                return true;
+            }
+            job.cancelRequested = true;
+            if (queued) {
+                job.state = OptimizationJob.STATE_CANCELLED;
+            }
+        }
+        Log.p("OptimizationScheduler -> Cancelling " + job, Log.DEBUG);
+        if (queued) {
+            VideoOptimizer.getMetrics().increment(Metrics.CANCELLED + "queued", 1);
+            closeSource(job);
+            Runnable onCancel = getCancelCallback(job);
+            if (onCancel != null) {
+                CN.callSerially(onCancel);
+            }
+        } else {
+            videoEditing.cancelOptimization(jobId);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels all the queued and running jobs.
+     *
+     * @return the number of cancelled jobs
+     */
+    public int cancelAll() {
+        List<String> ids = new ArrayList<>();
+        synchronized (this) {
+            for (OptimizationJob job : queue) {
+                ids.add(job.getId());
+            }
+            for (OptimizationJob job : running) {
+                ids.add(job.getId());
+            }
+        }
+        int count = 0;
+        for (String id : ids) {
+            if (cancel(id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void start(OptimizationJob job) {
+        Log.p("OptimizationScheduler -> Starting " + job, Log.DEBUG);
+
+        // the progress is pushed by the native code to the dispatcher
+        VideoOptimizer.getProgressDispatcher().register(job);
+        if (job.getProfile().getFragmentDuration() > 0 && !job.hasRenditions()) {
+            FragmentWatcher.register(job);
+        }
+
+        // sets the callbacks, identified by the job id
+        VideoEditingCallbacks.setJobCallbacks(job.getId(),
+                () -> finished(job, OptimizationJob.STATE_COMPLETED),
+                () -> finished(job, OptimizationJob.STATE_FAILED),
+                () -> finished(job, OptimizationJob.STATE_CANCELLED));
+
+        VideoSource source = job.getSource();
+        if (source != null) {
+            // a URI is opened and a stream is copied to a file for the native code
+            CN.startThread(() -> {
+                try {
+                    String path = source.getNativePath(videoEditing);
+                    synchronized (job) {
+                        job.inputFile = path;
+                    }
+                    CN.callSerially(() -> startInput(job));
+                } catch (IOException ex) {
+                    Log.p("OptimizationScheduler -> Cannot read the source of " + job.getId() + ": " + ex.getMessage(), Log.ERROR);
+                    VideoEditingCallbacks.runVideoErrorCallback(job.getId());
+                } catch (RuntimeException ex) {
+                    failedToStart(job, ex);
+                }
+            }, "VideoOptimizer source").start();
+            return;
+        }
+        startInput(job);
+    }
+
+    /**
+     * Continues the start of a job whose input is readable by the native
+     * code.
+     */
+    private void startInput(OptimizationJob job) {
+        String inputFile = job.getInputFile();
+        String outputFile = job.getOutputFile();
+        if (job.hasRenditions()) {
+            startRenditions(job);
+            return;
+        }
+
+        ResultCache resultCache = VideoOptimizer.getResultCache();
+        boolean cacheable = resultCache.isEnabled() && job.getProfile().getFragmentDuration() == 0;
+        // the fingerprint and the probe read the source, so they are done in
+        // background; only the native start runs on the EDT
+        CN.startThread(() -> {
+            try {
+                prepare(job, inputFile, outputFile, cacheable);
+            } catch (RuntimeException ex) {
+                failedToStart(job, ex);
+            }
+        }, "VideoOptimizer prepare").start();
+    }
+
+    /**
+     * Looks for the output in the result cache and chooses the encoding path
+     * of a job; it reads the source, so it must not be invoked on the EDT.
+     */
+    private void prepare(OptimizationJob job, String inputFile, String outputFile, boolean cacheable) {
+        ResultCache resultCache = VideoOptimizer.getResultCache();
+        if (cacheable) {
+            long startTime = System.currentTimeMillis();
+            String key = ResultCache.getKey(inputFile, job.getNativeProfile());
+            if (key != null && resultCache.copyTo(videoEditing, key, outputFile)) {
+                Log.p("OptimizationScheduler -> The output of " + job.getId() + " was found in the result cache", Log.DEBUG);
+                VideoEditingCallbacks.runVideoOptimizedCallback(job.getId());
+                return;
+            }
+            synchronized (job) {
+                job.resultKey = key;
+                job.fingerprintMillis = System.currentTimeMillis() - startTime;
+            }
+        }
+        // the source is encoded again only if it doesn't already meet the profile
+        int path = job.getProfile().choosePath(VideoOptimizer.getVideoInfo(videoEditing, inputFile));
+        synchronized (job) {
+            job.path = path;
+        }
+        String profile = getNativeProfile(job, path);
+        CN.callSerially(() -> encode(job, profile));
+    }
+
+    /**
+     * Fails a job whose encoder could not be started, so that its slot is
+     * released and its failure callback is invoked.
+     */
+    private static void failedToStart(OptimizationJob job, RuntimeException ex) {
+        Log.p("OptimizationScheduler -> Cannot start " + job.getId() + ": " + ex, Log.ERROR);
+        Log.e(ex);
+        VideoEditingCallbacks.runVideoErrorCallback(job.getId());
+    }
+
+    /**
+     * Returns the profile passed to the native code for the given encoding
+     * path, with the keyframe where a copy starts or the split points of a
+     * parallel encoding; it reads the sample tables of the source, so it must
+     * not be invoked on the EDT.
+     */
+    private static String getNativeProfile(OptimizationJob job, int path) {
+        EncodingProfile encodingProfile = job.getProfile();
+        String profile = job.getNativeProfile();
+        if (path != OptimizationJob.PATH_FULL) {
+            profile += ";videocopy=1";
+            if (path == OptimizationJob.PATH_PASSTHROUGH) {
+                profile += ";audiocopy=1";
+            }
+            if (encodingProfile.getStartTime() > 0) {
+                // only whole GOPs can be copied
+                profile += ";starttime=" + keyframeBefore(job.getInputFile(), encodingProfile.getStartTime());
+            }
+        } else if (encodingProfile.isParallelEncoding() && encodingProfile.getFragmentDuration() == 0 && !encodingProfile.isTrimmed()) {
+            // the split points are keyframes found in the sample tables of the source
+            String segments = SegmentPlanner.planForNative(job.getInputFile());
+            if (segments != null) {
+                profile += ";segments=" + segments;
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Starts the native encoder for a job that produces a single output,
+     * once its encoding path is chosen.
+     *
+     * @param profile see {@link #getNativeProfile(net.informaticalibera.videoediting.OptimizationJob, int)}
+     */
+    private void encode(OptimizationJob job, String profile) {
+        if (job.isCancelRequested()) {
+            // cancelled while the source was read
+            VideoEditingCallbacks.runVideoCancelledCallback(job.getId());
+            return;
+        }
+        String inputFile = job.getInputFile();
+        String outputFile = job.getOutputFile();
+        Log.p("OptimizationScheduler -> Encoding path of " + job.getId() + ": " + job.getPath(), Log.DEBUG);
+
+        try {
+            // it's mandatory to remove the "file://" when accessing to native interfaces
+            videoEditing.optimizeVideoForUpload(job.getId(), VideoOptimizer.removeFilePrefix(inputFile), VideoOptimizer.removeFilePrefix(outputFile), profile);
+        } catch (RuntimeException ex) {
+            failedToStart(job, ex);
+            return;
+        }
+
+        // a cancellation requested while the native code was starting the
+        // encoder could have been missed by the native code
+        if (job.isCancelRequested()) {
+            videoEditing.cancelOptimization(job.getId());
+        }
+    }
+
+    /**
+     * Starts a multi-rendition job: the source is decoded once and encoded
+     * by a branch for each rendition, so the renditions are always encoded.
+     */
+    private void startRenditions(OptimizationJob job) {
+        synchronized (job) {
+            job.path = OptimizationJob.PATH_FULL;
+        }
+        StringBuilder outputFiles = new StringBuilder();
+        for (Rendition rendition : job.getRenditions()) {
+            if (outputFiles.length() > 0) {
+                outputFiles.append('\n');
+            }
+            // it's mandatory to remove the "file://" when accessing to native interfaces
+            outputFiles.append(VideoOptimizer.removeFilePrefix(rendition.getOutputFile()));
+        }
+        try {
+            videoEditing.optimizeVideoRenditions(job.getId(), VideoOptimizer.removeFilePrefix(job.getInputFile()), outputFiles.toString(), job.getNativeRenditionProfiles());
+        } catch (RuntimeException ex) {
+            failedToStart(job, ex);
+            return;
+        }
+        if (job.isCancelRequested()) {
+            videoEditing.cancelOptimization(job.getId());
+        }
+    }
+
+    /**
+     * Returns the time of the keyframe that precedes the given time, read
+     * from the sample tables of the video.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param time ms
+     * @return ms, the given time if the keyframes cannot be read
+     */
+    private static long keyframeBefore(String videoFile, long time) {
+        TrackIndex index = VideoOptimizer.loadTrackIndex(videoFile, false);
+        int sample = index != null ? index.getSampleAtTime(time * index.getTimescale() / 1000) : -1;
+        if (sample < 0) {
+            return time;
+        }
+        int sync = index.getSyncSampleBefore(sample);
+        if (sync < 0) {
+            return 0;
+        }
+        return Math.min(time, index.toMillis(index.getPresentationTime(sync)));
+    }
+
+    private void finished(OptimizationJob job, int outcome) {
+        synchronized (this) {
+            if (!running.remove(job)) {
+                return;
+            }
+        }
+        // the media duration is known only while the job is registered
+        ProgressEvent lastEvent = VideoOptimizer.getProgressDispatcher().getProgressEvent(job.getId());
+        long mediaMillis = lastEvent != null ? lastEvent.getDurationMillis() : -1;
+        // the latest progress sample is delivered now, before the completion callbacks
+        VideoOptimizer.getProgressDispatcher().unregister(job.getId());
+        FragmentWatcher fragmentWatcher = FragmentWatcher.unregister(job.getId());
+        try {
+            if (fragmentWatcher != null) {
+                // a fragmented output is already streamable
+                if (outcome == OptimizationJob.STATE_COMPLETED && !job.isCancelRequested()) {
+                    fragmentWatcher.deliver(true);
+                }
+                complete(job, outcome, mediaMillis);
+            } else if (outcome == OptimizationJob.STATE_COMPLETED && job.hasRenditions()) {
+                CN.startThread(() -> {
+                    for (Rendition rendition : job.getRenditions()) {
+                        String outputFile = rendition.getOutputFile();
+                        if (rendition.getProfile().isFaststart()) {
+                            outputFile = ensureFaststart(job, outputFile);
+                        }
+                        synchronized (rendition) {
+                            rendition.outputFile = outputFile;
+                            rendition.size = FileSystemStorage.getInstance().getLength(outputFile);
+                        }
+                    }
+                    synchronized (job) {
+                        job.outputFile = job.renditions[0].getOutputFile();
+                    }
+                    CN.callSerially(() -> complete(job, OptimizationJob.STATE_COMPLETED, mediaMillis));
+                }, "VideoOptimizer faststart").start();
+            } else if (outcome == OptimizationJob.STATE_COMPLETED && (job.getProfile().isFaststart() || getResultKey(job) != null)) {
+                // the encoder slot is free, but the job completes only when
+                // its output is streamable and cached; reading the whole file
+                // can be slow, so it's done in background
+                CN.startThread(() -> {
+                    String outputFile = job.getOutputFile();
+                    if (job.getProfile().isFaststart()) {
+                        outputFile = ensureFaststart(job, outputFile);
+                    }
+                    synchronized (job) {
+                        job.outputFile = outputFile;
+                    }
+                    String resultKey = getResultKey(job);
+                    if (resultKey != null && !job.isCancelRequested()) {
+                        VideoOptimizer.getResultCache().store(videoEditing, resultKey, outputFile);
+                    }
+                    CN.callSerially(() -> complete(job, OptimizationJob.STATE_COMPLETED, mediaMillis));
+                }, "VideoOptimizer faststart").start();
+            } else {
+                complete(job, outcome, mediaMillis);
+            }
+        } finally {
+            dispatch();
+        }
+    }
+
+    /**
+     * Remuxes an output of the given job if the native encoder didn't put the
+     * "moov" box before the media payload; in case of error, the output is
+     * kept as is.
+     *
+     * @param job the job that produced the output
+     * @param outputFile placed in FileSystemStorage
+     * @return the streamable output
+     */
+    private String ensureFaststart(OptimizationJob job, String outputFile) {
+        String remuxedFile = null;
+        try {
+            if (Mp4Faststart.isFaststart(outputFile)) {
+                return outputFile;
+            }
+            remuxedFile = VideoOptimizer.getWorkspace().reserve("mp4", Workspace.KIND_PARTIAL);
+            Mp4Faststart.remux(videoEditing, outputFile, remuxedFile);
+            VideoOptimizer.getWorkspace().discard(outputFile);
+            Log.p("OptimizationScheduler -> Moved the moov box to the front of the output of " + job.getId(), Log.DEBUG);
+            return remuxedFile;
+        } catch (IOException ex) {
+            Log.p("OptimizationScheduler -> Cannot make streamable the output of " + job.getId() + ": " + ex.getMessage(), Log.WARNING);
+            VideoOptimizer.getWorkspace().discard(remuxedFile);
+            return outputFile;
+        }
+    }
+
+    private void complete(OptimizationJob job, int outcome, long mediaMillis) {
+        synchronized (job) {
+            // an encoder that completes (or fails) after a cancellation
+            // request is considered cancelled anyway
+            if (job.cancelRequested) {
+                outcome = OptimizationJob.STATE_CANCELLED;
+            }
+            job.state = outcome;
+        }
+        Log.p("OptimizationScheduler -> Finished " + job, Log.DEBUG);
+        if (outcome == OptimizationJob.STATE_COMPLETED) {
+            recordHistory(job);
+        }
+        closeSource(job);
+        recordMetrics(job, outcome, mediaMillis);
+        if (outcome == OptimizationJob.STATE_COMPLETED) {
+            commitOutput(job);
+        } else {
+            deleteOutput(job);
+        }
+        if (outcome == OptimizationJob.STATE_COMPLETED && job.hasRenditions()) {
+            job.onRenditionsCallback.completed(job.getRenditions());
+        } else if (outcome == OptimizationJob.STATE_COMPLETED) {
+            job.onCompleteCallback.completed(job.getOutputFile());
+        } else if (outcome == OptimizationJob.STATE_FAILED) {
+            job.onFailureCallback.run();
+        } else {
+            Runnable onCancel = getCancelCallback(job);
+            if (onCancel != null) {
+                onCancel.run();
+            }
+        }
+    }
+
+    /**
+     * Records the latency, the sizes and the speed of a completed job, or the
+     * cause of its failure or cancellation.
+     *
+     * @param mediaMillis media time processed by the job, or -1 if unknown
+     */
+    private static void recordMetrics(OptimizationJob job, int outcome, long mediaMillis) {
+        Metrics metrics = VideoOptimizer.getMetrics();
+        if (!metrics.isEnabled()) {
+            return;
+        }
+        if (outcome == OptimizationJob.STATE_COMPLETED) {
+            long elapsed = System.currentTimeMillis() - job.getStartTime();
+            metrics.record(Metrics.OPTIMIZE, elapsed);
+            FileSystemStorage fs = FileSystemStorage.getInstance();
+            long inputBytes = fs.getLength(job.getInputFile());
+            long outputBytes = 0;
+            Rendition[] renditions = job.getRenditions();
+            if (renditions != null) {
+                for (Rendition rendition : renditions) {
+                    outputBytes += Math.max(0, rendition.getSize());
+                }
+            } else {
+                outputBytes = fs.getLength(job.getOutputFile());
+            }
+            if (inputBytes > 0) {
+                metrics.increment(Metrics.INPUT_BYTES, inputBytes);
+            }
+            if (outputBytes > 0) {
+                metrics.increment(Metrics.OUTPUT_BYTES, outputBytes);
+            }
+            if (inputBytes > 0 && outputBytes > 0) {
+                metrics.record(Metrics.COMPRESSION_RATIO, inputBytes * 100 / outputBytes);
+            }
+            if (mediaMillis > 0 && elapsed > 0) {
+                metrics.record(Metrics.SPEED_RATIO, mediaMillis * 100 / elapsed);
+            }
+        } else if (outcome == OptimizationJob.STATE_FAILED) {
+            String path;
+            if (job.hasRenditions()) {
+                path = "renditions";
+            } else if (job.getPath() == OptimizationJob.PATH_PASSTHROUGH) {
+                path = "passthrough";
+            } else if (job.getPath() == OptimizationJob.PATH_AUDIO_ONLY) {
+                path = "audio_only";
+            } else if (job.getPath() == OptimizationJob.PATH_FULL) {
+                path = "full";
+            } else {
+                path = "unknown";
+            }
+            metrics.increment(Metrics.FAILED + Metrics.OPTIMIZE + "." + path, 1);
+        } else {
+            metrics.increment(Metrics.CANCELLED + "running", 1);
+        }
+    }
+
+    /**
+     * Adds a completed job to the history of the {@link Predictor}; the jobs
+     * served by the result cache and the multi-rendition jobs are not
+     * recorded.
+     */
+    private static void recordHistory(OptimizationJob job) {
+        if (job.hasRenditions() || job.getPath() == OptimizationJob.PATH_UNKNOWN) {
+            return;
+        }
+        // the info was cached when the encoding path was chosen
+        VideoInfo info = VideoOptimizer.getCache().peekInfo(job.getInputFile());
+        if (info != null) {
+            long outputBytes = FileSystemStorage.getInstance().getLength(job.getOutputFile());
+            long elapsed = System.currentTimeMillis() - job.getStartTime();
+            synchronized (job) {
+                // the hash of the source for the result cache doesn't depend on the encoding
+                elapsed -= job.fingerprintMillis;
+            }
+            VideoOptimizer.getPredictor().record(info, job.getProfile(), job.getPath(), outputBytes, Math.max(1, elapsed));
+        }
+    }
+
+    private static void closeSource(OptimizationJob job) {
+        VideoSource source = job.getSource();
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    private static String getResultKey(OptimizationJob job) {
+        synchronized (job) {
+            return job.resultKey;
+        }
+    }
+
+    private static Runnable getCancelCallback(OptimizationJob job) {
+        synchronized (job) {
+            return job.onCancelCallback;
+        }
+    }
+
+    /**
+     * Hands the outputs of a completed job to the app: they are deleted by
+     * the {@link Workspace} only when they expire.
+     */
+    private static void commitOutput(OptimizationJob job) {
+        Workspace workspace = VideoOptimizer.getWorkspace();
+        Rendition[] renditions = job.getRenditions();
+        if (renditions != null) {
+            for (Rendition rendition : renditions) {
+                workspace.commit(rendition.getOutputFile());
+            }
+        } else {
+            workspace.commit(job.getOutputFile());
+        }
+    }
+
+    /**
+     * Deletes the partial outputs of a failed or cancelled job, if any.
+     */
+    private static void deleteOutput(OptimizationJob job) {
+        Workspace workspace = VideoOptimizer.getWorkspace();
+        workspace.discard(job.getOutputFile());
+        Rendition[] renditions = job.getRenditions();
+        if (renditions != null) {
+            for (Rendition rendition : renditions) {
+                workspace.discard(rendition.getOutputFile());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * Size and time of an optimization predicted by the {@link Predictor} before
+ * starting it, for example to tell the user "about 12 MB, about 40 s".
+ *
+ * @author Francesco Galgani
+ */
+public final class Prediction {
+
+    private final long outputBytes;
+    private final long encodingMillis;
+    private final int path;
+    private final int sizeSamples;
+    private final int timeSamples;
+
+    Prediction(long outputBytes, long encodingMillis, int path, int sizeSamples, int timeSamples) {
+        this.outputBytes = outputBytes;
+        this.encodingMillis = encodingMillis;
+        this.path = path;
+        this.sizeSamples = sizeSamples;
+        this.timeSamples = timeSamples;
+    }
+
+    /**
+     * Predicted size of the output.
+     *
+     * @return bytes
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Predicted time from the start of the job to its completion.
+     *
+     * @return ms
+     */
+    public long getEncodingMillis() {
+        return encodingMillis;
+    }
+
+    /**
+     * How the output would be produced, see
+     * {@link OptimizationJob#getPath()}.
+     *
+     * @return one of the PATH_ constants of {@link OptimizationJob}
+     */
+    public int getPath() {
+        return path;
+    }
+
+    /**
+     * Number of completed jobs of the history used to correct the size.
+     *
+     * @return samples, 0 if the size is only computed from the bitrates
+     */
+    public int getSizeSamples() {
+        return sizeSamples;
+    }
+
+    /**
+     * Number of completed jobs of the history used to compute the time.
+     *
+     * @return samples, 0 if the time is computed from the default speeds
+     */
+    public int getTimeSamples() {
+        return timeSamples;
+    }
+
+    /**
+     * Returns true if both the size and the time were calibrated on the jobs
+     * already executed on this device.
+     *
+     * @return true if calibrated
+     */
+    public boolean isCalibrated() {
+        return sizeSamples > 0 && timeSamples > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Prediction{outputBytes=" + outputBytes + ", encodingMillis=" + encodingMillis + ", path=" + path
+                + ", sizeSamples=" + sizeSamples + ", timeSamples=" + timeSamples + "}";
+    }
+
+}
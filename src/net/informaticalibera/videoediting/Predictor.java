@@ -0,0 +1,455 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Predicts the size of the output and the time of an optimization before
+ * starting it, shared by all the instances of {@link VideoOptimizer} (see
+ * {@link VideoOptimizer#getPredictor()}): the UI can tell the user how big
+ * the video will be and how long it will take, and it can choose a profile
+ * that fits a size limit with {@link #fitToSize(net.informaticalibera.videoediting.VideoInfo, net.informaticalibera.videoediting.EncodingProfile, long)}
+ * instead of trying the encodings.</p>
+ * <p>
+ * The size is computed from the duration of the section to keep and the
+ * bitrates of the profile (or the size of the source, when it's copied), the
+ * time from the number of pixels to encode (or of bytes to copy), the cost of
+ * the codec and of the speed setting. Both are then corrected with a small
+ * history of the jobs completed on this device, persisted in the
+ * FileSystemStorage: the median ratio between the real and the computed size
+ * and the median speed of the jobs that followed the same encoding path. When
+ * there is no history yet, the defaults assume a software encoder that
+ * encodes 720p at 30 fps in realtime; the hardware encoders are usually much
+ * faster, that is learned after the first jobs.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class Predictor {
+
+    /**
+     * Default number of completed jobs kept in the history.
+     */
+    public static final int DEFAULT_MAX_HISTORY = 50;
+
+    /**
+     * Pixels encoded per ms when there is no history: 720p at 30 fps in
+     * realtime with the fastest H.264 settings.
+     */
+    static final double DEFAULT_PIXEL_RATE = 1280 * 720 * 30 / 1000.0;
+
+    /**
+     * Bytes copied per ms when there is no history.
+     */
+    static final double DEFAULT_COPY_RATE = 20000;
+
+    /**
+     * Bitrate assumed for the source audio when it's copied as is.
+     */
+    private static final int AUDIO_ALLOWANCE = 128000;
+
+    /**
+     * Lowest video bitrate chosen by {@link #fitToSize(net.informaticalibera.videoediting.VideoInfo, net.informaticalibera.videoediting.EncodingProfile, long)}.
+     */
+    private static final int MIN_VIDEO_BITRATE = 100000;
+
+    /**
+     * Bits per pixel under which the resolution is lowered to keep an
+     * acceptable quality.
+     */
+    private static final double MIN_BITS_PER_PIXEL = 0.05;
+
+    private static final int[] RESOLUTIONS = {1080, 720, 540, 480, 360, 240};
+
+    private static final int HISTORY_VERSION = 1;
+
+    private final String historyFile;
+    private final List<Sample> samples = new ArrayList<>();
+    private final Object saveLock = new Object();
+    private int maxHistory = DEFAULT_MAX_HISTORY;
+    private boolean loaded;
+
+    /**
+     * A completed job: how much its real size and speed differed from the
+     * computed ones.
+     */
+    private static final class Sample {
+
+        int path;
+        String codec;
+        double sizeRatio;
+        double rate;
+    }
+
+    Predictor(String historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * Predicts the size of the output and the time of the optimization of
+     * the given source with the given profile.
+     *
+     * @param source info of the source, see
+     * {@link VideoOptimizer#getVideoInfo(java.lang.String)}
+     * @param profile encoding settings, including the time range
+     * @return the prediction
+     */
+    public Prediction predict(VideoInfo source, EncodingProfile profile) {
+        if (source == null || profile == null) {
+            throw new IllegalArgumentException("source and profile cannot be null");
+        }
+        int path = profile.choosePath(source);
+        long keptMillis = getKeptMillis(source, profile);
+        double bytes = computeBytes(source, profile, path, keptMillis);
+        double work = computeWork(source, profile, path, keptMillis) * getCost(profile, path);
+        List<Double> ratios = new ArrayList<>();
+        List<Double> rates = new ArrayList<>();
+        collect(path, profile.getCodec(), ratios, rates);
+        double sizeRatio = ratios.size() > 0 ? median(ratios) : 1;
+        double rate = rates.size() > 0 ? median(rates) : (path == OptimizationJob.PATH_FULL ? DEFAULT_PIXEL_RATE : DEFAULT_COPY_RATE);
+        return new Prediction((long) (bytes * sizeRatio), (long) (work / rate), path, ratios.size(), rates.size());
+    }
+
+    /**
+     * Returns a copy of the given profile whose output is predicted to be no
+     * bigger than the given size: the video bitrate is lowered if needed, and
+     * also the resolution if the bitrate would be too low for it. The other
+     * settings are kept.
+     *
+     * @param source info of the source
+     * @param profile encoding settings, it's not changed
+     * @param maxBytes max size of the output
+     * @return the fitted profile, or null if the output cannot be so small
+     * with an acceptable bitrate
+     */
+    public EncodingProfile fitToSize(VideoInfo source, EncodingProfile profile, long maxBytes) {
+        EncodingProfile fitted = profile.copy();
+        if (predict(source, fitted).getOutputBytes() <= maxBytes) {
+            return fitted;
+        }
+        long keptMillis = getKeptMillis(source, fitted);
+        if (keptMillis <= 0) {
+            return null;
+        }
+        List<Double> ratios = new ArrayList<>();
+        collect(OptimizationJob.PATH_FULL, fitted.getCodec(), ratios, new ArrayList<Double>());
+        double sizeRatio = ratios.size() > 0 ? median(ratios) : 1;
+        long audioBitrate = getAudioBitrate(source, fitted);
+        // 5% less than the limit, for the container
+        long videoBitrate = (long) (maxBytes * 0.95 * 8000 / (keptMillis * sizeRatio)) - audioBitrate;
+        if (videoBitrate < MIN_VIDEO_BITRATE) {
+            return null;
+        }
+        fitted.setVideoBitrate((int) Math.min(videoBitrate, fitted.getVideoBitrate()));
+
+        int shorter = Math.min(source.getWidth(), source.getHeight());
+        int resolution = fitted.getMaxResolution() > 0 && fitted.getMaxResolution() < shorter ? fitted.getMaxResolution() : shorter;
+        double frameRate = getFrameRate(source, fitted);
+        for (int i = 0; i < RESOLUTIONS.length && resolution > 0; i++) {
+            if (RESOLUTIONS[i] >= resolution) {
+                continue;
+            }
+            double pixels = (double) resolution * resolution * Math.max(source.getWidth(), source.getHeight()) / Math.max(1, shorter);
+            if (fitted.getVideoBitrate() / (pixels * frameRate) >= MIN_BITS_PER_PIXEL) {
+                break;
+            }
+            resolution = RESOLUTIONS[i];
+            fitted.setMaxResolution(resolution);
+        }
+        return predict(source, fitted).getOutputBytes() <= maxBytes ? fitted : null;
+    }
+
+    /**
+     * Number of completed jobs in the history.
+     *
+     * @return size
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return samples.size();
+    }
+
+    /**
+     * Max number of completed jobs kept in the history.
+     *
+     * @return max history
+     */
+    public synchronized int getMaxHistory() {
+        return maxHistory;
+    }
+
+    /**
+     * Sets the max number of completed jobs kept in the history; the oldest
+     * are forgotten first, so the predictions follow the changes of the
+     * device (for example a new version of the encoder).
+     *
+     * @param maxHistory at least 1
+     */
+    public void setMaxHistory(int maxHistory) {
+        if (maxHistory < 1) {
+            throw new IllegalArgumentException("maxHistory must be at least 1");
+        }
+        synchronized (this) {
+            this.maxHistory = maxHistory;
+            ensureLoaded();
+            while (samples.size() > maxHistory) {
+                samples.remove(0);
+            }
+        }
+        save();
+    }
+
+    /**
+     * Forgets the history, so the predictions go back to the defaults.
+     */
+    public void clear() {
+        synchronized (this) {
+            ensureLoaded();
+            samples.clear();
+        }
+        save();
+    }
+
+    /**
+     * Adds a completed job to the history.
+     *
+     * @param source info of the source
+     * @param profile encoding settings of the job
+     * @param path encoding path of the job
+     * @param outputBytes size of the output
+     * @param elapsedMillis time from the start of the job to its completion
+     */
+    void record(VideoInfo source, EncodingProfile profile, int path, long outputBytes, long elapsedMillis) {
+        long keptMillis = getKeptMillis(source, profile);
+        double bytes = computeBytes(source, profile, path, keptMillis);
+        double work = computeWork(source, profile, path, keptMillis) * getCost(profile, path);
+        if (outputBytes <= 0 || elapsedMillis <= 0 || bytes <= 0 || work <= 0) {
+            return;
+        }
+        Sample sample = new Sample();
+        sample.path = path;
+        sample.codec = profile.getCodec();
+        sample.sizeRatio = outputBytes / bytes;
+        sample.rate = work / elapsedMillis;
+        synchronized (this) {
+            ensureLoaded();
+            samples.add(sample);
+            while (samples.size() > maxHistory) {
+                samples.remove(0);
+            }
+        }
+        save();
+    }
+
+    /**
+     * Collects the size ratios and the rates of the history for the given
+     * path; for the encoded outputs, the size ratios of the same codec are
+     * preferred, because on some platforms the codec selects an encoder that
+     * doesn't follow the bitrate.
+     */
+    private synchronized void collect(int path, String codec, List<Double> ratios, List<Double> rates) {
+        ensureLoaded();
+        List<Double> otherRatios = new ArrayList<>();
+        for (Sample sample : samples) {
+            if (sample.path != path) {
+                continue;
+            }
+            rates.add(sample.rate);
+            if (path != OptimizationJob.PATH_FULL || sample.codec.equals(codec)) {
+                ratios.add(sample.sizeRatio);
+            } else {
+                otherRatios.add(sample.sizeRatio);
+            }
+        }
+        if (ratios.size() == 0) {
+            ratios.addAll(otherRatios);
+        }
+    }
+
+    /**
+     * Duration of the section of the source to keep.
+     *
+     * @return ms
+     */
+    private static long getKeptMillis(VideoInfo source, EncodingProfile profile) {
+        long duration = source.getDurationMillis();
+        if (duration <= 0 || !profile.isTrimmed()) {
+            return Math.max(0, duration);
+        }
+        long end = profile.getEndTime() > 0 ? Math.min(profile.getEndTime(), duration) : duration;
+        return Math.max(0, end - profile.getStartTime());
+    }
+
+    private static long getAudioBitrate(VideoInfo source, EncodingProfile profile) {
+        if (!source.hasAudio()) {
+            return 0;
+        }
+        return profile.getAudioBitrate() > 0 ? profile.getAudioBitrate() : AUDIO_ALLOWANCE;
+    }
+
+    private static double getFrameRate(VideoInfo source, EncodingProfile profile) {
+        double frameRate = source.getFrameRate() > 0 ? source.getFrameRate() : 30;
+        if (profile.getMaxFrameRate() > 0) {
+            frameRate = Math.min(frameRate, profile.getMaxFrameRate());
+        }
+        return frameRate;
+    }
+
+    /**
+     * Size of the output computed from the bitrates.
+     *
+     * @return bytes
+     */
+    private static double computeBytes(VideoInfo source, EncodingProfile profile, int path, long keptMillis) {
+        long sourceBitrate = source.getBitrate();
+        if (sourceBitrate <= 0 && source.getFileSize() > 0 && source.getDurationMillis() > 0) {
+            sourceBitrate = source.getFileSize() * 8000 / source.getDurationMillis();
+        }
+        long bitrate;
+        if (path == OptimizationJob.PATH_PASSTHROUGH) {
+            bitrate = sourceBitrate;
+        } else if (path == OptimizationJob.PATH_AUDIO_ONLY) {
+            bitrate = Math.max(0, sourceBitrate - AUDIO_ALLOWANCE) + getAudioBitrate(source, profile);
+        } else {
+            // the encoders don't raise the bitrate of the source
+            long videoBitrate = sourceBitrate > 0 ? Math.min(profile.getVideoBitrate(), sourceBitrate) : profile.getVideoBitrate();
+            bitrate = videoBitrate + getAudioBitrate(source, profile);
+        }
+        return (double) keptMillis * bitrate / 8000;
+    }
+
+    /**
+     * Work of the job: pixels to encode for an encoded output, bytes to copy
+     * otherwise.
+     */
+    private static double computeWork(VideoInfo source, EncodingProfile profile, int path, long keptMillis) {
+        if (path != OptimizationJob.PATH_FULL) {
+            if (source.getFileSize() > 0 && source.getDurationMillis() > 0) {
+                return (double) source.getFileSize() * keptMillis / source.getDurationMillis();
+            }
+            return computeBytes(source, profile, path, keptMillis);
+        }
+        double shorter = Math.min(source.getWidth(), source.getHeight());
+        double longer = Math.max(source.getWidth(), source.getHeight());
+        if (profile.getMaxResolution() > 0 && shorter > profile.getMaxResolution()) {
+            longer = longer * profile.getMaxResolution() / shorter;
+            shorter = profile.getMaxResolution();
+        }
+        return shorter * longer * getFrameRate(source, profile) * keptMillis / 1000;
+    }
+
+    /**
+     * Relative cost of a unit of work, compared to the fastest H.264
+     * settings or to a plain copy.
+     */
+    private static double getCost(EncodingProfile profile, int path) {
+        if (path != OptimizationJob.PATH_FULL) {
+            return 1;
+        }
+        double codecCost = 1;
+        if (EncodingProfile.CODEC_MPEG4.equals(profile.getCodec())) {
+            codecCost = 0.5;
+        } else if (EncodingProfile.CODEC_HEVC.equals(profile.getCodec())) {
+            codecCost = 2.5;
+        }
+        return codecCost * (1 + 0.6 * profile.getSpeed());
+    }
+
+    private static double median(List<Double> values) {
+        double[] sorted = new double[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            double value = values.get(i);
+            int j = i;
+            while (j > 0 && sorted[j - 1] > value) {
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sorted[j] = value;
+        }
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    /**
+     * Loads the persisted history, if not already done; must be invoked
+     * holding the lock of this object.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (!fs.exists(historyFile)) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(fs.openInputStream(historyFile));
+            if (in.readInt() != HISTORY_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Sample sample = new Sample();
+                sample.path = in.readInt();
+                sample.codec = in.readUTF();
+                sample.sizeRatio = in.readDouble();
+                sample.rate = in.readDouble();
+                samples.add(sample);
+            }
+        } catch (IOException ex) {
+            Log.p("Predictor -> The history cannot be read, it will be rebuilt: " + ex.getMessage(), Log.WARNING);
+            samples.clear();
+        } finally {
+            Util.cleanup(in);
+        }
+    }
+
+    /**
+     * Persists the history, from the oldest to the newest job.
+     */
+    private void save() {
+        synchronized (saveLock) {
+            List<Sample> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(samples);
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(FileSystemStorage.getInstance().openOutputStream(historyFile));
+                out.writeInt(HISTORY_VERSION);
+                out.writeInt(snapshot.size());
+                for (Sample sample : snapshot) {
+                    out.writeInt(sample.path);
+                    out.writeUTF(sample.codec);
+                    out.writeDouble(sample.sizeRatio);
+                    out.writeDouble(sample.rate);
+                }
+            } catch (IOException ex) {
+                Log.p("Predictor -> The history cannot be saved: " + ex.getMessage(), Log.WARNING);
+            } finally {
+                Util.cleanup(out);
+            }
+        }
+    }
+
+}
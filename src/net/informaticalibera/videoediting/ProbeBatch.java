@@ -0,0 +1,137 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * Handle of a batch probe submitted with
+ * {@link VideoOptimizer#probeVideos(java.lang.String[], net.informaticalibera.videoediting.OnProbe, java.lang.Runnable)}:
+ * it tells how many videos have been probed, it gives the results collected
+ * so far and it allows to cancel the videos that are still waiting.
+ *
+ * @author Francesco Galgani
+ */
+public final class ProbeBatch {
+
+    private final String[] videoFiles;
+    private final VideoInfo[] results;
+    private final OnProbe onProbeCallback;
+    private final Runnable onCompleteCallback;
+    private int completed = 0;
+    private boolean cancelled = false;
+
+    ProbeBatch(String[] videoFiles, OnProbe onProbeCallback, Runnable onCompleteCallback) {
+        this.videoFiles = new String[videoFiles.length];
+        System.arraycopy(videoFiles, 0, this.videoFiles, 0, videoFiles.length);
+        this.results = new VideoInfo[videoFiles.length];
+        this.onProbeCallback = onProbeCallback;
+        this.onCompleteCallback = onCompleteCallback;
+    }
+
+    /**
+     * Number of videos of the batch.
+     *
+     * @return count
+     */
+    public int getCount() {
+        return videoFiles.length;
+    }
+
+    /**
+     * The video at the given position of the batch.
+     *
+     * @param index from 0 to getCount() - 1
+     * @return FileSystemStorage path
+     */
+    public String getVideoFile(int index) {
+        return videoFiles[index];
+    }
+
+    /**
+     * Number of videos already probed.
+     *
+     * @return completed count
+     */
+    public synchronized int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * True if all the videos have been probed or if the batch was cancelled.
+     *
+     * @return true when no more callbacks will be invoked
+     */
+    public synchronized boolean isDone() {
+        return cancelled || completed == videoFiles.length;
+    }
+
+    /**
+     * The info of the video at the given position of the batch.
+     *
+     * @param index from 0 to getCount() - 1
+     * @return the info, or null if the video was not probed yet or in case of
+     * error
+     */
+    public synchronized VideoInfo getInfo(int index) {
+        return results[index];
+    }
+
+    /**
+     * Cancels the videos that are still waiting: the running probes complete,
+     * but no more callbacks are invoked.
+     *
+     * @return true if the batch was not done yet
+     */
+    public synchronized boolean cancel() {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stores the result of a probe and delivers it; the completion callback
+     * is delivered after the last result.
+     *
+     * @param pool executor of the callbacks
+     * @param index position of the video
+     * @param info result, it can be null
+     */
+    void probed(ProbePool pool, int index, VideoInfo info) {
+        boolean last;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            results[index] = info;
+            completed++;
+            last = completed == videoFiles.length;
+        }
+        pool.deliver(() -> {
+            if (isCancelled()) {
+                return;
+            }
+            if (onProbeCallback != null) {
+                onProbeCallback.probed(index, videoFiles[index], info);
+            }
+            if (last && onCompleteCallback != null) {
+                onCompleteCallback.run();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.Log;
+import com.codename1.ui.CN;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Background threads that run the asynchronous metadata requests of
+ * {@link VideoOptimizer} (the video info, the previews and the batch probes),
+ * so that reading the files never blocks the EDT or the native UI
+ * thread.</p>
+ * <p>
+ * The requests are executed in submission order by at most
+ * {@link #getMaxConcurrency()} threads at the same time; the threads are
+ * started when there are queued requests and they end when the queue is
+ * empty, so the pool doesn't keep idle threads. The results are delivered on
+ * the EDT or on the chosen {@link CallbackExecutor}.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class ProbePool {
+
+    /**
+     * Default max number of files probed at the same time: probing is
+     * limited by the storage more than by the cpu.
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+    private final List<Runnable> queue = new ArrayList<>();
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int workers = 0;
+    // workers that are not executing a request, they are going to take one from the queue or to exit
+    private int idle = 0;
+    private int workerCount = 0;
+    private CallbackExecutor executor = CallbackExecutor.EDT;
+
+    ProbePool() {
+    }
+
+    /**
+     * Max number of requests executed at the same time.
+     *
+     * @return max concurrency
+     */
+    public synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Sets the max number of requests executed at the same time; the running
+     * requests are not interrupted if the limit is lowered.
+     *
+     * @param maxConcurrency at least 1
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        synchronized (this) {
+            this.maxConcurrency = maxConcurrency;
+        }
+        startWorkers();
+    }
+
+    /**
+     * Executor of the callbacks of the asynchronous requests.
+     *
+     * @return executor
+     */
+    public synchronized CallbackExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor of the callbacks of the asynchronous requests, by
+     * default {@link CallbackExecutor#EDT}.
+     *
+     * @param executor not null
+     */
+    public synchronized void setExecutor(CallbackExecutor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Number of requests waiting for a thread.
+     *
+     * @return queued requests
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Number of threads that are executing requests.
+     *
+     * @return running threads
+     */
+    public synchronized int getRunningCount() {
+        return workers - idle;
+    }
+
+    /**
+     * Queues the given request; it's executed on a thread of the pool.
+     *
+     * @param task to execute, it must deliver its result through
+     * {@link #deliver(java.lang.Runnable)}
+     */
+    void submit(Runnable task) {
+        synchronized (this) {
+            queue.add(task);
+        }
+        startWorkers();
+    }
+
+    /**
+     * Executes the given callback with the executor of the pool.
+     *
+     * @param callback to execute
+     */
+    void deliver(Runnable callback) {
+        getExecutor().execute(callback);
+    }
+
+    private void startWorkers() {
+        while (true) {
+            int number;
+            synchronized (this) {
+                if (workers >= maxConcurrency || idle >= queue.size()) {
+                    return;
+                }
+                workers++;
+                idle++;
+                number = ++workerCount;
+            }
+            CN.startThread(() -> work(), "VideoOptimizer probe " + number).start();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                if (queue.size() == 0 || workers > maxConcurrency) {
+                    workers--;
+                    idle--;
+                    return;
+                }
+                task = queue.remove(0);
+                idle--;
+            }
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                Log.p("ProbePool -> a request failed: " + ex, Log.ERROR);
+                Log.e(ex);
+            }
+            synchronized (this) {
+                idle++;
+            }
+        }
+    }
+
+}
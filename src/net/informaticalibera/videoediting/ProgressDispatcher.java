@@ -0,0 +1,270 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.ui.CN;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Delivers the progress of the running optimizations to their
+ * {@link OnProgress} and {@link OnProgressEvent} callbacks.</p>
+ * <p>
+ * The native code pushes the progress samples as soon as it has them; the
+ * dispatcher keeps only the latest sample of each job and delivers it at most
+ * once every {@link #getMinInterval()} ms, on the EDT or on the chosen
+ * {@link CallbackExecutor}. It doesn't use any thread or timer: a sample that
+ * arrives too early is delivered together with the next one (or it's
+ * superseded by it), the latest sample is delivered when the job finishes,
+ * before its completion callbacks, and at most one delivery per job is
+ * waiting in the executor at any time.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class ProgressDispatcher {
+
+    /**
+     * Default min interval between two deliveries to the same callback.
+     */
+    public static final int DEFAULT_MIN_INTERVAL = 500;
+
+    private final Map<String, JobProgress> jobs = new HashMap<>();
+    private CallbackExecutor executor = CallbackExecutor.EDT;
+    private int minInterval = DEFAULT_MIN_INTERVAL;
+
+    private static class JobProgress {
+
+        final OnProgress callback;
+        final OptimizationJob job;
+        final long startTime = System.currentTimeMillis();
+        int latest = 0;
+        ProgressEvent latestEvent;
+        int delivered = -1;
+        ProgressEvent deliveredEvent;
+        long lastDelivery = 0;
+        boolean pending = false;
+        boolean removed = false;
+
+        JobProgress(OnProgress callback, OptimizationJob job) {
+            this.callback = callback;
+            this.job = job;
+        }
+
+        OnProgressEvent getEventCallback() {
+            return job.getOnProgressEventCallback();
+        }
+    }
+
+    ProgressDispatcher() {
+    }
+
+    /**
+     * Min interval between two deliveries to the same callback.
+     *
+     * @return ms
+     */
+    public synchronized int getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * Sets the min interval between two deliveries to the same callback, that
+     * is the max rate of the progress updates.
+     *
+     * @param minInterval ms, 0 to deliver every sample
+     */
+    public synchronized void setMinInterval(int minInterval) {
+        if (minInterval < 0) {
+            throw new IllegalArgumentException("minInterval cannot be negative");
+        }
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * Executor of the progress callbacks.
+     *
+     * @return executor
+     */
+    public synchronized CallbackExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor of the progress callbacks, by default
+     * {@link CallbackExecutor#EDT}.
+     *
+     * @param executor not null
+     */
+    public synchronized void setExecutor(CallbackExecutor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Starts tracking the progress of the given job, delivering it to its
+     * OnProgress callback and to its OnProgressEvent callback, that can be
+     * set while the job is running.
+     *
+     * @param job the started job
+     */
+    synchronized void register(OptimizationJob job) {
+        jobs.put(job.getId(), new JobProgress(job.onProgressCallback, job));
+    }
+
+    /**
+     * Stops tracking the progress of the given job and delivers its latest
+     * sample, if not delivered yet; a delivery still waiting in the executor is
+     * discarded. It's invoked on the EDT before the completion callbacks of
+     * the job, so with the EDT executor the sample is delivered before them.
+     *
+     * @param jobId opaque id of the job
+     */
+    void unregister(String jobId) {
+        JobProgress job;
+        CallbackExecutor target;
+        synchronized (this) {
+            job = jobs.remove(jobId);
+            if (job == null) {
+                return;
+            }
+            job.removed = true;
+            target = executor;
+        }
+        if (target == CallbackExecutor.EDT && CN.isEdt()) {
+            deliver(job, true);
+        } else {
+            target.execute(() -> deliver(job, true));
+        }
+    }
+
+    /**
+     * Returns the latest progress sample of the given job.
+     *
+     * @param jobId opaque id of the job
+     * @return a number from 0 to 99 (0 if the job is unknown)
+     */
+    synchronized int getProgress(String jobId) {
+        JobProgress job = jobs.get(jobId);
+        return job != null ? job.latest : 0;
+    }
+
+    /**
+     * Returns the latest detailed progress of the given job.
+     *
+     * @param jobId opaque id of the job
+     * @return the event, or null if the job is unknown or it didn't report
+     * any progress yet
+     */
+    synchronized ProgressEvent getProgressEvent(String jobId) {
+        JobProgress job = jobs.get(jobId);
+        return job != null ? job.latestEvent : null;
+    }
+
+    /**
+     * Receives a progress sample from the native code.
+     *
+     * @param jobId opaque id of the job
+     * @param progress percentage
+     */
+    void publish(String jobId, int progress) {
+        publish(jobId, progress, null);
+    }
+
+    /**
+     * Receives a detailed progress sample from the native code.
+     *
+     * @param jobId opaque id of the job
+     * @param stats see
+     * {@link VideoEditingCallbacks#setProgressStats(java.lang.String, java.lang.String)}
+     */
+    void publishStats(String jobId, String stats) {
+        publish(jobId, -1, stats);
+    }
+
+    /**
+     * Stores the latest sample of the given job and, if the min interval is
+     * elapsed, schedules its delivery.
+     *
+     * @param progress percentage, used if stats is null
+     * @param stats detailed sample, it can be null
+     */
+    private void publish(String jobId, int progress, String stats) {
+        JobProgress job;
+        synchronized (this) {
+            job = jobs.get(jobId);
+        }
+        if (job == null) {
+            return;
+        }
+        // the callback is read outside of the lock, because it can be changed while the job is running
+        boolean eventCallback = job.getEventCallback() != null;
+        long elapsed = System.currentTimeMillis() - job.startTime;
+        ProgressEvent event = stats != null ? ProgressEvent.fromNative(jobId, stats, elapsed) : ProgressEvent.fromPercentage(jobId, progress, elapsed);
+        if (event == null) {
+            return;
+        }
+        CallbackExecutor target;
+        synchronized (this) {
+            job.latest = event.getPercentage();
+            job.latestEvent = event;
+            if ((job.callback == null && !eventCallback) || job.pending) {
+                return;
+            }
+            if (job.latest == job.delivered && !eventCallback) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - job.lastDelivery < minInterval) {
+                // it's delivered by the next sample or when the job finishes
+                return;
+            }
+            job.pending = true;
+            job.lastDelivery = now;
+            target = executor;
+        }
+        target.execute(() -> deliver(job, false));
+    }
+
+    /**
+     * Delivers the samples not delivered yet.
+     *
+     * @param last true for the delivery done when the job finishes
+     */
+    private void deliver(JobProgress job, boolean last) {
+        OnProgressEvent eventCallback = job.getEventCallback();
+        int value;
+        ProgressEvent event;
+        synchronized (this) {
+            if (!last) {
+                job.pending = false;
+                if (job.removed) {
+                    return;
+                }
+            }
+            event = job.latestEvent != job.deliveredEvent ? job.latestEvent : null;
+            value = job.latest != job.delivered ? job.latest : -1;
+            job.delivered = job.latest;
+            job.deliveredEvent = job.latestEvent;
+        }
+        if (value >= 0 && job.callback != null) {
+            job.callback.update(value);
+        }
+        if (event != null && eventCallback != null) {
+            eventCallback.update(event);
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.util.StringUtil;
+import java.util.List;
+
+/**
+ * <p>
+ * Immutable snapshot of the progress of a running optimization, delivered to
+ * the {@link OnProgressEvent} callback of the job: besides the percentage, it
+ * tells how much media has been processed, how many frames and bytes have
+ * been written, how fast the encoder is compared to the playback speed and
+ * how long it should still take.</p>
+ * <p>
+ * The values that the platform doesn't report are -1 (0 for the speed): on
+ * Android they come from the statistics of FFmpeg; on iOS
+ * AVAssetExportSession reports only the fraction of the work done, so the
+ * frames are estimated from the frame rate of the source and the bytes are
+ * read from the size of the output file.</p>
+ *
+ * @author Francesco Galgani
+ */
+public final class ProgressEvent {
+
+    private final String jobId;
+    private final int percentage;
+    private final long processedMillis;
+    private final long durationMillis;
+    private final long frames;
+    private final long outputBytes;
+    private final double speed;
+    private final long elapsedMillis;
+    private final long remainingMillis;
+
+    ProgressEvent(String jobId, int percentage, long processedMillis, long durationMillis, long frames, long outputBytes, double speed, long elapsedMillis, long remainingMillis) {
+        this.jobId = jobId;
+        this.percentage = percentage;
+        this.processedMillis = processedMillis;
+        this.durationMillis = durationMillis;
+        this.frames = frames;
+        this.outputBytes = outputBytes;
+        this.speed = speed;
+        this.elapsedMillis = elapsedMillis;
+        this.remainingMillis = remainingMillis;
+    }
+
+    /**
+     * Builds an event from a progress sample of the native code.
+     *
+     * @param jobId opaque id of the job
+     * @param stats semicolon separated list of key=value pairs, see
+     * {@link VideoEditingCallbacks#setProgressStats(java.lang.String, java.lang.String)}
+     * @param elapsedMillis time since the start of the job
+     * @return the event, or null if the sample is not valid
+     */
+    static ProgressEvent fromNative(String jobId, String stats, long elapsedMillis) {
+        if (stats == null) {
+            return null;
+        }
+        long time = -1;
+        long duration = -1;
+        long frames = -1;
+        long size = -1;
+        double speed = 0;
+        List<String> pairs = StringUtil.tokenize(stats, ";");
+        try {
+            for (String pair : pairs) {
+                int index = pair.indexOf('=');
+                if (index < 0 || index == pair.length() - 1) {
+                    continue;
+                }
+                String key = pair.substring(0, index);
+                String value = pair.substring(index + 1);
+                if ("time".equals(key)) {
+                    time = Long.parseLong(value);
+                } else if ("duration".equals(key)) {
+                    duration = Long.parseLong(value);
+                } else if ("frames".equals(key)) {
+                    frames = Long.parseLong(value);
+                } else if ("size".equals(key)) {
+                    size = Long.parseLong(value);
+                } else if ("speed".equals(key)) {
+                    speed = Double.parseDouble(value);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        if (time < 0 || duration <= 0) {
+            return null;
+        }
+        time = Math.min(time, duration);
+        if (speed <= 0 && elapsedMillis > 0 && time > 0) {
+            // average speed since the start of the job
+            speed = (double) time / elapsedMillis;
+        }
+        long remaining = -1;
+        if (speed > 0) {
+            remaining = (long) ((duration - time) / speed);
+        }
+        int percentage = (int) Math.min(99, time * 100 / duration);
+        return new ProgressEvent(jobId, percentage, time, duration, frames, size, speed, elapsedMillis, remaining);
+    }
+
+    /**
+     * Builds an event from a progress sample that has only the percentage.
+     *
+     * @param jobId opaque id of the job
+     * @param percentage from 0 to 99
+     * @param elapsedMillis time since the start of the job
+     * @return the event
+     */
+    static ProgressEvent fromPercentage(String jobId, int percentage, long elapsedMillis) {
+        long remaining = -1;
+        if (percentage > 0 && elapsedMillis > 0) {
+            remaining = elapsedMillis * (100 - percentage) / percentage;
+        }
+        return new ProgressEvent(jobId, percentage, -1, -1, -1, -1, 0, elapsedMillis, remaining);
+    }
+
+    /**
+     * Id of the job.
+     *
+     * @return opaque id, see {@link OptimizationJob#getId()}
+     */
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Progress percentage, the same value passed to {@link OnProgress}.
+     *
+     * @return from 0 to 99
+     */
+    public int getPercentage() {
+        return percentage;
+    }
+
+    /**
+     * Media time already processed, from the start of the section to keep.
+     *
+     * @return ms, or -1 if unknown
+     */
+    public long getProcessedMillis() {
+        return processedMillis;
+    }
+
+    /**
+     * Media time to process, that is the duration of the section to keep
+     * (the whole video if it's not trimmed); for a multi-rendition job, the
+     * sum of the renditions that are exported one after the other.
+     *
+     * @return ms, or -1 if unknown
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Number of video frames encoded so far.
+     *
+     * @return frames, or -1 if unknown
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Number of bytes of the output written so far.
+     *
+     * @return bytes, or -1 if unknown
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Current speed of the encoder compared to the playback speed, for
+     * example 2.5 if a second of video is processed in 400 ms.
+     *
+     * @return times realtime, or 0 if unknown
+     */
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Time since the start of the job.
+     *
+     * @return ms
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Estimated time to complete the job, according to the current speed.
+     *
+     * @return ms, or -1 if unknown
+     */
+    public long getRemainingMillis() {
+        return remainingMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgressEvent{jobId=" + jobId + ", percentage=" + percentage + ", processedMillis=" + processedMillis
+                + ", durationMillis=" + durationMillis + ", frames=" + frames + ", outputBytes=" + outputBytes
+                + ", speed=" + speed + ", elapsedMillis=" + elapsedMillis + ", remainingMillis=" + remainingMillis + "}";
+    }
+
+}
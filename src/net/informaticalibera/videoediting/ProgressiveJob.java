@@ -0,0 +1,198 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.Log;
+import com.codename1.util.OnComplete;
+
+/**
+ * <p>
+ * Handle of a two-stage optimization submitted with
+ * {@link VideoOptimizer#optimizeVideoProgressive(java.lang.String, net.informaticalibera.videoediting.EncodingProfile, com.codename1.util.OnComplete, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)}:
+ * first a small proxy of the video is encoded with
+ * {@link EncodingProfile#proxyProfile()} at high priority, so it can be
+ * uploaded and shown within seconds; when the proxy is ready (or if it
+ * fails), the full quality optimization is submitted at low priority, so it
+ * doesn't delay the proxies of the other videos.</p>
+ * <p>
+ * Both stages are normal {@link OptimizationJob}s of the shared
+ * {@link OptimizationScheduler}; cancelling this handle cancels both.</p>
+ *
+ * @author Francesco Galgani
+ */
+public final class ProgressiveJob {
+
+    private final String videoFile;
+    private final EncodingProfile profile;
+    private final OnComplete<String> onProxyCallback;
+    private final OnComplete<String> onCompleteCallback;
+    private final Runnable onFailureCallback;
+    private final OnProgress onProgressCallback;
+    private OptimizationScheduler scheduler;
+    private OptimizationJob proxyJob;
+    private OptimizationJob fullJob;
+    private Runnable onCancelCallback;
+    private boolean cancelRequested;
+    private boolean cancelled;
+    private boolean failed;
+
+    ProgressiveJob(String videoFile, EncodingProfile profile, OnComplete<String> onProxyCallback, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        this.videoFile = videoFile;
+        this.profile = profile != null ? profile.copy() : EncodingProfile.defaultProfile();
+        this.onProxyCallback = onProxyCallback;
+        this.onCompleteCallback = onCompleteCallback;
+        this.onFailureCallback = onFailureCallback;
+        this.onProgressCallback = onProgressCallback;
+    }
+
+    /**
+     * Submits the proxy stage.
+     *
+     * @param scheduler the shared scheduler
+     * @throws IllegalStateException if the queue of the scheduler is full
+     */
+    void submit(OptimizationScheduler scheduler) {
+        EncodingProfile proxyProfile = EncodingProfile.proxyProfile();
+        if (profile.isTrimmed()) {
+            proxyProfile.setTimeRange(profile.getStartTime(), profile.getEndTime());
+        }
+        OptimizationJob job = new OptimizationJob(videoFile, proxyProfile, OptimizationJob.PRIORITY_HIGH,
+                proxyFile -> proxyFinished(proxyFile), () -> proxyFinished(null), null);
+        job.setOnCancelCallback(() -> cancelled());
+        synchronized (this) {
+            this.scheduler = scheduler;
+            proxyJob = job;
+        }
+        scheduler.submit(job);
+    }
+
+    private void proxyFinished(String proxyFile) {
+        if (proxyFile != null) {
+            onProxyCallback.completed(proxyFile);
+        } else {
+            Log.p("ProgressiveJob -> The proxy of " + videoFile + " failed, the full quality optimization is started anyway", Log.WARNING);
+        }
+        OptimizationJob job = new OptimizationJob(videoFile, profile, OptimizationJob.PRIORITY_LOW, onCompleteCallback, onFailureCallback, onProgressCallback);
+        job.setOnCancelCallback(() -> cancelled());
+        boolean submit;
+        synchronized (this) {
+            submit = !cancelRequested;
+            if (submit) {
+                fullJob = job;
+            }
+        }
+        if (!submit) {
+            // cancelled while the proxy was completing
+            cancelled();
+            return;
+        }
+        try {
+            getScheduler().submit(job);
+        } catch (IllegalStateException ex) {
+            Log.p("ProgressiveJob -> The full quality optimization of " + videoFile + " cannot be submitted: " + ex.getMessage(), Log.ERROR);
+            synchronized (this) {
+                fullJob = null;
+                failed = true;
+            }
+            onFailureCallback.run();
+        }
+    }
+
+    /**
+     * Invoked when one of the stages is cancelled, even by
+     * {@link VideoOptimizer#cancelAll()}: the whole job is cancelled.
+     */
+    private void cancelled() {
+        Runnable onCancel;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelRequested = true;
+            cancelled = true;
+            onCancel = onCancelCallback;
+        }
+        if (onCancel != null) {
+            onCancel.run();
+        }
+    }
+
+    private synchronized OptimizationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Sets the callback executed (by the EDT) when the job is cancelled.
+     *
+     * @param onCancelCallback it can be null
+     * @return this job
+     */
+    public synchronized ProgressiveJob setOnCancelCallback(Runnable onCancelCallback) {
+        this.onCancelCallback = onCancelCallback;
+        return this;
+    }
+
+    /**
+     * The proxy stage.
+     *
+     * @return the job that encodes the proxy
+     */
+    public synchronized OptimizationJob getProxyJob() {
+        return proxyJob;
+    }
+
+    /**
+     * The full quality stage, submitted when the proxy stage ends.
+     *
+     * @return the job, or null if it's not submitted yet
+     */
+    public synchronized OptimizationJob getFullJob() {
+        return fullJob;
+    }
+
+    /**
+     * Returns true if both the stages ended, or if the job was cancelled or
+     * the full quality stage could not be submitted.
+     *
+     * @return true if done
+     */
+    public synchronized boolean isDone() {
+        return cancelled || failed || (fullJob != null && fullJob.isDone());
+    }
+
+    /**
+     * Cancels the stage being executed and prevents the full quality stage
+     * from starting, if it's not started yet.
+     *
+     * @return true if the job was not done yet
+     */
+    public boolean cancel() {
+        OptimizationJob proxy;
+        OptimizationJob full;
+        synchronized (this) {
+            if (cancelled || failed || (fullJob != null && fullJob.isDone())) {
+                return false;
+            }
+            cancelRequested = true;
+            proxy = proxyJob;
+            full = fullJob;
+        }
+        if (full != null) {
+            return full.cancel();
+        }
+        // if the proxy is already completed, the full stage is not submitted
+        proxy.cancel();
+        return true;
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import java.io.IOException;
+
+/**
+ * Read-only source of bytes that supports positional reads, used by the
+ * container parser to read only the parts of a video file that it needs.
+ * Implementations can be backed by NIO channels (where available) or by plain
+ * streams.
+ *
+ * @author Francesco Galgani
+ */
+interface RandomAccessInput {
+
+    /**
+     * Returns the total length in bytes of the source.
+     *
+     * @return length in bytes
+     * @throws IOException
+     */
+    public long length() throws IOException;
+
+    /**
+     * Reads up to length bytes starting from the given absolute position,
+     * without changing any shared state visible to the caller.
+     *
+     * @param position absolute position in the source
+     * @param buffer destination buffer
+     * @param offset offset in the buffer
+     * @param length max number of bytes to read
+     * @return the number of bytes read, or -1 if the position is at the end of
+     * the source
+     * @throws IOException
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Releases the underlying resources.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException;
+
+}
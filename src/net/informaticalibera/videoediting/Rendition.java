@@ -0,0 +1,65 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * One of the outputs of a multi-rendition optimization, see
+ * {@link VideoOptimizer#optimizeVideoRenditions(java.lang.String, net.informaticalibera.videoediting.EncodingProfile[], com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)}.
+ *
+ * @author Francesco Galgani
+ */
+public final class Rendition {
+
+    private final EncodingProfile profile;
+    String outputFile;
+    long size = -1;
+
+    Rendition(EncodingProfile profile, String outputFile) {
+        this.profile = profile;
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * The encoding settings of this rendition.
+     *
+     * @return a copy of the profile given at submission
+     */
+    public EncodingProfile getProfile() {
+        return profile.copy();
+    }
+
+    /**
+     * The optimized video of this rendition; it's ready only when the job is
+     * completed.
+     *
+     * @return FileSystemStorage path
+     */
+    public synchronized String getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Size of the optimized video of this rendition.
+     *
+     * @return bytes, or -1 if the job is not completed
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Rendition{outputFile=" + getOutputFile() + ", size=" + getSize() + ", profile=" + profile + "}";
+    }
+
+}
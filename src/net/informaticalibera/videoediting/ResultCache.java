@@ -0,0 +1,451 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Optional cache of the outputs of the optimizations, shared by all the
+ * instances of {@link VideoOptimizer} (see
+ * {@link VideoOptimizer#getResultCache()}), so that the same video optimized
+ * again with the same profile (for example a clip shared twice, or a retry
+ * after a failed upload) is not encoded again: the job completes with a copy
+ * of the previous output.</p>
+ * <p>
+ * The entries are keyed on a fingerprint of the content of the source, not on
+ * its path, so a copy of the same video is recognized too. The fingerprint
+ * is the size of the source and a 64 bit FNV-1a hash of its whole content,
+ * so two videos that differ in any byte have different keys; it's computed
+ * in background, before the job is encoded.</p>
+ * <p>
+ * The cache keeps its own copies of the outputs in the directory of the
+ * {@link Workspace} (that doesn't track them), so the app can freely delete
+ * or move the delivered files; when the total size exceeds
+ * {@link #getMaxBytes()}, the least recently used copies are deleted. The
+ * index is persisted in the FileSystemStorage. The multi-rendition and
+ * the fragmented jobs are not cached.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class ResultCache {
+
+    /**
+     * Default max total size of the cached outputs: 256 MB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final int INDEX_VERSION = 2;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String indexFile;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Object saveLock = new Object();
+    private boolean enabled;
+    private long maxBytes;
+    private long totalBytes;
+    private boolean loaded;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    private static final class Entry {
+
+        String key;
+        String file;
+        long size;
+    }
+
+    ResultCache(String indexFile, long maxBytes) {
+        this.indexFile = indexFile;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns true if the outputs are cached.
+     *
+     * @return true if enabled
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the cache; when it's disabled, the cached outputs
+     * are kept but they are not used.
+     *
+     * @param enabled false by default
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Max total size of the cached outputs.
+     *
+     * @return bytes
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the max total size of the cached outputs; the least recently used
+     * outputs are deleted if the limit is exceeded.
+     *
+     * @param maxBytes at least 1 MB
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 1024 * 1024) {
+            throw new IllegalArgumentException("maxBytes must be at least 1 MB");
+        }
+        List<Entry> evicted;
+        synchronized (this) {
+            ensureLoaded();
+            this.maxBytes = maxBytes;
+            evicted = evict();
+        }
+        if (evicted.size() > 0) {
+            deleteFiles(evicted);
+            save();
+        }
+    }
+
+    /**
+     * Total size of the cached outputs.
+     *
+     * @return bytes
+     */
+    public synchronized long getTotalBytes() {
+        ensureLoaded();
+        return totalBytes;
+    }
+
+    /**
+     * Number of cached outputs.
+     *
+     * @return size
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    /**
+     * Number of jobs completed with a cached output since the app start (or
+     * since the last clear).
+     *
+     * @return hits
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of jobs that had to be encoded since the app start (or since the
+     * last clear).
+     *
+     * @return misses
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of outputs deleted because the cache was full since the app
+     * start (or since the last clear).
+     *
+     * @return evictions
+     */
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Deletes all the cached outputs and resets the counters.
+     */
+    public void clear() {
+        List<Entry> removed;
+        synchronized (this) {
+            ensureLoaded();
+            removed = new ArrayList<>(entries.values());
+            entries.clear();
+            totalBytes = 0;
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+        }
+        deleteFiles(removed);
+        save();
+    }
+
+    /**
+     * Computes the fingerprint of the content of the given file, reading it
+     * all; it must not be invoked on the EDT.
+     *
+     * @param file placed in FileSystemStorage
+     * @return the size and the hash of the content, in hex digits
+     * @throws IOException if the file cannot be read
+     */
+    static String fingerprint(String file) throws IOException {
+        StorageInput input = new StorageInput(file);
+        try {
+            long length = input.length();
+            long hash = FNV_OFFSET_BASIS;
+            byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+            while (position < length) {
+                int count = input.read(position, buffer, 0, (int) Math.min(buffer.length, length - position));
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                for (int i = 0; i < count; i++) {
+                    hash = (hash ^ (buffer[i] & 0xff)) * FNV_PRIME;
+                }
+                position += count;
+            }
+            String hex = Long.toHexString(hash);
+            while (hex.length() < 16) {
+                hex = "0" + hex;
+            }
+            return Long.toHexString(length) + "-" + hex;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the key of the output of the given source optimized with the
+     * given profile.
+     *
+     * @param inputFile placed in FileSystemStorage
+     * @param nativeProfile see {@link EncodingProfile#toNative()}
+     * @return the key, or null if the source cannot be read
+     */
+    static String getKey(String inputFile, String nativeProfile) {
+        try {
+            return fingerprint(inputFile) + ";" + nativeProfile;
+        } catch (IOException ex) {
+            Log.p("ResultCache -> Cannot compute the fingerprint of " + inputFile + ": " + ex.getMessage(), Log.WARNING);
+            return null;
+        }
+    }
+
+    /**
+     * Copies the cached output of the given key to the given file.
+     *
+     * @param videoEditing native interface used to copy the file
+     * @param key see {@link #getKey(java.lang.String, java.lang.String)}
+     * @param outputFile placed in FileSystemStorage, it must not exist
+     * @return true in case of hit, false if the output must be encoded
+     */
+    boolean copyTo(VideoEditingNativeInterface videoEditing, String key, String outputFile) {
+        Entry entry;
+        synchronized (this) {
+            ensureLoaded();
+            entry = entries.get(key);
+        }
+        if (entry != null && FileSystemStorage.getInstance().getLength(entry.file) == entry.size
+                && copy(videoEditing, entry.file, entry.size, outputFile)) {
+            synchronized (this) {
+                hits++;
+            }
+            return true;
+        }
+        if (entry != null) {
+            // the cached copy was deleted or evicted meanwhile
+            remove(entry);
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return false;
+    }
+
+    /**
+     * Keeps a copy of the given output of an optimization.
+     *
+     * @param videoEditing native interface used to copy the file
+     * @param key see {@link #getKey(java.lang.String, java.lang.String)}
+     * @param outputFile placed in FileSystemStorage
+     */
+    void store(VideoEditingNativeInterface videoEditing, String key, String outputFile) {
+        long size = FileSystemStorage.getInstance().getLength(outputFile);
+        if (size <= 0 || size > getMaxBytes()) {
+            return;
+        }
+        String file = VideoOptimizer.getWorkspace().createPath("mp4");
+        if (!copy(videoEditing, outputFile, size, file)) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.file = file;
+        entry.size = size;
+        List<Entry> evicted;
+        Entry replaced;
+        synchronized (this) {
+            ensureLoaded();
+            replaced = entries.put(key, entry);
+            if (replaced != null) {
+                totalBytes -= replaced.size;
+            }
+            totalBytes += size;
+            evicted = evict();
+        }
+        if (replaced != null) {
+            evicted.add(replaced);
+        }
+        deleteFiles(evicted);
+        save();
+    }
+
+    private void remove(Entry entry) {
+        synchronized (this) {
+            if (entries.get(entry.key) != entry) {
+                return;
+            }
+            entries.remove(entry.key);
+            totalBytes -= entry.size;
+        }
+        List<Entry> removed = new ArrayList<>();
+        removed.add(entry);
+        deleteFiles(removed);
+        save();
+    }
+
+    /**
+     * Removes the least recently used entries until the total size fits;
+     * must be invoked holding the lock of this object.
+     *
+     * @return the removed entries, whose files must be deleted
+     */
+    private List<Entry> evict() {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            totalBytes -= eldest.size;
+            evictions++;
+            evicted.add(eldest);
+        }
+        return evicted;
+    }
+
+    private static boolean copy(VideoEditingNativeInterface videoEditing, String sourceFile, long size, String destinationFile) {
+        // it's mandatory to remove the "file://" when accessing to native interfaces
+        if (videoEditing.appendFileRange(VideoOptimizer.removeFilePrefix(sourceFile), 0, size, VideoOptimizer.removeFilePrefix(destinationFile))) {
+            return true;
+        }
+        Log.p("ResultCache -> Cannot copy " + sourceFile + " to " + destinationFile, Log.WARNING);
+        if (FileSystemStorage.getInstance().exists(destinationFile)) {
+            FileSystemStorage.getInstance().delete(destinationFile);
+        }
+        return false;
+    }
+
+    private static void deleteFiles(List<Entry> removed) {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        for (Entry entry : removed) {
+            if (fs.exists(entry.file)) {
+                fs.delete(entry.file);
+            }
+        }
+    }
+
+    /**
+     * Loads the persisted index, if not already done; must be invoked holding
+     * the lock of this object.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (!fs.exists(indexFile)) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(fs.openInputStream(indexFile));
+            int version = in.readInt();
+            if (version != INDEX_VERSION && version != 1) {
+                return;
+            }
+            // the keys of the first version were computed on samples of the
+            // source, so their copies are deleted
+            List<Entry> stale = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.key = in.readUTF();
+                entry.file = in.readUTF();
+                entry.size = in.readLong();
+                if (version != INDEX_VERSION) {
+                    stale.add(entry);
+                    continue;
+                }
+                entries.put(entry.key, entry);
+                totalBytes += entry.size;
+            }
+            deleteFiles(stale);
+        } catch (IOException ex) {
+            Log.p("ResultCache -> The cache index cannot be read, it will be rebuilt: " + ex.getMessage(), Log.WARNING);
+            entries.clear();
+            totalBytes = 0;
+        } finally {
+            Util.cleanup(in);
+        }
+    }
+
+    /**
+     * Persists the index, from the least to the most recently used entry.
+     */
+    private void save() {
+        synchronized (saveLock) {
+            List<Entry> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(entries.values());
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(FileSystemStorage.getInstance().openOutputStream(indexFile));
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(snapshot.size());
+                for (Entry entry : snapshot) {
+                    out.writeUTF(entry.key);
+                    out.writeUTF(entry.file);
+                    out.writeLong(entry.size);
+                }
+            } catch (IOException ex) {
+                Log.p("ResultCache -> The cache index cannot be saved: " + ex.getMessage(), Log.WARNING);
+            } finally {
+                Util.cleanup(out);
+            }
+        }
+    }
+
+}
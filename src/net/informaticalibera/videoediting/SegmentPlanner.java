@@ -0,0 +1,125 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import java.io.IOException;
+
+/**
+ * Splits a video into segments that can be encoded independently: every
+ * segment starts with a keyframe of the source, so that it can be decoded
+ * without the previous ones, and the segments have about the same duration.
+ * The keyframes are read from the {@link TrackIndex} of the video track,
+ * without decoding anything.
+ *
+ * @author Francesco Galgani
+ */
+final class SegmentPlanner {
+
+    /**
+     * Min duration of a segment: shorter segments don't pay back the cost of
+     * starting an encoder and of stitching the outputs.
+     */
+    static final long MIN_SEGMENT_MILLIS = 10000;
+
+    /**
+     * Max number of segments of a video.
+     */
+    static final int MAX_SEGMENTS = 16;
+
+    private SegmentPlanner() {
+    }
+
+    /**
+     * Returns the start times of the segments after the first one.
+     *
+     * @param container parsed video
+     * @return times in ms in ascending order, empty if the video is too short
+     * to be split or if it doesn't have a video track
+     */
+    static long[] plan(Mp4Container container) {
+        Mp4Container.Track video = container.getVideoTrack();
+        long duration = container.getDurationMillis();
+        int count = (int) Math.min(MAX_SEGMENTS, duration / MIN_SEGMENT_MILLIS);
+        if (video == null || video.timescale <= 0 || count < 2) {
+            return new long[0];
+        }
+        TrackIndex index = video.index;
+        long[] splits = new long[count - 1];
+        int found = 0;
+        long previous = 0;
+        int keyframe = 0;
+        for (int k = 1; k < count; k++) {
+            long target = duration * k / count;
+            long split;
+            if (index == null || index.isAllSync()) {
+                // every sample is a keyframe
+                split = target;
+            } else {
+                // the keyframe closest to the target, after the previous split
+                split = -1;
+                while (keyframe < index.getSyncSampleCount()) {
+                    long time = index.toMillis(index.getPresentationTime(index.getSyncSample(keyframe)));
+                    if (time > target) {
+                        if (split < 0 || time - target < target - split) {
+                            split = time;
+                        }
+                        break;
+                    }
+                    split = time;
+                    keyframe++;
+                }
+            }
+            if (split - previous >= MIN_SEGMENT_MILLIS / 2 && duration - split >= MIN_SEGMENT_MILLIS / 2) {
+                splits[found++] = split;
+                previous = split;
+            }
+        }
+        long[] result = new long[found];
+        System.arraycopy(splits, 0, result, 0, found);
+        return result;
+    }
+
+    /**
+     * Returns the start times of the segments after the first one, in the
+     * format passed to the native code ("segments=" key of the profile).
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @return comma separated times in ms, or null if the video cannot be
+     * split
+     */
+    static String planForNative(String videoFile) {
+        long[] splits;
+        try {
+            StorageInput input = new StorageInput(videoFile);
+            try {
+                splits = plan(Mp4Container.parse(input, true));
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+        if (splits.length == 0) {
+            return null;
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < splits.length; i++) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(splits[i]);
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Util;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * RandomAccessInput backed by a stream that can be read only once and only
+ * forward: the bytes read from the stream are kept in a memory buffer of at
+ * most {@link #DEFAULT_MEMORY_LIMIT} bytes and, beyond that limit, they are
+ * spilled to a file in the app home path, so that they can be read again.
+ * The stream is read only as far as requested: probing a video whose "moov"
+ * box is at the beginning reads only the beginning of the stream.
+ *
+ * @author Francesco Galgani
+ */
+final class SpillInput implements RandomAccessInput {
+
+    /**
+     * Default max number of bytes kept in memory before spilling to a file.
+     */
+    static final int DEFAULT_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final InputStream stream;
+    private final long declaredLength;
+    private final int memoryLimit;
+    private byte[] memory = new byte[CHUNK_SIZE];
+    private long available;
+    private boolean ended;
+    private String spillFile;
+    private OutputStream spillOut;
+    private StorageInput spillReader;
+
+    /**
+     * Wraps the given stream.
+     *
+     * @param stream to read, it's closed by {@link #close()}
+     * @param declaredLength length of the stream, or -1 if unknown
+     * @param memoryLimit max number of bytes kept in memory
+     */
+    SpillInput(InputStream stream, long declaredLength, int memoryLimit) {
+        this.stream = stream;
+        this.declaredLength = declaredLength;
+        this.memoryLimit = memoryLimit;
+    }
+
+    public synchronized long length() throws IOException {
+        if (declaredLength >= 0) {
+            return declaredLength;
+        }
+        fill(Long.MAX_VALUE);
+        return available;
+    }
+
+    public synchronized int read(long position, byte[] buffer, int offset, int len) throws IOException {
+        fill(position + len);
+        if (position >= available) {
+            return -1;
+        }
+        int count = (int) Math.min(len, available - position);
+        if (spillFile == null) {
+            System.arraycopy(memory, (int) position, buffer, offset, count);
+            return count;
+        }
+        spillOut.flush();
+        if (spillReader == null || position + count > spillReader.length()) {
+            // the file grew since the reader was opened
+            if (spillReader != null) {
+                spillReader.close();
+            }
+            spillReader = new StorageInput(spillFile);
+        }
+        return spillReader.read(position, buffer, offset, count);
+    }
+
+    /**
+     * Reads the rest of the stream and returns the file that contains all of
+     * it; after this call, the file belongs to the caller.
+     *
+     * @return the file placed in FileSystemStorage
+     * @throws IOException if the stream cannot be read
+     */
+    synchronized String toFile() throws IOException {
+        fill(Long.MAX_VALUE);
+        if (spillFile == null) {
+            spill();
+        }
+        spillOut.close();
+        spillOut = null;
+        String file = spillFile;
+        spillFile = null;
+        return file;
+    }
+
+    public synchronized void close() throws IOException {
+        Util.cleanup(stream);
+        Util.cleanup(spillOut);
+        if (spillReader != null) {
+            spillReader.close();
+        }
+        if (spillFile != null) {
+            VideoOptimizer.getWorkspace().discard(spillFile);
+        }
+        spillFile = null;
+        memory = null;
+    }
+
+    /**
+     * Reads the stream until the given number of bytes is available or the
+     * stream ends.
+     */
+    private void fill(long target) throws IOException {
+        if (memory == null && spillFile == null && spillOut == null) {
+            throw new IOException("The input is closed");
+        }
+        byte[] chunk = null;
+        while (available < target && !ended) {
+            if (chunk == null) {
+                chunk = new byte[CHUNK_SIZE];
+            }
+            int count = stream.read(chunk, 0, chunk.length);
+            if (count < 0) {
+                ended = true;
+                break;
+            }
+            append(chunk, count);
+        }
+    }
+
+    private void append(byte[] chunk, int count) throws IOException {
+        if (spillFile == null && available + count > memoryLimit) {
+            spill();
+        }
+        if (spillFile != null) {
+            spillOut.write(chunk, 0, count);
+        } else {
+            if (available + count > memory.length) {
+                byte[] grown = new byte[(int) Math.min(memoryLimit, Math.max(memory.length * 2, available + count))];
+                System.arraycopy(memory, 0, grown, 0, (int) available);
+                memory = grown;
+            }
+            System.arraycopy(chunk, 0, memory, (int) available, count);
+        }
+        available += count;
+    }
+
+    /**
+     * Moves the bytes kept in memory to a new spill file.
+     */
+    private void spill() throws IOException {
+        spillFile = VideoOptimizer.getWorkspace().reserve("mp4", Workspace.KIND_TEMP);
+        spillOut = FileSystemStorage.getInstance().openOutputStream(spillFile);
+        spillOut.write(memory, 0, (int) available);
+        memory = null;
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Storage;
+import com.codename1.io.Util;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * RandomAccessInput backed by a FileSystemStorage (or Storage) stream, for
+ * the platforms without positional reads: reading forward only skips bytes,
+ * reading backward reopens the stream. The container parser reads almost
+ * always forward, so the stream is rarely reopened.
+ *
+ * @author Francesco Galgani
+ */
+final class StorageInput implements RandomAccessInput {
+
+    private final String file;
+    private final boolean storageEntry;
+    private final long length;
+    private InputStream stream;
+    private long streamPosition;
+
+    /**
+     * Opens the given file.
+     *
+     * @param file placed in FileSystemStorage
+     * @throws IOException if the file doesn't exist
+     */
+    StorageInput(String file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Opens the given file or Storage entry.
+     *
+     * @param file placed in FileSystemStorage, or name of a Storage entry
+     * @param storageEntry true for a Storage entry
+     * @throws IOException if the file doesn't exist
+     */
+    StorageInput(String file, boolean storageEntry) throws IOException {
+        if (storageEntry ? !Storage.getInstance().exists(file) : !FileSystemStorage.getInstance().exists(file)) {
+            throw new IOException("The file " + file + " doesn't exist");
+        }
+        this.file = file;
+        this.storageEntry = storageEntry;
+        this.length = storageEntry ? Storage.getInstance().entrySize(file) : FileSystemStorage.getInstance().getLength(file);
+    }
+
+    public long length() throws IOException {
+        return length;
+    }
+
+    public int read(long position, byte[] buffer, int offset, int len) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        if (stream == null || position < streamPosition) {
+            Util.cleanup(stream);
+            stream = storageEntry ? Storage.getInstance().createInputStream(file) : FileSystemStorage.getInstance().openInputStream(file);
+            streamPosition = 0;
+        }
+        while (streamPosition < position) {
+            long skipped = stream.skip(position - streamPosition);
+            if (skipped <= 0) {
+                // some streams don't skip, a read moves them forward anyway
+                if (stream.read() < 0) {
+                    return -1;
+                }
+                skipped = 1;
+            }
+            streamPosition += skipped;
+        }
+        int count = stream.read(buffer, offset, len);
+        if (count > 0) {
+            streamPosition += count;
+        }
+        return count;
+    }
+
+    public void close() throws IOException {
+        Util.cleanup(stream);
+        stream = null;
+    }
+
+}
@@ -0,0 +1,288 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * <p>
+ * Settings of the thumbnails extracted by
+ * {@link VideoOptimizer#getVideoThumbnails(java.lang.String, net.informaticalibera.videoediting.ThumbnailOptions)}.
+ * The setters return these options, so they can be chained:</p>
+ * <pre>
+ * ThumbnailOptions options = new ThumbnailOptions().setCount(20).setMaxSize(120).setSpriteSheet(true);
+ * </pre>
+ * <p>
+ * The frames are scaled down by the decoder, so the cost of a thumbnail
+ * depends on its size and not on the resolution of the source.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class ThumbnailOptions {
+
+    /**
+     * JPEG images: small, without transparency.
+     */
+    public static final String FORMAT_JPEG = "jpeg";
+
+    /**
+     * PNG images: lossless, the quality is ignored.
+     */
+    public static final String FORMAT_PNG = "png";
+
+    private int count = 10;
+    private int maxSize = 160;
+    private boolean keyframesOnly = false;
+    private String format = FORMAT_JPEG;
+    private int quality = 70;
+    private boolean spriteSheet = false;
+    private int columns = 0;
+
+    /**
+     * Creates the default options: 10 JPEG thumbnails at quality 70, with the
+     * longer side scaled down to 160 pixels, in separate files.
+     */
+    public ThumbnailOptions() {
+    }
+
+    /**
+     * Returns a copy of these options.
+     *
+     * @return new options with the same settings
+     */
+    public ThumbnailOptions copy() {
+        ThumbnailOptions options = new ThumbnailOptions();
+        options.count = count;
+        options.maxSize = maxSize;
+        options.keyframesOnly = keyframesOnly;
+        options.format = format;
+        options.quality = quality;
+        options.spriteSheet = spriteSheet;
+        options.columns = columns;
+        return options;
+    }
+
+    /**
+     * Number of thumbnails, evenly spaced over the video.
+     *
+     * @return count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets the number of thumbnails; every thumbnail shows the middle of an
+     * equal part of the video.
+     *
+     * @param count greater than 0
+     * @return these options
+     */
+    public ThumbnailOptions setCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be greater than 0");
+        }
+        this.count = count;
+        return this;
+    }
+
+    /**
+     * Max length in pixels of the longer side of the thumbnails.
+     *
+     * @return max size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the max length in pixels of the longer side of the thumbnails;
+     * smaller frames are not scaled up.
+     *
+     * @param maxSize greater than 0
+     * @return these options
+     */
+    public ThumbnailOptions setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than 0");
+        }
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * True if the thumbnails show only keyframes.
+     *
+     * @return true for keyframes only
+     */
+    public boolean isKeyframesOnly() {
+        return keyframesOnly;
+    }
+
+    /**
+     * Asks to show the keyframe that precedes every evenly spaced time
+     * instead of the exact frame: a keyframe is decoded alone, while an exact
+     * frame requires to decode all the frames since the previous keyframe, so
+     * it's much faster. The keyframes are chosen with the {@link TrackIndex}
+     * of the video, so the timestamps of the thumbnails are the real ones; if
+     * two times share the same keyframe, a single thumbnail is extracted, so
+     * there can be fewer thumbnails than requested. For the videos that are
+     * not MP4/MOV, the platform shows the closest keyframe and the timestamps
+     * are the requested ones.
+     *
+     * @param keyframesOnly true for keyframes only
+     * @return these options
+     */
+    public ThumbnailOptions setKeyframesOnly(boolean keyframesOnly) {
+        this.keyframesOnly = keyframesOnly;
+        return this;
+    }
+
+    /**
+     * Image format of the thumbnails.
+     *
+     * @return one of the FORMAT_ constants
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the image format of the thumbnails.
+     *
+     * @param format one of the FORMAT_ constants
+     * @return these options
+     */
+    public ThumbnailOptions setFormat(String format) {
+        if (!FORMAT_JPEG.equals(format) && !FORMAT_PNG.equals(format)) {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Quality of the JPEG compression.
+     *
+     * @return from 1 (smallest) to 100 (best)
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * Sets the quality of the JPEG compression; it's ignored for PNG.
+     *
+     * @param quality from 1 (smallest) to 100 (best)
+     * @return these options
+     */
+    public ThumbnailOptions setQuality(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("quality must be between 1 and 100");
+        }
+        this.quality = quality;
+        return this;
+    }
+
+    /**
+     * True if the thumbnails are drawn in a single image.
+     *
+     * @return true for a sprite sheet
+     */
+    public boolean isSpriteSheet() {
+        return spriteSheet;
+    }
+
+    /**
+     * Asks to draw all the thumbnails in a single image (a sprite sheet), in
+     * rows from left to right and from top to bottom: a scrubber can show
+     * any thumbnail by cropping that image, loading only one file. The
+     * position of every thumbnail is given by
+     * {@link Thumbnails#getTileX(int)} and {@link Thumbnails#getTileY(int)}.
+     *
+     * @param spriteSheet true for a single image, false for a file for each
+     * thumbnail
+     * @return these options
+     */
+    public ThumbnailOptions setSpriteSheet(boolean spriteSheet) {
+        this.spriteSheet = spriteSheet;
+        return this;
+    }
+
+    /**
+     * Number of thumbnails in each row of the sprite sheet.
+     *
+     * @return columns, 0 for an almost square sheet
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Sets the number of thumbnails in each row of the sprite sheet, for
+     * example the count for a single horizontal strip.
+     *
+     * @param columns 0 for an almost square sheet
+     * @return these options
+     */
+    public ThumbnailOptions setColumns(int columns) {
+        if (columns < 0) {
+            throw new IllegalArgumentException("columns cannot be negative");
+        }
+        this.columns = columns;
+        return this;
+    }
+
+    /**
+     * Returns the number of columns of the sprite sheet of the given number
+     * of thumbnails.
+     *
+     * @param thumbnails number of extracted thumbnails
+     * @return columns, 0 if the thumbnails are in separate files
+     */
+    int getSheetColumns(int thumbnails) {
+        if (!spriteSheet) {
+            return 0;
+        }
+        if (columns > 0) {
+            return Math.min(columns, thumbnails);
+        }
+        int result = 1;
+        while (result * result < thumbnails) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns these options in the format passed to
+     * {@link VideoEditingNativeInterface#getVideoThumbnails(java.lang.String, java.lang.String, java.lang.String)}.
+     *
+     * @param times comma separated times in ms of the thumbnails
+     * @param sheetColumns columns of the sprite sheet, 0 for separate files
+     * @return the options for the native code
+     */
+    String toNative(String times, int sheetColumns) {
+        return "times=" + times
+                + ";maxsize=" + maxSize
+                + ";keyframes=" + (keyframesOnly ? 1 : 0)
+                + ";format=" + format
+                + ";quality=" + quality
+                + ";columns=" + sheetColumns;
+    }
+
+    @Override
+    public String toString() {
+        return "ThumbnailOptions{count=" + count + ", maxSize=" + maxSize + ", keyframesOnly=" + keyframesOnly
+                + ", format=" + format + ", quality=" + quality + ", spriteSheet=" + spriteSheet + ", columns=" + columns + "}";
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * Thumbnails extracted by
+ * {@link VideoOptimizer#getVideoThumbnails(java.lang.String, net.informaticalibera.videoediting.ThumbnailOptions)}:
+ * their timestamps and either their files or the sprite sheet that contains
+ * all of them, with the position of every thumbnail in the sheet. All the
+ * thumbnails have the same size.
+ *
+ * @author Francesco Galgani
+ */
+public final class Thumbnails {
+
+    private final long[] times;
+    private final String[] files;
+    private final String spriteSheet;
+    private final int columns;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param files null for a sprite sheet
+     * @param spriteSheet null for separate files
+     * @param columns of the sprite sheet, 0 for separate files
+     */
+    Thumbnails(long[] times, String[] files, String spriteSheet, int columns, int width, int height) {
+        this.times = times;
+        this.files = files;
+        this.spriteSheet = spriteSheet;
+        this.columns = columns;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Number of thumbnails.
+     *
+     * @return count
+     */
+    public int getCount() {
+        return times.length;
+    }
+
+    /**
+     * Time of the video shown by the given thumbnail.
+     *
+     * @param index from 0 to getCount() - 1, in ascending time order
+     * @return ms from the beginning of the video
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Returns the thumbnail that best represents the given time, that is the
+     * last one that is not after it, for example to show the thumbnail of
+     * the position of a scrubber.
+     *
+     * @param time ms from the beginning of the video
+     * @return index of the thumbnail
+     */
+    public int getIndexAtTime(long time) {
+        int low = 0;
+        int high = times.length - 1;
+        int result = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] <= time) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * True if the thumbnails are drawn in a single image.
+     *
+     * @return true for a sprite sheet
+     */
+    public boolean isSpriteSheet() {
+        return spriteSheet != null;
+    }
+
+    /**
+     * The file of the given thumbnail.
+     *
+     * @param index from 0 to getCount() - 1
+     * @return FileSystemStorage path, or the sprite sheet if the thumbnails
+     * are drawn in a single image
+     */
+    public String getFile(int index) {
+        if (files == null) {
+            return spriteSheet;
+        }
+        return files[index];
+    }
+
+    /**
+     * The sprite sheet that contains all the thumbnails.
+     *
+     * @return FileSystemStorage path, or null if the thumbnails are in
+     * separate files
+     */
+    public String getSpriteSheet() {
+        return spriteSheet;
+    }
+
+    /**
+     * Number of thumbnails in each row of the sprite sheet.
+     *
+     * @return columns, 0 if the thumbnails are in separate files
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Width of every thumbnail.
+     *
+     * @return pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Height of every thumbnail.
+     *
+     * @return pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Horizontal position of the given thumbnail in the sprite sheet.
+     *
+     * @param index from 0 to getCount() - 1
+     * @return pixels from the left side, 0 if the thumbnails are in separate
+     * files
+     */
+    public int getTileX(int index) {
+        return columns > 0 ? (index % columns) * width : 0;
+    }
+
+    /**
+     * Vertical position of the given thumbnail in the sprite sheet.
+     *
+     * @param index from 0 to getCount() - 1
+     * @return pixels from the top side, 0 if the thumbnails are in separate
+     * files
+     */
+    public int getTileY(int index) {
+        return columns > 0 ? (index / columns) * height : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Thumbnails{count=" + times.length + ", size=" + width + "x" + height
+                + (spriteSheet != null ? ", spriteSheet=" + spriteSheet + ", columns=" + columns : "") + "}";
+    }
+
+}
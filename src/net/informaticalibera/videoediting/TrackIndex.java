@@ -0,0 +1,305 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+/**
+ * <p>
+ * Immutable index of the samples of a track, as returned by
+ * {@link VideoOptimizer#getTrackIndex(java.lang.String, boolean)}: the sync
+ * samples (keyframes), the size and the file offset of every sample, and
+ * their decoding and presentation times. It's read from the sample tables of
+ * the "moov" box, without touching the media payload.</p>
+ * <p>
+ * The tables are kept in primitive arrays in their compact form (the timing
+ * tables as runs of samples, the offsets by chunk), so the index of a 2 hours
+ * video at 30 fps takes less than 1 MB; the values of a single sample are
+ * computed on request with a binary search.</p>
+ * <p>
+ * The samples are numbered from 0 in decoding order; the times are in the
+ * timescale of the track (see {@link #getTimescale()}).</p>
+ *
+ * @author Francesco Galgani
+ */
+public final class TrackIndex {
+
+    private final long timescale;
+    private final int sampleCount;
+    private final int constantSampleSize;
+    private final int[] sampleSizes;
+    private final long[] chunkOffsets;
+    private final int[] chunkFirstSamples;
+    private final int[] syncSamples;
+    private final int[] timeRunStarts;
+    private final long[] timeRunTimes;
+    private final int[] timeRunDeltas;
+    private final int[] offsetRunStarts;
+    private final int[] offsetRunValues;
+
+    /**
+     * @param sampleSizes null if every sample has constantSampleSize bytes
+     * @param syncSamples null if every sample is a sync sample
+     * @param offsetRunStarts null if the track doesn't have composition
+     * offsets
+     */
+    TrackIndex(long timescale, int sampleCount, int constantSampleSize, int[] sampleSizes, long[] chunkOffsets, int[] chunkFirstSamples,
+            int[] syncSamples, int[] timeRunStarts, long[] timeRunTimes, int[] timeRunDeltas, int[] offsetRunStarts, int[] offsetRunValues) {
+        this.timescale = timescale;
+        this.sampleCount = sampleCount;
+        this.constantSampleSize = constantSampleSize;
+        this.sampleSizes = sampleSizes;
+        this.chunkOffsets = chunkOffsets;
+        this.chunkFirstSamples = chunkFirstSamples;
+        this.syncSamples = syncSamples;
+        this.timeRunStarts = timeRunStarts;
+        this.timeRunTimes = timeRunTimes;
+        this.timeRunDeltas = timeRunDeltas;
+        this.offsetRunStarts = offsetRunStarts;
+        this.offsetRunValues = offsetRunValues;
+    }
+
+    /**
+     * Units per second of the times of this track.
+     *
+     * @return timescale
+     */
+    public long getTimescale() {
+        return timescale;
+    }
+
+    /**
+     * Converts a time of this track to milliseconds.
+     *
+     * @param time in the track timescale
+     * @return ms
+     */
+    public long toMillis(long time) {
+        return timescale > 0 ? time * 1000 / timescale : 0;
+    }
+
+    /**
+     * Number of samples of the track.
+     *
+     * @return sample count
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Size in bytes of the given sample.
+     *
+     * @param sample from 0 to getSampleCount() - 1
+     * @return bytes
+     */
+    public int getSampleSize(int sample) {
+        checkSample(sample);
+        return sampleSizes != null ? sampleSizes[sample] : constantSampleSize;
+    }
+
+    /**
+     * Absolute offset in the file of the first byte of the given sample.
+     *
+     * @param sample from 0 to getSampleCount() - 1
+     * @return offset, or -1 if the chunk of the sample is not declared
+     */
+    public long getSampleOffset(int sample) {
+        checkSample(sample);
+        int chunk = findRun(chunkFirstSamples, sample);
+        if (chunk < 0) {
+            return -1;
+        }
+        long offset = chunkOffsets[chunk];
+        int first = chunkFirstSamples[chunk];
+        if (sampleSizes == null) {
+            return offset + (long) (sample - first) * constantSampleSize;
+        }
+        for (int i = first; i < sample; i++) {
+            offset += sampleSizes[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Number of chunks (groups of contiguous samples) of the track.
+     *
+     * @return chunk count
+     */
+    public int getChunkCount() {
+        return chunkOffsets.length;
+    }
+
+    /**
+     * Absolute offset in the file of the given chunk.
+     *
+     * @param chunk from 0 to getChunkCount() - 1
+     * @return offset
+     */
+    public long getChunkOffset(int chunk) {
+        return chunkOffsets[chunk];
+    }
+
+    /**
+     * Decoding time of the given sample.
+     *
+     * @param sample from 0 to getSampleCount() - 1
+     * @return time in the track timescale
+     */
+    public long getDecodingTime(int sample) {
+        checkSample(sample);
+        int run = findRun(timeRunStarts, sample);
+        if (run < 0) {
+            return 0;
+        }
+        return timeRunTimes[run] + (long) (sample - timeRunStarts[run]) * timeRunDeltas[run];
+    }
+
+    /**
+     * Presentation time of the given sample, that is its decoding time plus
+     * its composition offset (they differ when the track has B-frames).
+     *
+     * @param sample from 0 to getSampleCount() - 1
+     * @return time in the track timescale
+     */
+    public long getPresentationTime(int sample) {
+        long time = getDecodingTime(sample);
+        if (offsetRunStarts != null) {
+            int run = findRun(offsetRunStarts, sample);
+            if (run >= 0) {
+                time += offsetRunValues[run];
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Returns the last sample whose decoding time is not after the given time.
+     *
+     * @param time in the track timescale
+     * @return sample, or -1 if the track is empty
+     */
+    public int getSampleAtTime(long time) {
+        if (sampleCount == 0 || timeRunStarts.length == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = timeRunStarts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (timeRunTimes[middle] <= time) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int sample = timeRunStarts[low];
+        if (time > timeRunTimes[low] && timeRunDeltas[low] > 0) {
+            sample += (int) Math.min(Integer.MAX_VALUE, (time - timeRunTimes[low]) / timeRunDeltas[low]);
+        }
+        int runEnd = low + 1 < timeRunStarts.length ? timeRunStarts[low + 1] : sampleCount;
+        return Math.min(sample, runEnd - 1);
+    }
+
+    /**
+     * True if every sample of the track is a sync sample, that is if the track
+     * doesn't declare a sync sample table.
+     *
+     * @return true if there isn't any sync sample table
+     */
+    public boolean isAllSync() {
+        return syncSamples == null;
+    }
+
+    /**
+     * True if the given sample is a sync sample (keyframe), that can be
+     * decoded without the previous ones.
+     *
+     * @param sample from 0 to getSampleCount() - 1
+     * @return true for a sync sample
+     */
+    public boolean isSyncSample(int sample) {
+        checkSample(sample);
+        if (syncSamples == null) {
+            return true;
+        }
+        int index = findRun(syncSamples, sample);
+        return index >= 0 && syncSamples[index] == sample;
+    }
+
+    /**
+     * Number of sync samples of the track.
+     *
+     * @return sync sample count
+     */
+    public int getSyncSampleCount() {
+        return syncSamples != null ? syncSamples.length : sampleCount;
+    }
+
+    /**
+     * Returns the n-th sync sample, in decoding order.
+     *
+     * @param n from 0 to getSyncSampleCount() - 1
+     * @return the sample
+     */
+    public int getSyncSample(int n) {
+        if (syncSamples != null) {
+            return syncSamples[n];
+        }
+        checkSample(n);
+        return n;
+    }
+
+    /**
+     * Returns the last sync sample that is not after the given sample: it's
+     * the sample where the decoding must start to show the given one.
+     *
+     * @param sample from 0 to getSampleCount() - 1
+     * @return the sync sample, or -1 if there isn't any
+     */
+    public int getSyncSampleBefore(int sample) {
+        checkSample(sample);
+        if (syncSamples == null) {
+            return sample;
+        }
+        int index = findRun(syncSamples, sample);
+        return index >= 0 ? syncSamples[index] : -1;
+    }
+
+    private void checkSample(int sample) {
+        if (sample < 0 || sample >= sampleCount) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " of " + sampleCount);
+        }
+    }
+
+    /**
+     * Binary search of the last element not greater than the given value.
+     *
+     * @param starts ascending values
+     * @return index, or -1 if all the values are greater
+     */
+    private static int findRun(int[] starts, int value) {
+        int low = 0;
+        int high = starts.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= value) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+}
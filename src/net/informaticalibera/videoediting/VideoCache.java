@@ -0,0 +1,429 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import com.codename1.ui.CN;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Cache of the video info and of the video previews used by
+ * {@link VideoOptimizer}, so that the same video is not probed (or decoded)
+ * again by the native code every time.</p>
+ * <p>
+ * The entries are keyed on the file path and they are valid as long as the
+ * size and the last modification time of the file don't change. The cache
+ * keeps in memory at most {@link #getMaxEntries()} entries, evicting the least
+ * recently used ones (and deleting their preview files), and it persists a
+ * compact index in the FileSystemStorage, so that the results survive the app
+ * restarts; the index is written in background at most once every
+ * {@link #FLUSH_DELAY} ms, so a batch of probes writes it once. Concurrent
+ * requests for the same file wait for a single native call.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class VideoCache {
+
+    static final int KIND_INFO = 0;
+    static final int KIND_PREVIEW = 1;
+
+    /**
+     * Delay between a change of the entries and the write of the index, that
+     * includes all the changes done in the meantime.
+     */
+    public static final int FLUSH_DELAY = 2000;
+
+    private static final int INDEX_VERSION = 1;
+
+    private final String indexFile;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<String> inFlight = new ArrayList<>();
+    private final Object saveLock = new Object();
+    private int maxEntries;
+    private boolean loaded;
+    private boolean flushScheduled;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    /**
+     * Invoked by the cache to compute a missing value.
+     */
+    interface Loader {
+
+        /**
+         * @return the value, or null in case of error (nothing is cached)
+         */
+        Object load();
+    }
+
+    private static final class Entry {
+
+        String path;
+        long size;
+        long lastModified;
+        VideoInfo info;
+        String preview;
+
+        Object get(int kind) {
+            return kind == KIND_INFO ? info : preview;
+        }
+
+        void set(int kind, Object value) {
+            if (kind == KIND_INFO) {
+                info = (VideoInfo) value;
+            } else {
+                preview = (String) value;
+            }
+        }
+    }
+
+    VideoCache(String indexFile, int maxEntries) {
+        this.indexFile = indexFile;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached value of the given kind for the given file, or loads
+     * it with the given loader. If another thread is already loading the same
+     * value, it waits for it instead of invoking the loader again.
+     *
+     * @param file FileSystemStorage path
+     * @param kind KIND_INFO or KIND_PREVIEW
+     * @param loader invoked in case of miss
+     * @return the value, or null if the loader failed
+     */
+    Object get(String file, int kind, Loader loader) {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        long size = fs.getLength(file);
+        long lastModified = fs.getLastModified(file);
+        if (size <= 0) {
+            // missing or empty file, there is nothing to cache
+            return loader.load();
+        }
+        String key = VideoOptimizer.removeFilePrefix(file);
+        String flightKey = kind + key;
+        synchronized (this) {
+            ensureLoaded();
+            while (true) {
+                Entry entry = entries.get(key);
+                if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                    Object value = entry.get(kind);
+                    if (value != null && (kind != KIND_PREVIEW || fs.exists((String) value))) {
+                        hits++;
+                        return value;
+                    }
+                }
+                if (!inFlight.contains(flightKey)) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+            }
+            misses++;
+            inFlight.add(flightKey);
+        }
+        Object value = null;
+        try {
+            value = loader.load();
+        } finally {
+            synchronized (this) {
+                inFlight.remove(flightKey);
+                if (value != null) {
+                    put(key, size, lastModified, kind, value);
+                }
+                notifyAll();
+            }
+        }
+        if (value != null) {
+            save();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the cached info of the given file without loading it.
+     *
+     * @param file FileSystemStorage path
+     * @return the info, or null if it's not cached
+     */
+    VideoInfo peekInfo(String file) {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        long size = fs.getLength(file);
+        long lastModified = fs.getLastModified(file);
+        synchronized (this) {
+            ensureLoaded();
+            Entry entry = entries.get(VideoOptimizer.removeFilePrefix(file));
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                return entry.info;
+            }
+            return null;
+        }
+    }
+
+    private void put(String key, long size, long lastModified, int kind, Object value) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            if (entry != null) {
+                // the file was modified, the old preview is useless
+                deletePreview(entry);
+            }
+            entry = new Entry();
+            entry.path = key;
+            entry.size = size;
+            entry.lastModified = lastModified;
+            entries.put(key, entry);
+        }
+        entry.set(kind, value);
+        while (entries.size() > maxEntries) {
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            Entry eldest = it.next().getValue();
+            it.remove();
+            evictions++;
+            deletePreview(eldest);
+        }
+    }
+
+    private static void deletePreview(Entry entry) {
+        if (entry.preview != null) {
+            FileSystemStorage fs = FileSystemStorage.getInstance();
+            if (fs.exists(entry.preview)) {
+                fs.delete(entry.preview);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry of the given file, deleting its preview.
+     *
+     * @param file FileSystemStorage path
+     */
+    public void invalidate(String file) {
+        Entry entry;
+        synchronized (this) {
+            ensureLoaded();
+            entry = entries.remove(VideoOptimizer.removeFilePrefix(file));
+        }
+        if (entry != null) {
+            deletePreview(entry);
+            save();
+        }
+    }
+
+    /**
+     * Removes all the entries, deleting their previews, and resets the
+     * counters.
+     */
+    public void clear() {
+        List<Entry> removed;
+        synchronized (this) {
+            ensureLoaded();
+            removed = new ArrayList<>(entries.values());
+            entries.clear();
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+        }
+        for (Entry entry : removed) {
+            deletePreview(entry);
+        }
+        save();
+    }
+
+    /**
+     * Max number of videos kept in the cache.
+     *
+     * @return max entries
+     */
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the max number of videos kept in the cache; the least recently used
+     * entries are evicted when the limit is exceeded.
+     *
+     * @param maxEntries at least 1
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        synchronized (this) {
+            this.maxEntries = maxEntries;
+        }
+    }
+
+    /**
+     * Number of videos currently in the cache.
+     *
+     * @return size
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    /**
+     * Number of requests served by the cache since the app start (or since the
+     * last clear).
+     *
+     * @return hits
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of requests that required a native call since the app start (or
+     * since the last clear).
+     *
+     * @return misses
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of entries evicted because the cache was full since the app start
+     * (or since the last clear).
+     *
+     * @return evictions
+     */
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Loads the persisted index, if not already done; must be invoked holding
+     * the lock of this object.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (!fs.exists(indexFile)) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(fs.openInputStream(indexFile));
+            if (in.readInt() != INDEX_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.path = in.readUTF();
+                entry.size = in.readLong();
+                entry.lastModified = in.readLong();
+                if (in.readBoolean()) {
+                    long durationMillis = in.readLong();
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    int rotation = in.readInt();
+                    int bitrate = in.readInt();
+                    String codec = in.readUTF();
+                    double frameRate = in.readDouble();
+                    boolean audio = in.readBoolean();
+                    entry.info = new VideoInfo(durationMillis, width, height, rotation, bitrate,
+                            codec.length() > 0 ? codec : null, frameRate, audio, entry.size);
+                }
+                String preview = in.readUTF();
+                entry.preview = preview.length() > 0 ? preview : null;
+                entries.put(entry.path, entry);
+            }
+        } catch (IOException ex) {
+            Log.p("VideoCache -> The cache index cannot be read, it will be rebuilt: " + ex.getMessage(), Log.WARNING);
+            entries.clear();
+        } finally {
+            Util.cleanup(in);
+        }
+    }
+
+    /**
+     * Schedules the write of the index, unless it's already scheduled.
+     */
+    private void save() {
+        synchronized (this) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        CN.startThread(() -> {
+            Util.sleep(FLUSH_DELAY);
+            synchronized (this) {
+                // the next changes schedule another write
+                flushScheduled = false;
+            }
+            flush();
+        }, "VideoOptimizer cache index").start();
+    }
+
+    /**
+     * Persists the index, from the least to the most recently used entry.
+     */
+    private void flush() {
+        synchronized (saveLock) {
+            List<Entry> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(entries.values());
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(FileSystemStorage.getInstance().openOutputStream(indexFile));
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(snapshot.size());
+                for (Entry entry : snapshot) {
+                    out.writeUTF(entry.path);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    VideoInfo info = entry.info;
+                    out.writeBoolean(info != null);
+                    if (info != null) {
+                        out.writeLong(info.getDurationMillis());
+                        out.writeInt(info.getWidth());
+                        out.writeInt(info.getHeight());
+                        out.writeInt(info.getRotation());
+                        out.writeInt(info.getBitrate());
+                        out.writeUTF(info.getCodec() != null ? info.getCodec() : "");
+                        out.writeDouble(info.getFrameRate());
+                        out.writeBoolean(info.hasAudio());
+                    }
+                    out.writeUTF(entry.preview != null ? entry.preview : "");
+                }
+            } catch (IOException ex) {
+                Log.p("VideoCache -> The cache index cannot be saved: " + ex.getMessage(), Log.WARNING);
+            } finally {
+                Util.cleanup(out);
+            }
+        }
+    }
+
+}
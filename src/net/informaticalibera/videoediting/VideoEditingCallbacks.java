@@ -25,112 +25,173 @@ import java.util.Map;
  */
 public class VideoEditingCallbacks {
 
-    private static Map<String, Runnable> successCallbackMap = new HashMap<>();
-    private static Map<String, Runnable> errorCallbackMap = new HashMap<>();
-    private static int progress = 0;
+    /**
+     * Registry of the running jobs, keyed by job id; every access is
+     * synchronized on the map itself, because the native code invokes the
+     * callbacks from its own threads.
+     */
+    private static final Map<String, JobCallbacks> jobs = new HashMap<>();
+
+    private static class JobCallbacks {
+
+        final Runnable successCallback;
+        final Runnable errorCallback;
+        final Runnable cancelledCallback;
+
+        JobCallbacks(Runnable successCallback, Runnable errorCallback, Runnable cancelledCallback) {
+            this.successCallback = successCallback;
+            this.errorCallback = errorCallback;
+            this.cancelledCallback = cancelledCallback;
+        }
+    }
 
     /**
-     * Sets a success callback for the given inputVideoFile, that is called when
-     * the optimization is completed.
+     * Registers the callbacks of the given job; they are removed as soon as
+     * one of them is run.
      *
-     * @param input, it ignores the path, it consider only the file name, that
-     * must to be unique!
-     * @param optimizeVideoForUploadCallback callback
+     * @param jobId opaque id of the job, passed to the native code
+     * @param successCallback called when the optimization is completed
+     * @param errorCallback called when the optimization fails
+     * @param cancelledCallback called when the optimization is stopped by a
+     * cancellation
      */
-    public static void setOptimizedVideoCallback(String input, Runnable optimizeVideoForUploadCallback) {
-        String inputVideoFile = removePath(input);
-        Log.p("VideoEditingCallbacks -> Called setOptimizedVideoCallback for inputVideoFile: " + inputVideoFile, Log.DEBUG);
-        successCallbackMap.put(inputVideoFile, optimizeVideoForUploadCallback);
+    public static void setJobCallbacks(String jobId, Runnable successCallback, Runnable errorCallback, Runnable cancelledCallback) {
+        Log.p("VideoEditingCallbacks -> Called setJobCallbacks for jobId: " + jobId, Log.DEBUG);
+        synchronized (jobs) {
+            jobs.put(jobId, new JobCallbacks(successCallback, errorCallback, cancelledCallback));
+        }
     }
 
     /**
-     * Sets an error callback for the given inputVideoFile, that is called when
-     * the optimization fails.
+     * Removes the callbacks of the given job, returning them.
      *
-     * @param input, it ignores the path, it consider only the file name, that
-     * must to be unique!
-     * @param errorCallback callback
+     * @param jobId
+     * @return the callbacks, or null if the job is unknown or already finished
      */
-    public static void setVideoErrorCallback(String input, Runnable errorCallback) {
-        String inputVideoFile = removePath(input);
-        Log.p("VideoEditingCallbacks -> Called setVideoErrorCallback for inputVideoFile: " + inputVideoFile, Log.DEBUG);
-        errorCallbackMap.put(inputVideoFile, errorCallback);
+    private static JobCallbacks removeJob(String jobId) {
+        synchronized (jobs) {
+            return jobs.remove(jobId);
+        }
     }
 
     /**
      * This method is invoked by the native code.
      *
-     * @param input, it ignores the path, it consider only the file name, that
-     * must to be unique!
+     * @param jobId opaque id of the job
      */
-    public static void runVideoOptimizedCallback(String input) {
-        String inputVideoFile = removePath(input);
-        Log.p("VideoEditingCallbacks -> Called runVideoOptimizedCallback for inputVideoFile: " + inputVideoFile, Log.DEBUG);
-        if (successCallbackMap.get(inputVideoFile) != null) {
-            Log.p("VideoEditingCallbacks -> The success callback for inputVideoFile: " + inputVideoFile + " is going to be run", Log.DEBUG);
-            CN.callSerially(() -> {
-                successCallbackMap.get(inputVideoFile).run();
-            });
+    public static void runVideoOptimizedCallback(String jobId) {
+        Log.p("VideoEditingCallbacks -> Called runVideoOptimizedCallback for jobId: " + jobId, Log.DEBUG);
+        JobCallbacks callbacks = removeJob(jobId);
+        if (callbacks != null && callbacks.successCallback != null) {
+            Log.p("VideoEditingCallbacks -> The success callback for jobId: " + jobId + " is going to be run", Log.DEBUG);
+            CN.callSerially(callbacks.successCallback);
         }
     }
 
     /**
      * This method is invoked by the native code.
      *
-     * @param input, it ignores the path, it consider only the file name, that
-     * must to be unique!
+     * @param jobId opaque id of the job
      */
-    public static void runVideoErrorCallback(String input) {
-        String inputVideoFile = removePath(input);
-        Log.p("VideoEditingCallbacks -> Called runVideoErrorCallback for inputVideoFile: " + inputVideoFile, Log.DEBUG);
-        if (errorCallbackMap.get(inputVideoFile) != null) {
-            Log.p("VideoEditingCallbacks -> The error callback for inputVideoFile: " + inputVideoFile + " is going to be run", Log.DEBUG);
-            CN.callSerially(() -> {
-                errorCallbackMap.get(inputVideoFile).run();
-            });
+    public static void runVideoErrorCallback(String jobId) {
+        Log.p("VideoEditingCallbacks -> Called runVideoErrorCallback for jobId: " + jobId, Log.DEBUG);
+        JobCallbacks callbacks = removeJob(jobId);
+        if (callbacks != null && callbacks.errorCallback != null) {
+            Log.p("VideoEditingCallbacks -> The error callback for jobId: " + jobId + " is going to be run", Log.DEBUG);
+            CN.callSerially(callbacks.errorCallback);
         }
     }
 
     /**
-     * Returns the file name only (with extension), removing the path
+     * This method is invoked by the native code when the optimization was
+     * stopped by {@link VideoEditingNativeInterface#cancelOptimization(java.lang.String)}.
      *
-     * @param inputVideoFile path
-     * @return
+     * @param jobId opaque id of the job
      */
-    private static String removePath(String inputVideoFile) {
-        int index = inputVideoFile.lastIndexOf("/");
-        if (index > -1) {
-            return inputVideoFile.substring(index + 1);
-        } else {
-            return inputVideoFile;
+    public static void runVideoCancelledCallback(String jobId) {
+        Log.p("VideoEditingCallbacks -> Called runVideoCancelledCallback for jobId: " + jobId, Log.DEBUG);
+        JobCallbacks callbacks = removeJob(jobId);
+        if (callbacks != null && callbacks.cancelledCallback != null) {
+            Log.p("VideoEditingCallbacks -> The cancelled callback for jobId: " + jobId + " is going to be run", Log.DEBUG);
+            CN.callSerially(callbacks.cancelledCallback);
         }
     }
 
     /**
-     * Get the percentage of the progress
+     * Get the percentage of the progress of the given job
      *
-     * @return a number from 0 to 99
+     * @param jobId opaque id of the job
+     * @return a number from 0 to 99 (0 if the job is unknown or finished)
      */
-    public static int getProgress() {
-        return progress;
+    public static int getProgress(String jobId) {
+        return VideoOptimizer.getProgressDispatcher().getProgress(jobId);
     }
 
     /**
-     * Invoked by the native code
+     * Invoked by the native code every time it has a new progress sample: the
+     * samples are coalesced by the {@link ProgressDispatcher}.
      *
+     * @param jobId opaque id of the job
      * @param progress percentage
      */
-    public static void setProgress(int progress) {
-        VideoEditingCallbacks.progress = progress;
+    public static void setProgress(String jobId, int progress) {
+        VideoOptimizer.getProgressDispatcher().publish(jobId, progress);
+        // a progress sample means that the output grew
+        FragmentWatcher.poll(jobId);
+    }
+
+    /**
+     * Invoked by the native code every time it has a new progress sample,
+     * with more details than {@link #setProgress(java.lang.String, int)}: a
+     * semicolon separated list of key=value pairs, for example
+     * "time=12000;duration=60000;frames=360;size=1048576;speed=2.5". time is
+     * the media time already processed and duration the media time to
+     * process (both in ms), frames is the number of encoded frames, size the
+     * number of bytes written and speed the encoding speed compared to the
+     * playback speed; the values that are not known can be omitted (time
+     * and duration are required). The percentage, the average speed and the
+     * time remaining are computed from them.
+     *
+     * @param jobId opaque id of the job
+     * @param stats progress sample
+     */
+    public static void setProgressStats(String jobId, String stats) {
+        VideoOptimizer.getProgressDispatcher().publishStats(jobId, stats);
+        // a progress sample means that the output grew
+        FragmentWatcher.poll(jobId);
     }
 
     /**
-     * Invoked by the native code
+     * Invoked by the native code: the message is appended to the
+     * {@link NativeLog} with the DEBUG level.
      *
-     * @param toBeLogged by the EDT
+     * @param toBeLogged message
      */
     public static void logsFromNative(String toBeLogged) {
-        CN.callSerially(() -> Log.p("VideoOptimizer native code -> " + toBeLogged, Log.DEBUG));
+        VideoOptimizer.getNativeLog().append(Log.DEBUG, toBeLogged);
+    }
+
+    /**
+     * Invoked by the native code before building a log message, so that the
+     * messages that would be filtered are not built at all.
+     *
+     * @param level one of the Log levels
+     * @return true if a message of the given level would be written
+     */
+    public static boolean isLoggable(int level) {
+        return VideoOptimizer.getNativeLog().isLoggable(level);
+    }
+
+    /**
+     * Invoked by the native code: the message is appended to the
+     * {@link NativeLog}, that writes it in background without blocking the
+     * caller.
+     *
+     * @param level one of the Log levels
+     * @param message to log
+     */
+    public static void logFromNative(int level, String message) {
+        VideoOptimizer.getNativeLog().append(level, message);
     }
 
 }
@@ -25,7 +25,12 @@ import com.codename1.system.NativeInterface;
  * <p>
  * About the video compression, it relies on
  * <a href="https://github.com/tanersener/mobile-ffmpeg">MobileFFmpeg</a>
- * on Android and on AVAssetExportSession on iOS.
+ * on Android and on AVAssetExportSession on iOS.</p>
+ * <p>
+ * The synchronous methods are executed on the calling thread, that is never
+ * the EDT when they are invoked through the asynchronous methods of
+ * {@link VideoOptimizer}: the native code must not move them to the UI
+ * thread of the platform.</p>
  *
  * @author Francesco Galgani
  */
@@ -43,6 +48,28 @@ public interface VideoEditingNativeInterface extends NativeInterface {
      */
     public void getImageFromVideo(String videoFile, String jpegFile);
 
+    /**
+     * Extracts the frames at the given times from the given video file,
+     * scaling them down while they are decoded, and writes them either in
+     * separate image files or in a single sprite sheet.
+     *
+     * @param videoFile FileSystemStorage path, make sure doesn't include the
+     * "file:" prefix
+     * @param outputFiles FileSystemStorage paths, without the "file:" prefix,
+     * one per line: one for each time, or only one for a sprite sheet
+     * @param options semicolon separated list of key=value pairs, for example
+     * "times=500,1500,2500;maxsize=160;keyframes=0;format=jpeg;quality=70;columns=0"
+     * (see {@link ThumbnailOptions}): times are in ms, maxsize is the max
+     * length of the longer side of the thumbnails (they are never scaled up),
+     * keyframes=1 allows to extract the closest keyframe instead of the exact
+     * frame, format is jpeg or png, quality goes from 1 to 100, columns is
+     * the number of thumbnails in each row of the sprite sheet (0 for
+     * separate files); every thumbnail has the size of the first one
+     * @return the size of the thumbnails in the format widthxheight (or null
+     * in case of error)
+     */
+    public String getVideoThumbnails(String videoFile, String outputFiles, String options);
+
     /**
      * Returns the duration of the videoFile in seconds, or -1 in case of error
      *
@@ -73,15 +100,123 @@ public interface VideoEditingNativeInterface extends NativeInterface {
     public String getVideoSize(String videoFile);
 
     /**
-     * (Async) method to optimize the given inputVideoFile for fast
-     * uploading.Currently it uses a default low quality both on Android and
-     * iOS.
+     * Returns all the info of the given video opening it only once, as a
+     * semicolon separated list of key=value pairs, for example:
+     * "duration=12345;width=1920;height=1080;rotation=90;bitrate=750000;codec=avc1;framerate=29.97;audio=1".
+     * The duration is in ms, the width and the height are the encoded ones
+     * (before applying the rotation), the bitrate is in bits/sec, the codec can
+     * be a four characters code or a mime type, audio is 1 if there is an
+     * audio track. Missing values can be omitted.
      *
+     * @param videoFile FileSystemStorage path, make sure doesn't include the
+     * "file:" prefix
+     * @return the info (or null in case of error)
+     */
+    public String getVideoInfo(String videoFile);
+
+    /**
+     * Returns how many optimizations can be executed at the same time without
+     * overloading the device, according to the number of cores and to the
+     * encoder used by the platform.
+     *
+     * @return max concurrent optimizations, at least 1
+     */
+    public int getMaxConcurrentEncoders();
+
+    /**
+     * (Async) method to optimize the given inputVideoFile for fast uploading,
+     * with the given encoding settings mapped to the closest native ones.
+     *
+     * @param jobId opaque id of the job, to be passed back to the callbacks of
+     * {@link VideoEditingCallbacks}
      * @param inputVideoFile FileSystemStorage path, make sure doesn't include
      * the "file:" prefix
      * @param outputVideoFile FileSystemStorage path, make sure doesn't include
      * the "file:" prefix (the file name defaults to "optimized.mp4")
+     * @param profile encoding settings as a semicolon separated list of
+     * key=value pairs, for example
+     * "codec=h264;maxresolution=720;videobitrate=2500000;audiobitrate=128000;maxframerate=0;keyframeinterval=2;speed=1"
+     * (see {@link EncodingProfile}): codec is mpeg4, h264 or hevc,
+     * maxresolution is the max length of the shorter side, the bitrates are in
+     * bits/sec, keyframeinterval is in seconds, speed goes from 0 (fastest) to
+     * 3 (slowest), faststart=1 asks to put the moov box before the media
+     * payload, fragmentduration asks for a fragmented mp4 with fragments of
+     * the given seconds; 0 means "keep the source value" or "let the encoder
+     * decide", audiobitrate=0 means "copy the source audio"; when the source
+     * already meets the profile, videocopy=1 asks to copy the video stream as
+     * is and audiocopy=1 to copy also the audio stream as is (that is only to
+     * remux the source into a new mp4 container); segments is a comma
+     * separated list of the start times in ms (keyframes of the source) of
+     * the segments after the first one, that can be encoded in parallel and
+     * then stitched together; starttime and endtime (in ms, endtime=0 means
+     * "up to the end") delimit the section of the source to keep, the
+     * decoding must start from the keyframe that precedes starttime
+     */
+    public void optimizeVideoForUpload(String jobId, String inputVideoFile, String outputVideoFile, String profile);
+
+    /**
+     * (Async) method to produce more renditions of the given inputVideoFile,
+     * decoding it only once (where the platform allows it) and encoding a
+     * branch for each rendition; the callbacks of {@link VideoEditingCallbacks}
+     * are invoked once for the whole job, when all the renditions are ready.
+     *
+     * @param jobId opaque id of the job, to be passed back to the callbacks of
+     * {@link VideoEditingCallbacks}
+     * @param inputVideoFile FileSystemStorage path, make sure doesn't include
+     * the "file:" prefix
+     * @param outputVideoFiles FileSystemStorage paths, without the "file:"
+     * prefix, one per line
+     * @param profiles encoding settings of the renditions, one per line in
+     * the same order of the output files, in the format of
+     * {@link #optimizeVideoForUpload(java.lang.String, java.lang.String, java.lang.String, java.lang.String)};
+     * the time range of the first profile applies to all the renditions
+     */
+    public void optimizeVideoRenditions(String jobId, String inputVideoFile, String outputVideoFiles, String profiles);
+
+    /**
+     * Stops the optimization of the given job as soon as possible; the native
+     * code then invokes
+     * {@link VideoEditingCallbacks#runVideoCancelledCallback(java.lang.String)}.
+     * It does nothing if the job is unknown or already finished.
+     *
+     * @param jobId opaque id of the job passed to
+     * {@link #optimizeVideoForUpload(java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+     */
+    public void cancelOptimization(String jobId);
+
+    /**
+     * Appends a range of bytes of sourceFile to the end of destinationFile
+     * (that is created if it doesn't exist), copying them file to file
+     * without passing through the Java heap when the platform allows it. It's
+     * used to copy the media payload when remuxing.
+     *
+     * @param sourceFile FileSystemStorage path, make sure doesn't include the
+     * "file:" prefix
+     * @param offset first byte to copy
+     * @param length number of bytes to copy
+     * @param destinationFile FileSystemStorage path, make sure doesn't include
+     * the "file:" prefix
+     * @return true if all the bytes were copied
+     */
+    public boolean appendFileRange(String sourceFile, long offset, long length, String destinationFile);
+
+    /**
+     * Opens the given URI (for example an Android content URI returned by a
+     * picker) so that the other methods can read it as a file, without
+     * copying it.
+     *
+     * @param uri the uri
+     * @return a FileSystemStorage path without the "file:" prefix, valid until
+     * {@link #closeContentUri(java.lang.String)}, or null if the URI cannot be
+     * opened in the current platform
+     */
+    public String openContentUri(String uri);
+
+    /**
+     * Releases a path returned by {@link #openContentUri(java.lang.String)}.
+     *
+     * @param path without the "file:" prefix
      */
-    public void optimizeVideoForUpload(String inputVideoFile, String outputVideoFile);
+    public void closeContentUri(String path);
 
 }
@@ -0,0 +1,268 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.ui.geom.Dimension;
+import com.codename1.util.StringUtil;
+import java.util.List;
+
+/**
+ * Immutable info about a video, as returned by
+ * {@link VideoOptimizer#getVideoInfo(java.lang.String)}: they are read by
+ * opening the video only once.
+ *
+ * @author Francesco Galgani
+ */
+public final class VideoInfo {
+
+    private final long durationMillis;
+    private final int width;
+    private final int height;
+    private final int rotation;
+    private final int bitrate;
+    private final String codec;
+    private final double frameRate;
+    private final boolean audio;
+    private final long fileSize;
+
+    VideoInfo(long durationMillis, int width, int height, int rotation, int bitrate, String codec, double frameRate, boolean audio, long fileSize) {
+        this.durationMillis = durationMillis;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.bitrate = bitrate;
+        this.codec = codec;
+        this.frameRate = frameRate;
+        this.audio = audio;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Returns the info of a video parsed by the Java MP4/MOV parser, used
+     * where the native code is not available.
+     *
+     * @param container parsed video
+     * @param fileSize size of the file in bytes
+     * @return the info
+     */
+    static VideoInfo fromContainer(Mp4Container container, long fileSize) {
+        Mp4Container.Track video = container.getVideoTrack();
+        String codec = null;
+        double frameRate = 0;
+        if (video != null) {
+            codec = normalizeCodec(video.codec);
+            long videoDuration = video.getDurationMillis();
+            if (videoDuration > 0) {
+                frameRate = video.sampleCount * 1000.0 / videoDuration;
+            }
+        }
+        return new VideoInfo(container.getDurationMillis(), container.getWidth(), container.getHeight(), container.getRotation(),
+                container.getBitrate(), codec, frameRate, container.getAudioTrack() != null, fileSize);
+    }
+
+    /**
+     * Parses the string returned by
+     * {@link VideoEditingNativeInterface#getVideoInfo(java.lang.String)}.
+     *
+     * @param info semicolon separated list of key=value pairs, the width and
+     * the height are the encoded ones (before applying the rotation)
+     * @param fileSize size of the file in bytes
+     * @return the info, or null if the given string is not valid
+     */
+    static VideoInfo fromNative(String info, long fileSize) {
+        if (info == null || info.length() == 0) {
+            return null;
+        }
+        long durationMillis = -1;
+        int width = 0;
+        int height = 0;
+        int rotation = 0;
+        int bitrate = -1;
+        String codec = null;
+        double frameRate = -1;
+        boolean audio = false;
+        List<String> pairs = StringUtil.tokenize(info, ";");
+        try {
+            for (String pair : pairs) {
+                int index = pair.indexOf('=');
+                if (index < 0) {
+                    continue;
+                }
+                String key = pair.substring(0, index);
+                String value = pair.substring(index + 1);
+                if (value.length() == 0) {
+                    continue;
+                }
+                if ("duration".equals(key)) {
+                    durationMillis = Long.parseLong(value);
+                } else if ("width".equals(key)) {
+                    width = Integer.parseInt(value);
+                } else if ("height".equals(key)) {
+                    height = Integer.parseInt(value);
+                } else if ("rotation".equals(key)) {
+                    rotation = ((Integer.parseInt(value) % 360) + 360) % 360;
+                } else if ("bitrate".equals(key)) {
+                    bitrate = Integer.parseInt(value);
+                } else if ("codec".equals(key)) {
+                    codec = normalizeCodec(value);
+                } else if ("framerate".equals(key)) {
+                    frameRate = Double.parseDouble(value);
+                } else if ("audio".equals(key)) {
+                    audio = "1".equals(value) || "true".equals(value);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        if (durationMillis < 0) {
+            return null;
+        }
+        if (rotation == 90 || rotation == 270) {
+            int tmp = width;
+            width = height;
+            height = tmp;
+        }
+        return new VideoInfo(durationMillis, width, height, rotation, bitrate, codec, frameRate, audio, fileSize);
+    }
+
+    /**
+     * Converts the codec names used by the native layers (four characters
+     * codes like "avc1" or mime types like "video/avc") to a short common name:
+     * "h264", "hevc", "mpeg4", "h263", "vp8", "vp9" or "av1". Unknown codecs
+     * are returned in lower case.
+     *
+     * @param codec native codec name
+     * @return the common name, or null if codec is null
+     */
+    static String normalizeCodec(String codec) {
+        if (codec == null) {
+            return null;
+        }
+        String c = codec.trim().toLowerCase();
+        if ("avc1".equals(c) || "avc3".equals(c) || "video/avc".equals(c) || "h264".equals(c)) {
+            return "h264";
+        } else if ("hvc1".equals(c) || "hev1".equals(c) || "video/hevc".equals(c) || "h265".equals(c)) {
+            return "hevc";
+        } else if ("mp4v".equals(c) || "video/mp4v-es".equals(c)) {
+            return "mpeg4";
+        } else if ("s263".equals(c) || "h263".equals(c) || "video/3gpp".equals(c)) {
+            return "h263";
+        } else if ("vp08".equals(c) || "video/x-vnd.on2.vp8".equals(c)) {
+            return "vp8";
+        } else if ("vp09".equals(c) || "video/x-vnd.on2.vp9".equals(c)) {
+            return "vp9";
+        } else if ("av01".equals(c) || "video/av01".equals(c)) {
+            return "av1";
+        }
+        return c;
+    }
+
+    /**
+     * Duration of the video.
+     *
+     * @return duration in milliseconds
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Width of the video as displayed, that is with the rotation applied.
+     *
+     * @return width in pixels, or 0 if the file doesn't have a video track
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Height of the video as displayed, that is with the rotation applied.
+     *
+     * @return height in pixels, or 0 if the file doesn't have a video track
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Size of the video as displayed, that is with the rotation applied.
+     *
+     * @return width and height
+     */
+    public Dimension getSize() {
+        return new Dimension(width, height);
+    }
+
+    /**
+     * Clockwise rotation that the player must apply to the encoded frames.
+     *
+     * @return 0, 90, 180 or 270
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * Average bitrate.
+     *
+     * @return bits/sec, or -1 if not available
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Codec of the video track: "h264", "hevc", "mpeg4", "h263", "vp8", "vp9",
+     * "av1" or another lower case name.
+     *
+     * @return codec, or null if not available
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Average frame rate of the video track.
+     *
+     * @return frames/sec, or -1 if not available
+     */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Returns true if the file contains at least one audio track.
+     *
+     * @return true if there is audio
+     */
+    public boolean hasAudio() {
+        return audio;
+    }
+
+    /**
+     * Size of the file.
+     *
+     * @return bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public String toString() {
+        return "VideoInfo{durationMillis=" + durationMillis + ", width=" + width + ", height=" + height
+                + ", rotation=" + rotation + ", bitrate=" + bitrate + ", codec=" + codec
+                + ", frameRate=" + frameRate + ", audio=" + audio + ", fileSize=" + fileSize + "}";
+    }
+
+}
@@ -21,8 +21,8 @@ import com.codename1.ui.geom.Dimension;
 import com.codename1.util.OnComplete;
 import com.codename1.util.StringUtil;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
  * Video Optimizer CN1Lib public layer class: use this class to get info about a
@@ -32,29 +32,152 @@ import java.util.TimerTask;
  */
 public class VideoOptimizer {
 
-    private static boolean isOptimizerExecuting = false;
+    private static VideoCache cache;
+    private static OptimizationScheduler scheduler;
+    private static ProgressDispatcher progressDispatcher;
+    private static ProbePool probePool;
+    private static Metrics metrics;
+    private static NativeLog nativeLog;
+    private static ResultCache resultCache;
+    private static Workspace workspace;
+    private static Predictor predictor;
+    /**
+     * Max number of videos whose track indexes are kept in memory.
+     */
+    private static final int INDEX_CACHE_SIZE = 4;
+    private static final LinkedHashMap<String, IndexEntry> indexCache = new LinkedHashMap<>(8, 0.75f, true);
     private VideoEditingNativeInterface videoEditing = NativeLookup.create(VideoEditingNativeInterface.class);
 
     /**
-     * Returns the duration of the videoFile in seconds, or -1 in case of error
+     * Returns the cache of the video info and of the video previews shared by
+     * all the instances of this class, for example to read its hit/miss
+     * counters or to change its max size.
+     *
+     * @return the shared cache
+     */
+    public static synchronized VideoCache getCache() {
+        if (cache == null) {
+            cache = new VideoCache(getAppHomePath() + "VideoOptimizerCache.dat", 200);
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the cache of the outputs of the optimizations shared by all the
+     * instances of this class; it's disabled by default, enable it to avoid
+     * encoding again a video already optimized with the same profile.
+     *
+     * @return the shared result cache
+     */
+    public static synchronized ResultCache getResultCache() {
+        if (resultCache == null) {
+            resultCache = new ResultCache(getAppHomePath() + "VideoOptimizerResults.dat", ResultCache.DEFAULT_MAX_BYTES);
+        }
+        return resultCache;
+    }
+
+    /**
+     * Returns the directory of the outputs shared by all the instances of
+     * this class, for example to change it, to set the free space that the
+     * jobs must leave on the device or to delete an output after uploading
+     * it.
+     *
+     * @return the shared workspace
+     */
+    public static synchronized Workspace getWorkspace() {
+        if (workspace == null) {
+            workspace = new Workspace(getAppHomePath() + "VideoOptimizerWorkspace.dat", getAppHomePath());
+        }
+        return workspace;
+    }
+
+    /**
+     * Returns the predictor of the size and of the time of the optimizations
+     * shared by all the instances of this class, calibrated on the jobs
+     * completed on this device.
+     *
+     * @return the shared predictor
+     */
+    public static synchronized Predictor getPredictor() {
+        if (predictor == null) {
+            predictor = new Predictor(getAppHomePath() + "VideoOptimizerHistory.dat");
+        }
+        return predictor;
+    }
+
+    /**
+     * Returns the dispatcher of the progress updates shared by all the
+     * instances of this class, for example to change the max rate of the
+     * updates or the thread that executes the OnProgress callbacks.
+     *
+     * @return the shared dispatcher
+     */
+    public static synchronized ProgressDispatcher getProgressDispatcher() {
+        if (progressDispatcher == null) {
+            progressDispatcher = new ProgressDispatcher();
+        }
+        return progressDispatcher;
+    }
+
+    /**
+     * Returns the background threads shared by all the instances of this
+     * class that run the asynchronous metadata requests, for example to
+     * change their max concurrency or the thread that executes the callbacks.
+     *
+     * @return the shared pool
+     */
+    public static synchronized ProbePool getProbePool() {
+        if (probePool == null) {
+            probePool = new ProbePool();
+        }
+        return probePool;
+    }
+
+    /**
+     * Returns the registry of the metrics shared by all the instances of this
+     * class, for example to enable it, to read a snapshot or to set a sink.
+     *
+     * @return the shared metrics
+     */
+    public static synchronized Metrics getMetrics() {
+        if (metrics == null) {
+            metrics = new Metrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the buffer of the log messages of the native code shared by all
+     * the instances of this class, for example to raise the min level of the
+     * messages or to read how many messages were dropped.
+     *
+     * @return the shared native log
+     */
+    public static synchronized NativeLog getNativeLog() {
+        if (nativeLog == null) {
+            nativeLog = new NativeLog();
+        }
+        return nativeLog;
+    }
+
+    /**
+     * Returns the duration of the videoFile in seconds, or -1 in case of
+     * error. It's read from the cached info, see
+     * {@link #getVideoInfo(java.lang.String)}.
      *
      * @param videoFile placed in FileSystemStorage
      * @return duration in seconds, or -1
      */
     public long getVideoDuration(String videoFile) {
-        if (videoEditing != null && videoEditing.isSupported()) {
-            // it's mandatory to remove the "file://" when accessing to native interfaces
-            String inputFile = removeFilePrefix(videoFile);
-            return videoEditing.getVideoDuration(inputFile);
-        } else {
-            Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
-            return -1;
-        }
+        VideoInfo info = getVideoInfo(videoEditing, videoFile);
+        return info != null ? info.getDurationMillis() / 1000 : -1;
     }
 
     /**
      * Extract a frame from the given video and returns a jpeg file, or null in
-     * case of error
+     * case of error. The previews are cached: as long as the video doesn't
+     * change, the same jpeg file is returned; it's deleted when evicted from
+     * the cache.
      *
      * @param videoFile placed in FileSystemStorage
      * @return the jpeg preview placed in FileSystemStorage (or null in case of
@@ -62,22 +185,28 @@ public class VideoOptimizer {
      */
     public String getVideoPreview(String videoFile) {
         if (videoEditing != null && videoEditing.isSupported()) {
-            String outputFile = getRandomUniqueFilePath("jpg"); // note that it has the "file://" prefix
-            // it's mandatory to remove the "file://" when accessing to native interfaces
-            videoEditing.getImageFromVideo(removeFilePrefix(videoFile), removeFilePrefix(outputFile));
-            // before returning, it check that the jpeg file was produced correctly
-            try {
-                if (FileSystemStorage.getInstance().exists(outputFile)) {
-                    String mimeType = Util.guessMimeType(outputFile);
-                    if ("image/jpeg".equals(mimeType) || "image/jpg".equals(mimeType)) {
-                        // Ok, the file exists and it's a valid jpeg
-                        return outputFile;
+            return (String) getCache().get(videoFile, VideoCache.KIND_PREVIEW, () -> {
+                String outputFile = getWorkspace().reserve("jpg", Workspace.KIND_OUTPUT); // note that it has the "file://" prefix
+                long startTime = getMetrics().start();
+                // it's mandatory to remove the "file://" when accessing to native interfaces
+                videoEditing.getImageFromVideo(removeFilePrefix(videoFile), removeFilePrefix(outputFile));
+                // before returning, it check that the jpeg file was produced correctly
+                try {
+                    if (FileSystemStorage.getInstance().exists(outputFile)) {
+                        String mimeType = Util.guessMimeType(outputFile);
+                        if ("image/jpeg".equals(mimeType) || "image/jpg".equals(mimeType)) {
+                            // Ok, the file exists and it's a valid jpeg
+                            getMetrics().recordSince(Metrics.PREVIEW, startTime);
+                            return outputFile;
+                        }
                     }
+                } catch (IOException ex) {
+                    Log.p("The jpeg file produces by VideoOptimizer.getVideoPreview cannot be open", Log.ERROR);
                 }
-            } catch (IOException ex) {
-                Log.p("The jpeg file produces by VideoOptimizer.getVideoPreview cannot be open", Log.ERROR);
-            }
-            return null;
+                getWorkspace().discard(outputFile);
+                getMetrics().increment(Metrics.FAILED + Metrics.PREVIEW, 1);
+                return null;
+            });
         } else {
             Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
             return null;
@@ -85,52 +214,432 @@ public class VideoOptimizer {
     }
 
     /**
-     * Get the average bitrate (in bits/sec), or -1 in case of error.
+     * <p>
+     * Extracts several thumbnails of the given video in a single pass, for
+     * example for the preview strip of a scrubber: the thumbnails are evenly
+     * spaced over the video (or they show the closest preceding keyframes,
+     * see {@link ThumbnailOptions#setKeyframesOnly(boolean)}) and the frames
+     * are scaled down while they are decoded, so that a thumbnail of a 4K
+     * video costs about as much as a thumbnail of a small one.</p>
+     * <p>
+     * The thumbnails are written either in separate files or in a single
+     * sprite sheet, in the format and quality of the given options; the
+     * returned {@link Thumbnails} maps every thumbnail to its time. Unlike
+     * the previews, the thumbnails are not cached: the caller owns the files.
+     * It's synchronous, so don't call it on the EDT.</p>
      *
      * @param videoFile placed in FileSystemStorage
-     * @return average bitrate (in bits/sec), or -1 in case of error
+     * @param options thumbnail settings
+     * @return the thumbnails placed in FileSystemStorage (it ensures to don't
+     * overwrite any existing file), or null in case of error
      */
-    public int getVideoBitrate(String videoFile) {
+    public Thumbnails getVideoThumbnails(String videoFile, ThumbnailOptions options) {
         if (videoEditing != null && videoEditing.isSupported()) {
-            // it's mandatory to remove the "file://" when accessing to native interfaces
-            String inputFile = removeFilePrefix(videoFile);
-            return videoEditing.getVideoBitrate(inputFile);
+            VideoInfo info = getVideoInfo(videoEditing, videoFile);
+            if (info == null) {
+                return null;
+            }
+            options = options.copy();
+            long[] times = getThumbnailTimes(info.getDurationMillis(), options.getCount(),
+                    options.isKeyframesOnly() ? loadTrackIndex(videoFile, false) : null);
+            int columns = options.getSheetColumns(times.length);
+            String extension = ThumbnailOptions.FORMAT_PNG.equals(options.getFormat()) ? "png" : "jpg";
+            String[] files = new String[columns > 0 ? 1 : times.length];
+            StringBuilder outputs = new StringBuilder();
+            StringBuilder timeList = new StringBuilder();
+            for (int i = 0; i < files.length; i++) {
+                files[i] = getWorkspace().reserve(extension, Workspace.KIND_OUTPUT); // note that it has the "file://" prefix
+                if (i > 0) {
+                    outputs.append('\n');
+                }
+                // it's mandatory to remove the "file://" when accessing to native interfaces
+                outputs.append(removeFilePrefix(files[i]));
+            }
+            for (int i = 0; i < times.length; i++) {
+                if (i > 0) {
+                    timeList.append(',');
+                }
+                timeList.append(times[i]);
+            }
+            long startTime = getMetrics().start();
+            String size = videoEditing.getVideoThumbnails(removeFilePrefix(videoFile), outputs.toString(), options.toNative(timeList.toString(), columns));
+            java.util.List<String> tokens = size != null ? StringUtil.tokenize(size, "x") : null;
+            if (tokens != null && tokens.size() == 2) {
+                try {
+                    int width = Integer.parseInt(tokens.get(0));
+                    int height = Integer.parseInt(tokens.get(1));
+                    boolean complete = true;
+                    for (String file : files) {
+                        complete &= FileSystemStorage.getInstance().exists(file);
+                    }
+                    if (complete && width > 0 && height > 0) {
+                        getMetrics().recordSince(Metrics.THUMBNAILS, startTime);
+                        return columns > 0
+                                ? new Thumbnails(times, null, files[0], columns, width, height)
+                                : new Thumbnails(times, files, null, 0, width, height);
+                    }
+                } catch (NumberFormatException ex) {
+                    // the error was logged by the native layer
+                }
+            }
+            Log.p("VideoOptimizer.getVideoThumbnails failed for " + videoFile, Log.ERROR);
+            getMetrics().increment(Metrics.FAILED + Metrics.THUMBNAILS, 1);
+            for (String file : files) {
+                getWorkspace().discard(file);
+            }
+            return null;
         } else {
             Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
-            return -1;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the times of the thumbnails of a video: the middle of count
+     * equal parts of the video or, if the index of the video track is given,
+     * the keyframes that precede those times, without duplicates.
+     *
+     * @param duration of the video in ms
+     * @param count number of equal parts
+     * @param index of the video track, null for evenly spaced times
+     * @return times in ms in ascending order
+     */
+    static long[] getThumbnailTimes(long duration, int count, TrackIndex index) {
+        long[] times = new long[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            long time = duration * (2 * i + 1) / (2L * count);
+            if (index != null && index.getTimescale() > 0) {
+                int sample = index.getSampleAtTime(time * index.getTimescale() / 1000);
+                int keyframe = sample >= 0 ? index.getSyncSampleBefore(sample) : -1;
+                if (keyframe >= 0) {
+                    time = index.toMillis(index.getPresentationTime(keyframe));
+                }
+            }
+            if (found == 0 || time > times[found - 1]) {
+                times[found++] = time;
+            }
         }
+        long[] result = new long[found];
+        System.arraycopy(times, 0, result, 0, found);
+        return result;
+    }
+
+    /**
+     * Get the average bitrate (in bits/sec), or -1 in case of error. It's read
+     * from the cached info, see {@link #getVideoInfo(java.lang.String)}.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @return average bitrate (in bits/sec), or -1 in case of error
+     */
+    public int getVideoBitrate(String videoFile) {
+        VideoInfo info = getVideoInfo(videoEditing, videoFile);
+        return info != null ? info.getBitrate() : -1;
     }
 
     /**
-     * Returns the size of the given video, or null in case of error
+     * Returns the size of the given video, or null in case of error. It's the
+     * size of the encoded frames, before the rotation; it's read from the
+     * cached info, see {@link #getVideoInfo(java.lang.String)}.
      *
      * @param videoFile placed in FileSystemStorage
      * @return the size of the given video, or null in case of error
      */
     public Dimension getVideoSize(String videoFile) {
-        if (videoEditing != null && videoEditing.isSupported()) {
-            // it's mandatory to remove the "file://" when accessing to native interfaces
-            String inputFile = removeFilePrefix(videoFile);
-            String videoSize = videoEditing.getVideoSize(inputFile);
-            java.util.List<String> tokens = StringUtil.tokenize(videoSize, "x");
-            if (tokens.size() == 2) {
-                try {
-                    int width = Integer.parseInt(tokens.get(0));
-                    int height = Integer.parseInt(tokens.get(1));
-                    return new Dimension(width, height);
-                } catch (NumberFormatException ex) {
-                    // probably something wrong happened in the native layer and it was logged;
-                    // in this public layer, we simply return null as declared in the Javadoc
+        VideoInfo info = getVideoInfo(videoEditing, videoFile);
+        if (info == null || info.getWidth() <= 0 || info.getHeight() <= 0) {
+            Log.p("VideoOptimizer.getVideoSize returned an invalid size", Log.ERROR);
+            return null;
+        }
+        if (info.getRotation() == 90 || info.getRotation() == 270) {
+            // the info have the size as displayed
+            return new Dimension(info.getHeight(), info.getWidth());
+        }
+        return info.getSize();
+    }
+
+    /**
+     * Returns all the info about the given video (duration, size, rotation,
+     * bitrate, codec, frame rate, audio presence and file size) opening it only
+     * once: prefer this method to calling getVideoDuration, getVideoBitrate and
+     * getVideoSize one after the other. The info are cached (see
+     * {@link #getCache()}), so asking again for the same unchanged video
+     * doesn't require any native call.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @return the info, or null in case of error
+     */
+    public VideoInfo getVideoInfo(String videoFile) {
+        return getVideoInfo(videoEditing, videoFile);
+    }
+
+    /**
+     * Returns all the info about the video read from the given source, see
+     * {@link #getVideoInfo(java.lang.String)}. A URI is opened by the native
+     * code without copying it, while a Storage entry or a stream is copied
+     * once to a temporary file that is kept until the source is closed. It's
+     * synchronous, so don't call it on the EDT.
+     *
+     * @param source the video, it's not closed
+     * @return the info, or null in case of error
+     */
+    public VideoInfo getVideoInfo(VideoSource source) {
+        if (source.getType() == VideoSource.TYPE_FILE) {
+            return getVideoInfo(source.getName());
+        }
+        try {
+            if (videoEditing != null && videoEditing.isSupported()) {
+                return getVideoInfo(videoEditing, source.getNativePath(videoEditing));
+            }
+            // the MP4/MOV files can be parsed also without the native code
+            RandomAccessInput input = source.openInput(videoEditing);
+            try {
+                return VideoInfo.fromContainer(Mp4Container.parse(input), input.length());
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            Log.p("VideoOptimizer.getVideoInfo failed: " + ex.getMessage(), Log.ERROR);
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #getVideoInfo(java.lang.String)}: the
+     * video is probed on a thread of the {@link #getProbePool()}, so it can
+     * be called on the EDT even for files on slow storage.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param callback receives the info, or null in case of error, on the
+     * executor of the pool (by default the EDT)
+     */
+    public void getVideoInfoAsync(String videoFile, OnComplete<VideoInfo> callback) {
+        ProbePool pool = getProbePool();
+        pool.submit(() -> {
+            VideoInfo info = getVideoInfo(videoFile);
+            pool.deliver(() -> callback.completed(info));
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #getVideoPreview(java.lang.String)}: the
+     * frame is extracted on a thread of the {@link #getProbePool()}.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param callback receives the jpeg preview placed in FileSystemStorage,
+     * or null in case of error, on the executor of the pool (by default the
+     * EDT)
+     */
+    public void getVideoPreviewAsync(String videoFile, OnComplete<String> callback) {
+        ProbePool pool = getProbePool();
+        pool.submit(() -> {
+            String preview = getVideoPreview(videoFile);
+            pool.deliver(() -> callback.completed(preview));
+        });
+    }
+
+    /**
+     * <p>
+     * Probes the info of several videos at the same time, for example to
+     * fill a gallery: the videos are probed in parallel by the threads of the
+     * {@link #getProbePool()} (at most
+     * {@link ProbePool#getMaxConcurrency()} at the same time) and every
+     * result is delivered as soon as it's ready, through the shared cache
+     * (see {@link #getCache()}), so the videos already known are answered
+     * without opening them.</p>
+     * <p>
+     * The callbacks are executed by the executor of the pool, by default the
+     * EDT.</p>
+     *
+     * @param videoFiles placed in FileSystemStorage
+     * @param onProbeCallback invoked for every video, in completion order; it
+     * can be null
+     * @param onCompleteCallback invoked once after the last result; it can be
+     * null
+     * @return the handle of the batch, to read the results or to cancel it
+     */
+    public ProbeBatch probeVideos(String[] videoFiles, OnProbe onProbeCallback, Runnable onCompleteCallback) {
+        ProbeBatch batch = new ProbeBatch(videoFiles, onProbeCallback, onCompleteCallback);
+        ProbePool pool = getProbePool();
+        if (batch.getCount() == 0) {
+            if (onCompleteCallback != null) {
+                pool.deliver(onCompleteCallback);
+            }
+            return batch;
+        }
+        for (int i = 0; i < batch.getCount(); i++) {
+            int index = i;
+            pool.submit(() -> {
+                if (!batch.isCancelled()) {
+                    batch.probed(pool, index, getVideoInfo(batch.getVideoFile(index)));
                 }
+            });
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the info about the given video through the shared cache; where
+     * the native code is not available (like in the simulator), the MP4/MOV
+     * files are parsed in Java.
+     *
+     * @param videoEditing native interface used in case of cache miss, it
+     * can be null
+     * @param videoFile placed in FileSystemStorage
+     * @return the info, or null in case of error
+     */
+    static VideoInfo getVideoInfo(VideoEditingNativeInterface videoEditing, String videoFile) {
+        // it's mandatory to remove the "file://" when accessing to native interfaces
+        String inputFile = removeFilePrefix(videoFile);
+        return (VideoInfo) getCache().get(videoFile, VideoCache.KIND_INFO, () -> {
+            long startTime = getMetrics().start();
+            long fileSize = FileSystemStorage.getInstance().getLength(videoFile);
+            VideoInfo info = videoEditing != null && videoEditing.isSupported()
+                    ? VideoInfo.fromNative(videoEditing.getVideoInfo(inputFile), fileSize)
+                    : parseVideoInfo(videoFile, fileSize);
+            if (info == null) {
+                Log.p("VideoOptimizer.getVideoInfo returned invalid info", Log.ERROR);
+                getMetrics().increment(Metrics.FAILED + Metrics.PROBE, 1);
+            } else {
+                getMetrics().recordSince(Metrics.PROBE, startTime);
             }
-            Log.p("VideoOptimizer.getVideoSize returned an invalid size", Log.ERROR);
+            return info;
+        });
+    }
+
+    /**
+     * Reads the info of the given MP4/MOV file with the Java parser.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param fileSize size of the file
+     * @return the info, or null if the file is not a valid MP4/MOV file
+     */
+    private static VideoInfo parseVideoInfo(String videoFile, long fileSize) {
+        try {
+            StorageInput input = new StorageInput(videoFile);
+            try {
+                return VideoInfo.fromContainer(Mp4Container.parse(input), fileSize);
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            Log.p("VideoOptimizer -> Cannot parse the video " + videoFile + ": " + ex.getMessage(), Log.WARNING);
             return null;
-        } else {
-            Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the index of the samples of the first video (or audio) track of
+     * the given MP4/MOV file: its keyframes, the size and the offset of every
+     * sample and their timestamps, to seek, trim or split the video at its
+     * keyframes or to choose accurate preview times.</p>
+     * <p>
+     * Only the "moov" box is read, so it doesn't depend on the native code;
+     * it's synchronous, so don't call it on the EDT for big files. The indexes
+     * of the last few videos are kept in memory as long as the videos don't
+     * change.</p>
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param audio true for the audio track, false for the video track
+     * @return the index, or null if the file is not a valid MP4/MOV file or if
+     * it doesn't have such a track
+     */
+    public TrackIndex getTrackIndex(String videoFile, boolean audio) {
+        return loadTrackIndex(videoFile, audio);
+    }
+
+    /**
+     * Returns the index of a track of the video read from the given source,
+     * see {@link #getTrackIndex(java.lang.String, boolean)}. A seekable source
+     * is read in place; a stream is read once and buffered in memory up to
+     * {@link VideoSource#MEMORY_LIMIT} bytes, then in a temporary file, so
+     * that the "moov" box can be found also at the end of the stream. The
+     * indexes of a source that is not a file are not cached.
+     *
+     * @param source the video, it's not closed
+     * @param audio true for the audio track, false for the video track
+     * @return the index, or null
+     */
+    public TrackIndex getTrackIndex(VideoSource source, boolean audio) {
+        if (source.getType() == VideoSource.TYPE_FILE) {
+            return loadTrackIndex(source.getName(), audio);
+        }
+        try {
+            RandomAccessInput input = source.openInput(videoEditing);
+            try {
+                Mp4Container container = Mp4Container.parse(input, true);
+                Mp4Container.Track track = audio ? container.getAudioTrack() : container.getVideoTrack();
+                return track != null ? track.index : null;
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            Log.p("VideoOptimizer.getTrackIndex failed: " + ex.getMessage(), Log.ERROR);
             return null;
         }
     }
 
+    /**
+     * Returns the index of a track of the given video through the shared
+     * in-memory cache, see {@link #getTrackIndex(java.lang.String, boolean)}.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param audio true for the audio track, false for the video track
+     * @return the index, or null
+     */
+    static TrackIndex loadTrackIndex(String videoFile, boolean audio) {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        String key = removeFilePrefix(videoFile);
+        long size = fs.getLength(videoFile);
+        long lastModified = fs.getLastModified(videoFile);
+        IndexEntry entry;
+        synchronized (indexCache) {
+            entry = indexCache.get(key);
+        }
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            entry = new IndexEntry();
+            entry.size = size;
+            entry.lastModified = lastModified;
+            try {
+                StorageInput input = new StorageInput(videoFile);
+                try {
+                    Mp4Container container = Mp4Container.parse(input, true);
+                    Mp4Container.Track video = container.getVideoTrack();
+                    Mp4Container.Track audioTrack = container.getAudioTrack();
+                    entry.video = video != null ? video.index : null;
+                    entry.audio = audioTrack != null ? audioTrack.index : null;
+                } finally {
+                    input.close();
+                }
+            } catch (IOException ex) {
+                Log.p("VideoOptimizer.getTrackIndex failed: " + ex.getMessage(), Log.ERROR);
+                return null;
+            }
+            synchronized (indexCache) {
+                indexCache.put(key, entry);
+                if (indexCache.size() > INDEX_CACHE_SIZE) {
+                    Iterator<String> it = indexCache.keySet().iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        return audio ? entry.audio : entry.video;
+    }
+
+    /**
+     * Indexes of the tracks of a video, valid as long as its size and its
+     * last modification time don't change.
+     */
+    private static final class IndexEntry {
+
+        long size;
+        long lastModified;
+        TrackIndex video;
+        TrackIndex audio;
+    }
+
     /**
      * <p>
      * Asynchronous method to optimize a video for fast upload and maximum
@@ -140,12 +649,19 @@ public class VideoOptimizer {
      * </p>
      * <p>
      * This method is cpu-intensive and it can require a time to complete longer
-     * than the video duration.
+     * than the video duration. However, before encoding, the source is
+     * compared with the target {@link EncodingProfile}: if the video already
+     * meets it, the video stream is copied as is and only the container (and
+     * if needed the audio) is rewritten, that takes a fraction of the time
+     * (see {@link OptimizationJob#getPath()}).
      * </p>
      * <p>
-     * It throws an IllegalStateException if you invoke this method when there
-     * is an ongoing video optimization: you must wait that it finishes before
-     * invoking this method again.
+     * The optimization uses the {@link EncodingProfile#defaultProfile()} and
+     * it is submitted to the shared {@link OptimizationScheduler} with normal
+     * priority; this method returns immediately: several
+     * optimizations can be submitted without waiting for the previous ones to
+     * finish. It throws an IllegalStateException if the queue of the scheduler
+     * is full. The returned job can be cancelled with {@link #cancel(java.lang.String)}.
      * </p>
      *
      * @param videoFile placed in FileSystemStorage
@@ -153,86 +669,313 @@ public class VideoOptimizer {
      * completed
      * @param onFailureCallback generic callback in case of error, note that
      * errors are logged by the EDT
-     * @param onProgressCallback generic callback invoked every second to update
-     * the UI with the progress percentage (from 0 to 99)
+     * @param onProgressCallback generic callback invoked when the progress
+     * changes, at the rate set in the {@link ProgressDispatcher}, to update the
+     * UI with the progress percentage (from 0 to 99); it can be null
+     * @return the handle of the submitted job, or null if the optimization is
+     * not supported in the current platform
      */
-    public void optimizeVideoForUpload(String videoFile, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
-        if (isOptimizerExecuting) {
-            throw new IllegalStateException("VideoOptimizer.optimizeVideoForUpload has been invoked at inappropriate time: you must wait for the ongoing video optimization to finish.");
-        }
-
-        if (videoEditing != null && videoEditing.isSupported()) {
+    public OptimizationJob optimizeVideoForUpload(String videoFile, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        return optimizeVideoForUpload(videoFile, onCompleteCallback, onFailureCallback, onProgressCallback, OptimizationJob.PRIORITY_NORMAL);
+    }
 
-            // reset to percentage
-            VideoEditingCallbacks.setProgress(0);
+    /**
+     * Like
+     * {@link #optimizeVideoForUpload(java.lang.String, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)},
+     * with the given scheduler priority.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param onCompleteCallback executed when the saving of the new video is
+     * completed
+     * @param onFailureCallback generic callback in case of error, note that
+     * errors are logged by the EDT
+     * @param onProgressCallback generic callback invoked when the progress
+     * changes, at the rate set in the {@link ProgressDispatcher}, to update the
+     * UI with the progress percentage (from 0 to 99); it can be null
+     * @param priority the jobs with higher priority are started first, see
+     * the PRIORITY_ constants of {@link OptimizationJob}
+     * @return the handle of the submitted job, or null if the optimization is
+     * not supported in the current platform
+     */
+    public OptimizationJob optimizeVideoForUpload(String videoFile, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback, int priority) {
+        return optimizeVideoForUpload(videoFile, EncodingProfile.defaultProfile(), onCompleteCallback, onFailureCallback, onProgressCallback, priority);
+    }
 
-            // Output file
-            String outputFile = getRandomUniqueFilePath("mp4"); // note that it has the "file://" prefix
+    /**
+     * Like
+     * {@link #optimizeVideoForUpload(java.lang.String, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)},
+     * with the given encoding settings.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param profile encoding settings, mapped by every platform to the
+     * closest native settings; it's copied, so it can be reused
+     * @param onCompleteCallback executed when the saving of the new video is
+     * completed
+     * @param onFailureCallback generic callback in case of error, note that
+     * errors are logged by the EDT
+     * @param onProgressCallback generic callback invoked when the progress
+     * changes, at the rate set in the {@link ProgressDispatcher}, to update the
+     * UI with the progress percentage (from 0 to 99); it can be null
+     * @return the handle of the submitted job, or null if the optimization is
+     * not supported in the current platform
+     */
+    public OptimizationJob optimizeVideoForUpload(String videoFile, EncodingProfile profile, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        return optimizeVideoForUpload(videoFile, profile, onCompleteCallback, onFailureCallback, onProgressCallback, OptimizationJob.PRIORITY_NORMAL);
+    }
 
-            // The timer is used to invoke the onProgressCallback every second
-            TimerTask task = new TimerTask() {
-                @Override
-                public void run() {
-                    onProgressCallback.update(VideoEditingCallbacks.getProgress());
-                }
-            };
-            Timer[] timer = {new Timer()};
-
-            // sets the callbacks
-            VideoEditingCallbacks.setOptimizedVideoCallback(videoFile, () -> {
-                timer[0].cancel();
-                onCompleteCallback.completed(outputFile);
-                isOptimizerExecuting = false;
-            });
-            VideoEditingCallbacks.setVideoErrorCallback(videoFile, () -> {
-                timer[0].cancel();
-                onFailureCallback.run();
-                isOptimizerExecuting = false;
-            });
+    /**
+     * Like
+     * {@link #optimizeVideoForUpload(java.lang.String, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)},
+     * with the given encoding settings and scheduler priority.
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param profile encoding settings, mapped by every platform to the
+     * closest native settings; it's copied, so it can be reused
+     * @param onCompleteCallback executed when the saving of the new video is
+     * completed
+     * @param onFailureCallback generic callback in case of error, note that
+     * errors are logged by the EDT
+     * @param onProgressCallback generic callback invoked when the progress
+     * changes, at the rate set in the {@link ProgressDispatcher}, to update the
+     * UI with the progress percentage (from 0 to 99); it can be null
+     * @param priority the jobs with higher priority are started first, see
+     * the PRIORITY_ constants of {@link OptimizationJob}
+     * @return the handle of the submitted job, or null if the optimization is
+     * not supported in the current platform
+     */
+    public OptimizationJob optimizeVideoForUpload(String videoFile, EncodingProfile profile, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback, int priority) {
+        if (videoEditing != null && videoEditing.isSupported()) {
+            OptimizationJob job = new OptimizationJob(videoFile, profile, priority, onCompleteCallback, onFailureCallback, onProgressCallback);
+            return getScheduler().submit(job);
+        } else {
+            Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
+            onFailureCallback.run();
+            return null;
+        }
+    }
 
-            // it's mandatory to remove the "file://" when accessing to native interfaces
-            isOptimizerExecuting = true;
-            videoEditing.optimizeVideoForUpload(removeFilePrefix(videoFile), removeFilePrefix(outputFile));
+    /**
+     * Like
+     * {@link #optimizeVideoForUpload(java.lang.String, net.informaticalibera.videoediting.EncodingProfile, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress, int)},
+     * but the video is read from the given source, that is closed when the
+     * job ends (even if it's cancelled or it fails). The native encoders need
+     * a file: a URI is opened without copying it, while a Storage entry or a
+     * stream is copied once to a temporary file when the job is started (not
+     * when it's queued), deleted when the source is closed.
+     *
+     * @param source the video to optimize
+     * @param profile encoding settings, it's copied, so it can be reused
+     * @param onCompleteCallback executed when the saving of the new video is
+     * completed
+     * @param onFailureCallback generic callback in case of error, including
+     * an error reading the source
+     * @param onProgressCallback generic callback invoked when the progress
+     * changes; it can be null
+     * @param priority the jobs with higher priority are started first, see
+     * the PRIORITY_ constants of {@link OptimizationJob}
+     * @return the handle of the submitted job, or null if the optimization is
+     * not supported in the current platform
+     */
+    public OptimizationJob optimizeVideoForUpload(VideoSource source, EncodingProfile profile, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback, int priority) {
+        if (source.getType() == VideoSource.TYPE_FILE) {
+            return optimizeVideoForUpload(source.getName(), profile, onCompleteCallback, onFailureCallback, onProgressCallback, priority);
+        }
+        if (videoEditing != null && videoEditing.isSupported()) {
+            OptimizationJob job = new OptimizationJob(source, profile, priority, onCompleteCallback, onFailureCallback, onProgressCallback);
+            return getScheduler().submit(job);
+        } else {
+            Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
+            source.close();
+            onFailureCallback.run();
+            return null;
+        }
+    }
 
-            // start the timer (that is stopped by the success and failure callbacks),
-            timer[0].schedule(task, 0, 1000);
+    /**
+     * <p>
+     * Asynchronous method to optimize a video in two stages, so that it can
+     * be shown long before the full quality optimization is done: first a
+     * small proxy is encoded with {@link EncodingProfile#proxyProfile()} (with
+     * the time range of the given profile) at high priority, in a few
+     * seconds, and onProxyCallback receives it; then the video is optimized
+     * with the given profile at low priority, and onCompleteCallback
+     * receives the full quality output.</p>
+     * <p>
+     * The full quality stage is submitted only when the proxy is ready, so
+     * the two stages never compete for the encoders. If the proxy fails, the
+     * failure is logged and the full quality stage is started anyway; the
+     * progress callback receives only the progress of the full quality
+     * stage.</p>
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param profile encoding settings of the full quality stage; it's
+     * copied, so it can be reused
+     * @param onProxyCallback executed when the proxy is ready
+     * @param onCompleteCallback executed when the full quality output is
+     * ready
+     * @param onFailureCallback executed if the full quality stage fails
+     * @param onProgressCallback generic callback invoked when the progress of
+     * the full quality stage changes; it can be null
+     * @return the handle of the two stages, or null if the optimization is
+     * not supported in the current platform
+     * @throws IllegalStateException if the queue of the scheduler is full
+     */
+    public ProgressiveJob optimizeVideoProgressive(String videoFile, EncodingProfile profile, OnComplete<String> onProxyCallback, OnComplete<String> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        if (videoEditing != null && videoEditing.isSupported()) {
+            ProgressiveJob job = new ProgressiveJob(videoFile, profile, onProxyCallback, onCompleteCallback, onFailureCallback, onProgressCallback);
+            job.submit(getScheduler());
+            return job;
         } else {
             Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
             onFailureCallback.run();
+            return null;
         }
+    }
 
+    /**
+     * <p>
+     * Asynchronous method to produce more renditions of the same video (for
+     * example 360p and 720p, for adaptive playback) in a single job: the
+     * source is decoded only once and every decoded frame is scaled and
+     * encoded by a branch for each rendition, so it costs much less than an
+     * optimization for each rendition. The renditions are always encoded
+     * (the source is never copied as is) and they are never fragmented; the
+     * time range of the first profile (see
+     * {@link EncodingProfile#setTimeRange(long, long)}) applies to all of
+     * them.</p>
+     * <p>
+     * Android decodes the source once; on iOS the renditions are exported one
+     * after the other by the hardware encoder. The job is submitted to the
+     * shared {@link OptimizationScheduler} like the single optimizations and
+     * its progress is the progress of the whole job.</p>
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @param profiles encoding settings of the renditions, at least one; they
+     * are copied, so they can be reused
+     * @param onCompleteCallback executed when all the renditions are ready,
+     * with the renditions in the order of their profiles (including their
+     * sizes)
+     * @param onFailureCallback generic callback in case of error, note that
+     * errors are logged by the EDT
+     * @param onProgressCallback generic callback invoked when the progress
+     * changes, at the rate set in the {@link ProgressDispatcher}; it can be
+     * null
+     * @return the handle of the submitted job, see
+     * {@link OptimizationJob#getRenditions()}, or null if the optimization is
+     * not supported in the current platform
+     */
+    public OptimizationJob optimizeVideoRenditions(String videoFile, EncodingProfile[] profiles, OnComplete<Rendition[]> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback) {
+        return optimizeVideoRenditions(videoFile, profiles, onCompleteCallback, onFailureCallback, onProgressCallback, OptimizationJob.PRIORITY_NORMAL);
     }
 
     /**
-     * Returns an unique (not used) file path in the app home path of
-     * FileSystemStorage, with the given extension; if the extension doesn't
-     * start with a dot ".", it will be added automatically.
+     * Like
+     * {@link #optimizeVideoRenditions(java.lang.String, net.informaticalibera.videoediting.EncodingProfile[], com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress)},
+     * with the given scheduler priority.
      *
-     * @param extension it can be null to don't add any extension
-     * @return
+     * @param videoFile placed in FileSystemStorage
+     * @param profiles encoding settings of the renditions, at least one
+     * @param onCompleteCallback executed when all the renditions are ready
+     * @param onFailureCallback generic callback in case of error
+     * @param onProgressCallback generic callback invoked when the progress
+     * changes; it can be null
+     * @param priority the jobs with higher priority are started first, see
+     * the PRIORITY_ constants of {@link OptimizationJob}
+     * @return the handle of the submitted job, or null if the optimization is
+     * not supported in the current platform
      */
-    private static String getRandomUniqueFilePath(String extension) {
-        long timeStamp = System.currentTimeMillis();
-        if (extension != null && !extension.startsWith(".")) {
-            extension = "." + extension;
+    public OptimizationJob optimizeVideoRenditions(String videoFile, EncodingProfile[] profiles, OnComplete<Rendition[]> onCompleteCallback, Runnable onFailureCallback, OnProgress onProgressCallback, int priority) {
+        if (profiles == null || profiles.length == 0) {
+            throw new IllegalArgumentException("At least one profile is required");
+        }
+        if (videoEditing != null && videoEditing.isSupported()) {
+            OptimizationJob job = new OptimizationJob(videoFile, profiles, priority, onCompleteCallback, onFailureCallback, onProgressCallback);
+            return getScheduler().submit(job);
+        } else {
+            Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
+            onFailureCallback.run();
+            return null;
         }
-        String randomPath;
-        if (extension != null) {
-            randomPath = getAppHomePath() + timeStamp + extension;
-            // check that the randomPath is not used
-            while (FileSystemStorage.getInstance().exists(randomPath)) {
-                timeStamp++;
-                randomPath = getAppHomePath() + timeStamp + extension;
+    }
+
+    /**
+     * <p>
+     * Writes a streamable copy of the given MP4/MOV video, that is a copy with
+     * the "moov" box (the index of the media) before the media payload, so
+     * that it can be played while it's downloaded. The video is not encoded
+     * again: only the container is rewritten, and the media payload is copied
+     * file to file by the native code, so it takes only the time to read and
+     * write the file.</p>
+     * <p>
+     * The optimized videos are already streamable (see
+     * {@link EncodingProfile#setFaststart(boolean)}): use this method for the
+     * videos that don't need to be optimized. It's synchronous, so don't call
+     * it on the EDT.</p>
+     *
+     * @param videoFile placed in FileSystemStorage
+     * @return the streamable copy placed in FileSystemStorage (or null in case
+     * of error), it ensures to don't overwrite any existing file
+     */
+    public String makeStreamable(String videoFile) {
+        if (videoEditing != null && videoEditing.isSupported()) {
+            String outputFile = getWorkspace().reserve("mp4", Workspace.KIND_PARTIAL); // note that it has the "file://" prefix
+            try {
+                Mp4Faststart.remux(videoEditing, videoFile, outputFile);
+                getWorkspace().commit(outputFile);
+                return outputFile;
+            } catch (IOException ex) {
+                Log.p("VideoOptimizer.makeStreamable failed: " + ex.getMessage(), Log.ERROR);
+                getWorkspace().discard(outputFile);
+                return null;
             }
         } else {
-            randomPath = getAppHomePath() + timeStamp;
-            // check that the randomPath is not used
-            while (FileSystemStorage.getInstance().exists(randomPath)) {
-                timeStamp++;
-                randomPath = getAppHomePath() + timeStamp;
+            Log.p("VideoOptimizer is not supported in the current platform", Log.ERROR);
+            return null;
+        }
+    }
+
+    /**
+     * Cancels the given optimization: the encoder is stopped, the partial
+     * output is deleted and the cancel callback of the job (see
+     * {@link OptimizationJob#setOnCancelCallback(java.lang.Runnable)}) is
+     * executed instead of the success or failure callbacks.
+     *
+     * @param jobId id of the job returned by optimizeVideoForUpload
+     * @return true if the job was queued or running, false if it's unknown or
+     * already finished
+     */
+    public boolean cancel(String jobId) {
+        OptimizationScheduler optimizationScheduler = getScheduler();
+        return optimizationScheduler != null && optimizationScheduler.cancel(jobId);
+    }
+
+    /**
+     * Cancels all the queued and running optimizations, see
+     * {@link #cancel(java.lang.String)}.
+     *
+     * @return the number of cancelled jobs
+     */
+    public int cancelAll() {
+        OptimizationScheduler optimizationScheduler = getScheduler();
+        return optimizationScheduler != null ? optimizationScheduler.cancelAll() : 0;
+    }
+
+    /**
+     * Returns the scheduler of the video optimizations shared by all the
+     * instances of this class, for example to change its max concurrency.
+     *
+     * @return the shared scheduler, or null if the optimization is not
+     * supported in the current platform
+     */
+    public static synchronized OptimizationScheduler getScheduler() {
+        if (scheduler == null) {
+            VideoEditingNativeInterface nativeInterface = NativeLookup.create(VideoEditingNativeInterface.class);
+            if (nativeInterface == null || !nativeInterface.isSupported()) {
+                return null;
             }
+            scheduler = new OptimizationScheduler(nativeInterface);
         }
-        return randomPath;
+        return scheduler;
     }
 
     /**
@@ -241,7 +984,7 @@ public class VideoOptimizer {
      * @param filePath is the full path of a file in the FileSystemStorage
      * @return
      */
-    private String removeFilePrefix(String filePath) {
+    static String removeFilePrefix(String filePath) {
         //Log.p("Original filePath: " + filePath);
         String prefix = "file:";
         if (filePath.startsWith(prefix)) {
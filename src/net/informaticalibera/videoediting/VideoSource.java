@@ -0,0 +1,321 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Storage;
+import com.codename1.io.Util;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * A video to probe or to optimize that is not necessarily a file of the
+ * FileSystemStorage: a Storage entry, an InputStream (for example an
+ * in-app download) or a content URI returned by a picker.</p>
+ * <p>
+ * The parsers of {@link VideoOptimizer} read the sources directly: the
+ * seekable ones (files, Storage entries and URIs) with random access, the
+ * streams through a bounded memory buffer that spills to a file only beyond
+ * {@link #MEMORY_LIMIT} bytes, so that probing a video whose "moov" box is
+ * at the beginning reads only the beginning of the stream. A content URI is
+ * opened by the native code, that reads it without copying it; the native
+ * encoders can't read Storage entries and streams, so they are copied to a
+ * file in the app home path once, when they are optimized (or probed by the
+ * native code), and the copy is deleted by {@link #close()}.</p>
+ * <p>
+ * A source can be used more times, until it's closed; the jobs of
+ * {@link VideoOptimizer#optimizeVideoForUpload(net.informaticalibera.videoediting.VideoSource, net.informaticalibera.videoediting.EncodingProfile, com.codename1.util.OnComplete, java.lang.Runnable, net.informaticalibera.videoediting.OnProgress, int)}
+ * close their source when they finish.</p>
+ *
+ * @author Francesco Galgani
+ */
+public final class VideoSource {
+
+    /**
+     * A file placed in FileSystemStorage.
+     */
+    public static final int TYPE_FILE = 0;
+
+    /**
+     * An entry of Storage.
+     */
+    public static final int TYPE_STORAGE = 1;
+
+    /**
+     * An InputStream, that can be read only once.
+     */
+    public static final int TYPE_STREAM = 2;
+
+    /**
+     * A URI opened by the native code, like an Android content URI.
+     */
+    public static final int TYPE_URI = 3;
+
+    /**
+     * Max number of bytes of a stream kept in memory before spilling to a
+     * file.
+     */
+    public static final int MEMORY_LIMIT = SpillInput.DEFAULT_MEMORY_LIMIT;
+
+    private final int type;
+    private final String name;
+    private final long length;
+    private InputStream stream;
+    private SpillInput spill;
+    private String nativePath;
+    private boolean copied;
+    private VideoEditingNativeInterface resolver;
+    private boolean closed;
+
+    private VideoSource(int type, String name, InputStream stream, long length) {
+        this.type = type;
+        this.name = name;
+        this.stream = stream;
+        this.length = length;
+    }
+
+    /**
+     * A file placed in FileSystemStorage.
+     *
+     * @param file FileSystemStorage path
+     * @return the source
+     */
+    public static VideoSource fromFile(String file) {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+        }
+        return new VideoSource(TYPE_FILE, file, null, -1);
+    }
+
+    /**
+     * An entry of Storage.
+     *
+     * @param entryName name of the Storage entry
+     * @return the source
+     */
+    public static VideoSource fromStorage(String entryName) {
+        if (entryName == null) {
+            throw new IllegalArgumentException("entryName cannot be null");
+        }
+        return new VideoSource(TYPE_STORAGE, entryName, null, -1);
+    }
+
+    /**
+     * A stream, that is read only as far as needed and closed by
+     * {@link #close()}.
+     *
+     * @param stream the video
+     * @param length of the stream in bytes, or -1 if unknown (in that case
+     * the parsers must read the whole stream to know its length)
+     * @return the source
+     */
+    public static VideoSource fromStream(InputStream stream, long length) {
+        if (stream == null) {
+            throw new IllegalArgumentException("stream cannot be null");
+        }
+        return new VideoSource(TYPE_STREAM, "stream", stream, length);
+    }
+
+    /**
+     * A URI opened by the native code: a content URI on Android (for example
+     * the one returned by a picker) or a file URL.
+     *
+     * @param uri the uri
+     * @return the source
+     */
+    public static VideoSource fromUri(String uri) {
+        if (uri == null) {
+            throw new IllegalArgumentException("uri cannot be null");
+        }
+        return new VideoSource(TYPE_URI, uri, null, -1);
+    }
+
+    /**
+     * Type of this source.
+     *
+     * @return one of the TYPE_ constants
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Path, Storage entry name or URI of this source.
+     *
+     * @return the name, "stream" for a stream
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Size of this source, when it's known without reading it.
+     *
+     * @return bytes, or -1 if unknown
+     */
+    long getLength() {
+        if (type == TYPE_FILE) {
+            return FileSystemStorage.getInstance().getLength(name);
+        } else if (type == TYPE_STORAGE) {
+            return Storage.getInstance().entrySize(name);
+        }
+        return length;
+    }
+
+    /**
+     * Returns true if this source can be read at any position without
+     * buffering, that is if it's not a stream.
+     *
+     * @return true if seekable
+     */
+    public boolean isSeekable() {
+        return type != TYPE_STREAM;
+    }
+
+    /**
+     * Opens this source for the parsers; the returned input must be closed,
+     * but closing it doesn't close this source.
+     *
+     * @param videoEditing native interface used to open a URI
+     * @return the input
+     * @throws IOException if the source cannot be read
+     */
+    synchronized RandomAccessInput openInput(VideoEditingNativeInterface videoEditing) throws IOException {
+        checkOpen();
+        if (type == TYPE_FILE) {
+            return new StorageInput(name);
+        } else if (type == TYPE_STORAGE) {
+            return new StorageInput(name, true);
+        } else if (type == TYPE_URI || nativePath != null) {
+            return new StorageInput(getNativePath(videoEditing));
+        }
+        if (spill == null) {
+            spill = new SpillInput(stream, length, MEMORY_LIMIT);
+        }
+        final SpillInput input = spill;
+        return new RandomAccessInput() {
+            public long length() throws IOException {
+                return input.length();
+            }
+
+            public int read(long position, byte[] buffer, int offset, int len) throws IOException {
+                return input.read(position, buffer, offset, len);
+            }
+
+            public void close() throws IOException {
+                // the buffer is kept for the next readers
+            }
+        };
+    }
+
+    /**
+     * Returns a file that the native code can read, opening the URI or
+     * copying the Storage entry or the stream the first time.
+     *
+     * @param videoEditing native interface used to open a URI
+     * @return FileSystemStorage path
+     * @throws IOException if the source cannot be read
+     */
+    synchronized String getNativePath(VideoEditingNativeInterface videoEditing) throws IOException {
+        checkOpen();
+        if (type == TYPE_FILE) {
+            return name;
+        }
+        if (nativePath != null) {
+            return nativePath;
+        }
+        if (type == TYPE_URI) {
+            String path = videoEditing != null ? videoEditing.openContentUri(name) : null;
+            if (path == null) {
+                throw new IOException("The uri " + name + " cannot be opened in the current platform");
+            }
+            resolver = videoEditing;
+            nativePath = path.startsWith("file:") ? path : "file://" + path;
+        } else if (type == TYPE_STORAGE) {
+            SpillInput copy = new SpillInput(Storage.getInstance().createInputStream(name), -1, 0);
+            try {
+                nativePath = copy.toFile();
+            } finally {
+                // the entry is closed and, in case of error, the partial copy is deleted
+                copy.close();
+            }
+            copied = true;
+        } else {
+            if (spill == null) {
+                spill = new SpillInput(stream, length, MEMORY_LIMIT);
+            }
+            // the bytes already buffered by the parsers are not read again
+            nativePath = spill.toFile();
+            spill.close();
+            spill = null;
+            stream = null;
+            copied = true;
+        }
+        return nativePath;
+    }
+
+    /**
+     * Releases this source: the stream is closed, the copy made for the
+     * native code is deleted and the URI is closed.
+     */
+    public void close() {
+        String path;
+        boolean delete;
+        VideoEditingNativeInterface uriResolver;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException ex) {
+                    // nothing to do
+                }
+                spill = null;
+            } else {
+                Util.cleanup(stream);
+            }
+            stream = null;
+            path = nativePath;
+            delete = copied;
+            uriResolver = resolver;
+        }
+        if (path == null) {
+            return;
+        }
+        // the cached info of a temporary path must not be reused by another video
+        VideoOptimizer.getCache().invalidate(path);
+        if (delete) {
+            VideoOptimizer.getWorkspace().discard(path);
+        }
+        if (uriResolver != null) {
+            // it's mandatory to remove the "file://" when accessing to native interfaces
+            uriResolver.closeContentUri(VideoOptimizer.removeFilePrefix(path));
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The video source " + name + " is closed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VideoSource{type=" + type + ", name=" + name + "}";
+    }
+
+}
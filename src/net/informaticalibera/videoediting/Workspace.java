@@ -0,0 +1,536 @@
+/**
+ * Video Optimized
+ * Written in 2019 by Francesco Galgani, https://www.informatica-libera.net/
+ *
+ * To the extent possible under law, the author(s) have dedicated all copyright
+ * and related and neighboring rights to this software to the public domain worldwide.
+ * This software is distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along
+ * with this software. If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package net.informaticalibera.videoediting;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import com.codename1.ui.CN;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * The directory where the outputs, the previews, the thumbnails and the
+ * temporary copies are written, shared by all the instances of
+ * {@link VideoOptimizer} (see {@link VideoOptimizer#getWorkspace()}).</p>
+ * <p>
+ * Every file is reserved with a new name before the native code writes it:
+ * the names are numbers that only grow, so the directory is listed only once
+ * and a name is never given twice, not even to concurrent jobs. The reserved
+ * files are tracked in an index persisted in the FileSystemStorage (written in
+ * background at most once every {@link #FLUSH_DELAY} ms), so the partial
+ * outputs and the temporary copies left by a crash are deleted the next time
+ * the workspace is used, the partial outputs of the failed and of the
+ * cancelled jobs are deleted at once and the delivered outputs that the app
+ * didn't {@link #keep(java.lang.String)} are deleted when they are older than
+ * {@link #getMaxOutputAge()}. The files of the directory that were not
+ * written by this library are never touched.</p>
+ * <p>
+ * Before starting a job, the {@link OptimizationScheduler} estimates the size
+ * of its output (from the cached info of the source and the bitrates of the
+ * profile, or from the size of the source) and it checks that the free space
+ * would stay above {@link #getMinFreeSpace()} also counting the outputs of
+ * the running jobs: otherwise the job waits for the running jobs to end, or
+ * it fails at once if there are no running jobs.</p>
+ *
+ * @author Francesco Galgani
+ */
+public class Workspace {
+
+    /**
+     * Default free space that the jobs must leave on the device: 50 MB.
+     */
+    public static final long DEFAULT_MIN_FREE_SPACE = 50L * 1024 * 1024;
+
+    /**
+     * Default age after which a delivered output is deleted: 7 days.
+     */
+    public static final long DEFAULT_MAX_OUTPUT_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * A file being written by a job, deleted if the job doesn't complete.
+     */
+    static final int KIND_PARTIAL = 0;
+
+    /**
+     * A temporary copy, deleted when it's released.
+     */
+    static final int KIND_TEMP = 1;
+
+    /**
+     * A file delivered to the app, deleted when it expires.
+     */
+    static final int KIND_OUTPUT = 2;
+
+    /**
+     * Delay between a change of the tracked files and the write of the index,
+     * that includes all the changes done in the meantime.
+     */
+    public static final int FLUSH_DELAY = 2000;
+
+    private static final int INDEX_VERSION = 1;
+
+    private final String indexFile;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final Object saveLock = new Object();
+    private String directory;
+    private long minFreeSpace = DEFAULT_MIN_FREE_SPACE;
+    private long maxOutputAge = DEFAULT_MAX_OUTPUT_AGE;
+    private long lastId;
+    private boolean loaded;
+    private boolean scanned;
+    private boolean flushScheduled;
+
+    private static final class Entry {
+
+        String path;
+        int kind;
+        long time;
+    }
+
+    Workspace(String indexFile, String directory) {
+        this.indexFile = indexFile;
+        this.directory = directory;
+    }
+
+    /**
+     * Directory of the new files.
+     *
+     * @return FileSystemStorage path, ending with the separator
+     */
+    public synchronized String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory of the new files, by default the app home path; it's
+     * created if it doesn't exist. The files already written are not moved
+     * and they are still tracked.
+     *
+     * @param directory FileSystemStorage path
+     */
+    public void setDirectory(String directory) {
+        if (directory == null || directory.length() == 0) {
+            throw new IllegalArgumentException("directory cannot be empty");
+        }
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (!directory.endsWith("/")) {
+            directory += fs.getFileSystemSeparator();
+        }
+        if (!fs.exists(directory)) {
+            fs.mkdir(directory);
+        }
+        synchronized (this) {
+            this.directory = directory;
+            scanned = false;
+        }
+    }
+
+    /**
+     * Free space that the jobs must leave on the device.
+     *
+     * @return bytes
+     */
+    public synchronized long getMinFreeSpace() {
+        return minFreeSpace;
+    }
+
+    /**
+     * Sets the free space that the jobs must leave on the device, by default
+     * {@link #DEFAULT_MIN_FREE_SPACE}.
+     *
+     * @param minFreeSpace bytes, 0 to use all the free space
+     */
+    public synchronized void setMinFreeSpace(long minFreeSpace) {
+        if (minFreeSpace < 0) {
+            throw new IllegalArgumentException("minFreeSpace cannot be negative");
+        }
+        this.minFreeSpace = minFreeSpace;
+    }
+
+    /**
+     * Age after which a delivered output is deleted.
+     *
+     * @return ms, 0 if the outputs are never deleted
+     */
+    public synchronized long getMaxOutputAge() {
+        return maxOutputAge;
+    }
+
+    /**
+     * Sets the age after which a delivered output that the app didn't keep
+     * is deleted by {@link #cleanup()}, by default
+     * {@link #DEFAULT_MAX_OUTPUT_AGE}. Set it before the first use of the
+     * library, because the cleanup runs also when the workspace is loaded.
+     *
+     * @param maxOutputAge ms, 0 to never delete the outputs
+     */
+    public synchronized void setMaxOutputAge(long maxOutputAge) {
+        if (maxOutputAge < 0) {
+            throw new IllegalArgumentException("maxOutputAge cannot be negative");
+        }
+        this.maxOutputAge = maxOutputAge;
+    }
+
+    /**
+     * Free space of the storage of the directory.
+     *
+     * @return bytes, or -1 if the platform doesn't report it
+     */
+    public long getAvailableSpace() {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        String dir = getDirectory();
+        String root = null;
+        String[] roots = fs.getRoots();
+        if (roots != null) {
+            for (String candidate : roots) {
+                if (dir.startsWith(candidate) && (root == null || candidate.length() > root.length())) {
+                    root = candidate;
+                }
+            }
+            if (root == null && roots.length > 0) {
+                root = roots[0];
+            }
+        }
+        if (root == null) {
+            return -1;
+        }
+        long space = fs.getRootAvailableSpace(root);
+        return space > 0 ? space : -1;
+    }
+
+    /**
+     * Number of files tracked by the workspace.
+     *
+     * @return tracked files
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    /**
+     * Stops tracking the given output: the app takes care of it, so it's
+     * never deleted by the workspace.
+     *
+     * @param file FileSystemStorage path returned by the library
+     */
+    public void keep(String file) {
+        Entry entry;
+        synchronized (this) {
+            ensureLoaded();
+            entry = entries.remove(file);
+        }
+        if (entry != null) {
+            save();
+        }
+    }
+
+    /**
+     * Deletes the given output (for example after uploading it) and stops
+     * tracking it.
+     *
+     * @param file FileSystemStorage path returned by the library
+     */
+    public void release(String file) {
+        discard(file);
+    }
+
+    /**
+     * Deletes the delivered outputs older than {@link #getMaxOutputAge()} and
+     * forgets the outputs that the app already deleted.
+     *
+     * @return the number of bytes freed
+     */
+    public long cleanup() {
+        long freed;
+        synchronized (this) {
+            ensureLoaded();
+            freed = expire();
+        }
+        save();
+        return freed;
+    }
+
+    /**
+     * Returns a new path in the directory that is not tracked, for the files
+     * that are managed by someone else (like the copies of the
+     * {@link ResultCache}).
+     *
+     * @param extension it can be null to don't add any extension; if it
+     * doesn't start with a dot ".", it will be added automatically
+     * @return FileSystemStorage path
+     */
+    synchronized String createPath(String extension) {
+        ensureLoaded();
+        if (!scanned) {
+            scanned = true;
+            scanDirectory();
+        }
+        if (extension != null && !extension.startsWith(".")) {
+            extension = "." + extension;
+        }
+        // the ids only grow, so a name is never given twice: concurrent jobs
+        // can ask for a path before the previous one is created
+        lastId = Math.max(System.currentTimeMillis(), lastId + 1);
+        return directory + lastId + (extension != null ? extension : "");
+    }
+
+    /**
+     * Returns a new path in the directory, tracked as the given kind.
+     *
+     * @param extension see {@link #createPath(java.lang.String)}
+     * @param kind KIND_PARTIAL, KIND_TEMP or KIND_OUTPUT
+     * @return FileSystemStorage path
+     */
+    String reserve(String extension, int kind) {
+        Entry entry = new Entry();
+        entry.kind = kind;
+        entry.time = System.currentTimeMillis();
+        synchronized (this) {
+            entry.path = createPath(extension);
+            entries.put(entry.path, entry);
+        }
+        save();
+        return entry.path;
+    }
+
+    /**
+     * Marks the given partial file as an output delivered to the app.
+     *
+     * @param file FileSystemStorage path returned by
+     * {@link #reserve(java.lang.String, int)}
+     */
+    void commit(String file) {
+        synchronized (this) {
+            ensureLoaded();
+            Entry entry = entries.get(file);
+            if (entry == null || entry.kind == KIND_OUTPUT) {
+                return;
+            }
+            entry.kind = KIND_OUTPUT;
+            entry.time = System.currentTimeMillis();
+        }
+        save();
+    }
+
+    /**
+     * Deletes the given file, if it exists, and stops tracking it.
+     *
+     * @param file FileSystemStorage path, it can be null
+     */
+    void discard(String file) {
+        if (file == null) {
+            return;
+        }
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (fs.exists(file)) {
+            fs.delete(file);
+        }
+        Entry entry;
+        synchronized (this) {
+            ensureLoaded();
+            entry = entries.remove(file);
+        }
+        if (entry != null) {
+            save();
+        }
+    }
+
+    /**
+     * Checks if a job that writes the given bytes can start, counting also
+     * the bytes that the running jobs have still to write.
+     *
+     * @param estimatedBytes estimated size of the files written by the job,
+     * 0 if unknown
+     * @param running the running jobs
+     * @return true if the free space would stay above the min free space, or
+     * if the platform doesn't report the free space
+     */
+    boolean hasSpaceFor(long estimatedBytes, List<OptimizationJob> running) {
+        long available = getAvailableSpace();
+        if (available < 0) {
+            return true;
+        }
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        long pending = 0;
+        for (OptimizationJob job : running) {
+            long written = 0;
+            Rendition[] renditions = job.getRenditions();
+            if (renditions != null) {
+                for (Rendition rendition : renditions) {
+                    written += Math.max(0, fs.getLength(rendition.getOutputFile()));
+                }
+            } else if (job.getOutputFile() != null) {
+                written = Math.max(0, fs.getLength(job.getOutputFile()));
+            }
+            pending += Math.max(0, job.getEstimatedBytes() - written);
+        }
+        return available - pending - estimatedBytes >= getMinFreeSpace();
+    }
+
+    /**
+     * Finds the highest id used by the files of the directory; must be
+     * invoked holding the lock of this object.
+     */
+    private void scanDirectory() {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (!fs.exists(directory)) {
+            fs.mkdir(directory);
+            return;
+        }
+        try {
+            for (String name : fs.listFiles(directory)) {
+                int end = 0;
+                while (end < name.length() && end < 18 && Character.isDigit(name.charAt(end))) {
+                    end++;
+                }
+                if (end > 0) {
+                    lastId = Math.max(lastId, Long.parseLong(name.substring(0, end)));
+                }
+            }
+        } catch (IOException ex) {
+            Log.p("Workspace -> The directory " + directory + " cannot be listed: " + ex.getMessage(), Log.WARNING);
+        }
+    }
+
+    /**
+     * Deletes the expired outputs and forgets the missing files; must be
+     * invoked holding the lock of this object.
+     *
+     * @return the number of bytes freed
+     */
+    private long expire() {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        long now = System.currentTimeMillis();
+        long freed = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.kind != KIND_OUTPUT) {
+                // in use, it's released by the job or by its owner
+                continue;
+            }
+            if (!fs.exists(entry.path)) {
+                it.remove();
+            } else if (maxOutputAge > 0 && now - entry.time > maxOutputAge) {
+                freed += Math.max(0, fs.getLength(entry.path));
+                fs.delete(entry.path);
+                it.remove();
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Loads the persisted index, if not already done, deleting the partial
+     * and the temporary files of the previous executions of the app; must be
+     * invoked holding the lock of this object.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        if (!fs.exists(indexFile)) {
+            return;
+        }
+        DataInputStream in = null;
+        int leftovers = 0;
+        try {
+            in = new DataInputStream(fs.openInputStream(indexFile));
+            if (in.readInt() != INDEX_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.path = in.readUTF();
+                entry.kind = in.readInt();
+                entry.time = in.readLong();
+                if (entry.kind != KIND_OUTPUT) {
+                    // written by a job or a copy that never ended
+                    if (fs.exists(entry.path)) {
+                        fs.delete(entry.path);
+                        leftovers++;
+                    }
+                    continue;
+                }
+                entries.put(entry.path, entry);
+            }
+        } catch (IOException ex) {
+            Log.p("Workspace -> The index cannot be read, it will be rebuilt: " + ex.getMessage(), Log.WARNING);
+        } finally {
+            Util.cleanup(in);
+        }
+        if (leftovers > 0) {
+            Log.p("Workspace -> Deleted " + leftovers + " partial files of the previous execution", Log.DEBUG);
+        }
+        expire();
+    }
+
+    /**
+     * Schedules the write of the index, unless it's already scheduled.
+     */
+    private void save() {
+        synchronized (this) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        CN.startThread(() -> {
+            Util.sleep(FLUSH_DELAY);
+            synchronized (this) {
+                // the next changes schedule another write
+                flushScheduled = false;
+            }
+            flush();
+        }, "VideoOptimizer workspace index").start();
+    }
+
+    /**
+     * Persists the index.
+     */
+    private void flush() {
+        synchronized (saveLock) {
+            List<Entry> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(entries.values());
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(FileSystemStorage.getInstance().openOutputStream(indexFile));
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(snapshot.size());
+                for (Entry entry : snapshot) {
+                    out.writeUTF(entry.path);
+                    out.writeInt(entry.kind);
+                    out.writeLong(entry.time);
+                }
+            } catch (IOException ex) {
+                Log.p("Workspace -> The index cannot be saved: " + ex.getMessage(), Log.WARNING);
+            } finally {
+                Util.cleanup(out);
+            }
+        }
+    }
+
+}